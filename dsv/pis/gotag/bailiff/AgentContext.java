@@ -0,0 +1,87 @@
+// AgentContext.java
+// Services a Bailiff offers to its resident agents.
+
+package dsv.pis.gotag.bailiff;
+
+import net.jini.core.lookup.ServiceID;
+import net.jini.core.lookup.ServiceItem;
+import net.jini.core.lookup.ServiceTemplate;
+import net.jini.lookup.ServiceDiscoveryListener;
+import net.jini.lookup.ServiceItemFilter;
+
+/**
+ * The AgentContext is what a Bailiff lends to the agents it hosts. It is
+ * handed to agents that implement {@link ContextAware} when they arrive,
+ * and is not valid after they have left.
+ * <p>
+ * The Bailiff keeps a long-lived discovery cache of the other Bailiffs,
+ * so an agent does not have to start its own ServiceDiscoveryManager,
+ * and wait for it to discover the lookup servers, on every hop. It also
+ * tells the agent where it is: calls on the local Bailiff are plain
+ * method calls, without RMI stubs or serialization.
+ */
+public interface AgentContext {
+
+    /**
+     * Returns the Bailiffs known to the host's discovery cache that match
+     * a template and pass a filter. The answer is local and immediate; it
+     * may be empty shortly after the Bailiff has started.
+     *
+     * @param tmpl       The template to match, as in a Jini lookup. Its
+     *                   attribute templates are matched field by field.
+     * @param maxMatches The maximum number of items to return.
+     * @param filter     An additional filter, or null.
+     * @return The matching service items, possibly none.
+     */
+    public ServiceItem[] lookupBailiffs(ServiceTemplate tmpl, int maxMatches,
+                                        ServiceItemFilter filter);
+
+    /**
+     * Tells a listener when Bailiffs that match a template and pass a
+     * filter appear in the host's discovery cache, change or disappear.
+     * The Bailiffs already in the cache are reported as added at once.
+     * Changes are reported for Bailiffs that match before or after them.
+     * <p>
+     * The events come on the cache's thread, so the listener should only
+     * take note and return. The agent should remove the listener before
+     * it leaves the Bailiff; the Bailiff removes those left behind.
+     *
+     * @param tmpl     The template to match, as in lookupBailiffs.
+     * @param filter   An additional filter, or null.
+     * @param listener The listener.
+     */
+    public void addBailiffListener(ServiceTemplate tmpl, ServiceItemFilter filter,
+                                   ServiceDiscoveryListener listener);
+
+    /**
+     * Removes a listener added by addBailiffListener. Removing a listener
+     * that is not added has no effect.
+     *
+     * @param listener The listener.
+     */
+    public void removeBailiffListener(ServiceDiscoveryListener listener);
+
+    /**
+     * Returns the Bailiff the agent is in. This is the service object
+     * itself, not a remote reference, and must not be passed on.
+     *
+     * @return The local Bailiff.
+     */
+    public BailiffInterface getLocalBailiff();
+
+    /**
+     * Returns the ServiceID of the local Bailiff, by which it can be
+     * recognised among the results of a lookup.
+     *
+     * @return The ServiceID, or null if the Bailiff is not registered yet.
+     */
+    public ServiceID getServiceID();
+
+    /**
+     * Writes an entry to the log of the local Bailiff, for what an agent
+     * has to report and nobody is there to see.
+     *
+     * @param entry The log entry.
+     */
+    public void log(String entry);
+}
@@ -0,0 +1,179 @@
+// AgentEngine.java
+// Execution engine for the agents hosted by a Bailiff.
+
+package dsv.pis.gotag.bailiff;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The AgentEngine lends threads of execution to the agents admitted by
+ * a Bailiff. Each migrated agent is submitted as a task instead of being
+ * given a platform thread of its own.
+ * <p>
+ * Two modes are available:
+ * <ul>
+ * <li>{@link #VIRTUAL} runs every agent on its own virtual thread. Agents
+ * parked in sleep cost a small heap object rather than a thread stack, so
+ * a Bailiff can host tens of thousands of residents. On a JVM without
+ * virtual threads the engine falls back to an unbounded pool of
+ * platform threads.</li>
+ * <li>{@link #POOL} runs agents on a bounded pool of platform threads.
+ * Since an agent holds its thread until it leaves, the pool size is also
+ * the maximum number of resident agents. Arrivals beyond that limit are
+ * rejected.</li>
+ * </ul>
+ */
+public class AgentEngine {
+
+    /**
+     * The name of the virtual-thread mode.
+     */
+    public static final String VIRTUAL = "virtual";
+
+    /**
+     * The name of the bounded platform pool mode.
+     */
+    public static final String POOL = "pool";
+
+    /**
+     * The default number of threads in the bounded pool mode.
+     */
+    public static final int DEFAULT_POOL_SIZE = 256;
+
+    /**
+     * The executor which runs the agent tasks.
+     */
+    protected final ExecutorService executor;
+
+    /**
+     * The mode name of this engine.
+     */
+    protected final String mode;
+
+    /**
+     * Creates a new engine around an executor.
+     *
+     * @param executor The executor to run agents on.
+     * @param mode     The mode name, for diagnostics.
+     */
+    protected AgentEngine(ExecutorService executor, String mode) {
+        this.executor = executor;
+        this.mode = mode;
+    }
+
+    /**
+     * Creates an engine that runs each agent on a virtual thread.
+     *
+     * @return The new engine.
+     */
+    public static AgentEngine newVirtualEngine() {
+        // Virtual threads are looked up reflectively so that the Bailiff
+        // still compiles and runs on JVMs that predate them.
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return new AgentEngine((ExecutorService) m.invoke(null), VIRTUAL);
+        } catch (ReflectiveOperationException e) {
+            return new AgentEngine
+                    (Executors.newCachedThreadPool(new AgitatorThreadFactory()),
+                            VIRTUAL + " (platform fallback)");
+        }
+    }
+
+    /**
+     * Creates an engine that runs agents on a bounded pool of platform
+     * threads.
+     *
+     * @param poolSize The maximum number of concurrently running agents.
+     * @return The new engine.
+     */
+    public static AgentEngine newPooledEngine(int poolSize) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("poolSize must be positive: " + poolSize);
+        }
+        ThreadPoolExecutor tpe =
+                new ThreadPoolExecutor(poolSize, poolSize,
+                        60L, TimeUnit.SECONDS,
+                        new SynchronousQueue<Runnable>(),
+                        new AgitatorThreadFactory());
+        tpe.allowCoreThreadTimeOut(true);
+        return new AgentEngine(tpe, POOL + "(" + poolSize + ")");
+    }
+
+    /**
+     * Creates an engine from its mode name, as given on the commandline.
+     *
+     * @param mode     Either {@link #VIRTUAL} or {@link #POOL}.
+     * @param poolSize The pool size, only used in the pool mode.
+     * @return The new engine.
+     * @throws IllegalArgumentException Thrown if the mode is unknown.
+     */
+    public static AgentEngine forMode(String mode, int poolSize) {
+        if (VIRTUAL.equalsIgnoreCase(mode)) {
+            return newVirtualEngine();
+        } else if (POOL.equalsIgnoreCase(mode)) {
+            return newPooledEngine(poolSize);
+        }
+        throw new IllegalArgumentException("Unknown agent engine: " + mode);
+    }
+
+    /**
+     * Submits an agent task for execution.
+     *
+     * @param task The agent task.
+     * @throws RejectedExecutionException Thrown if the engine is shut down
+     *                                    or has no capacity left.
+     */
+    public void execute(Runnable task) throws RejectedExecutionException {
+        executor.execute(task);
+    }
+
+    /**
+     * Returns the mode name of this engine.
+     *
+     * @return The mode name.
+     */
+    public String getMode() {
+        return mode;
+    }
+
+    /**
+     * Returns true if the agents run on virtual threads.
+     *
+     * @return True in the virtual mode, unless it fell back to platform
+     * threads.
+     */
+    public boolean isVirtual() {
+        return VIRTUAL.equals(mode);
+    }
+
+    /**
+     * Stops admitting new tasks. Running agents are not interrupted.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public String toString() {
+        return "AgentEngine[" + mode + "]";
+    }
+
+    /**
+     * Names the platform threads of the engine so they are recognisable
+     * in thread dumps.
+     */
+    private static class AgitatorThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "agitator-" + count.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,83 @@
+// AgentInfo.java
+// Roster entry returned by the Bailiff.
+
+package dsv.pis.gotag.bailiff;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+/**
+ * An AgentInfo is a snapshot of one resident agent: its UUID and its
+ * tag state at the time the roster was taken. A whole roster is returned
+ * in one call by {@link BailiffInterface#getAgentsInfo()}, so clients do
+ * not have to ask about each agent separately.
+ * <p>
+ * The UUID is kept as two longs and the flags are packed in one byte to
+ * keep the roster small on the wire.
+ */
+public class AgentInfo implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final byte IT = 1;
+    private static final byte MIGRATING = 2;
+
+    private final long msb;
+    private final long lsb;
+    private final byte flags;
+
+    /**
+     * Creates a new roster entry.
+     *
+     * @param id        The UUID of the agent.
+     * @param it        True if the agent is 'it'.
+     * @param migrating True if the agent is migrating.
+     */
+    public AgentInfo(UUID id, boolean it, boolean migrating) {
+        msb = id.getMostSignificantBits();
+        lsb = id.getLeastSignificantBits();
+        flags = (byte) ((it ? IT : 0) | (migrating ? MIGRATING : 0));
+    }
+
+    /**
+     * Returns the UUID of the agent.
+     *
+     * @return The UUID.
+     */
+    public UUID getUUID() {
+        return new UUID(msb, lsb);
+    }
+
+    /**
+     * Returns true if the agent is the UUID given.
+     *
+     * @param id The UUID to compare with.
+     * @return True if the UUIDs are equal.
+     */
+    public boolean is(UUID id) {
+        return id.getMostSignificantBits() == msb
+                && id.getLeastSignificantBits() == lsb;
+    }
+
+    /**
+     * Returns true if the agent was 'it' when the roster was taken.
+     *
+     * @return The it flag.
+     */
+    public boolean isIt() {
+        return (flags & IT) != 0;
+    }
+
+    /**
+     * Returns true if the agent was migrating when the roster was taken.
+     *
+     * @return The migrating flag.
+     */
+    public boolean isMigrating() {
+        return (flags & MIGRATING) != 0;
+    }
+
+    public String toString() {
+        return getUUID() + (isIt() ? " [it]" : "") + (isMigrating() ? " [migrating]" : "");
+    }
+}
@@ -0,0 +1,165 @@
+// AgentMeter.java
+// Measures the CPU time and allocation of one agent.
+
+package dsv.pis.gotag.bailiff;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An AgentMeter accumulates the CPU time and the allocated bytes of one
+ * agent through the platform ThreadMXBean. The thread running the agent
+ * calls {@link #begin} and {@link #end} around each stretch of work:
+ * the whole entry point when the agent has a thread, each step in tick
+ * mode. Engine threads are reused, so only the differences between
+ * begin and end are counted.
+ * <p>
+ * The ThreadMXBean does not know virtual threads, so work done on them
+ * is not counted and the meter reports -1.
+ */
+final class AgentMeter {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static final com.sun.management.ThreadMXBean SUN_THREADS =
+            (THREADS instanceof com.sun.management.ThreadMXBean)
+                    ? (com.sun.management.ThreadMXBean) THREADS : null;
+
+    private static final boolean CPU_SUPPORTED = enableCpu();
+
+    private static final boolean ALLOCATION_SUPPORTED = enableAllocation();
+
+    private static final Method IS_VIRTUAL = findIsVirtual();
+
+    private final AtomicLong cpuDone = new AtomicLong();
+    private final AtomicLong allocDone = new AtomicLong();
+    private volatile boolean measured = false;
+
+    // Written by begin before thread, read by others after thread.
+    private long cpuBase;
+    private long allocBase;
+    private volatile Thread thread;
+
+    /**
+     * Starts measuring on the current thread.
+     */
+    void begin() {
+        Thread current = Thread.currentThread();
+        if (isVirtual(current)) {
+            return;
+        }
+        long id = current.getId();
+        cpuBase = CPU_SUPPORTED ? THREADS.getThreadCpuTime(id) : 0;
+        allocBase = ALLOCATION_SUPPORTED ? SUN_THREADS.getThreadAllocatedBytes(id) : 0;
+        measured = true;
+        thread = current;
+    }
+
+    /**
+     * Stops measuring on the current thread and adds the work done since
+     * begin.
+     */
+    void end() {
+        Thread current = thread;
+        if (current == null) {
+            return;
+        }
+        long id = current.getId();
+        if (CPU_SUPPORTED) {
+            cpuDone.addAndGet(THREADS.getThreadCpuTime(id) - cpuBase);
+        }
+        if (ALLOCATION_SUPPORTED) {
+            allocDone.addAndGet(SUN_THREADS.getThreadAllocatedBytes(id) - allocBase);
+        }
+        thread = null;
+    }
+
+    /**
+     * Returns the CPU time used so far, including a stretch in progress.
+     *
+     * @return The CPU time in nanoseconds, or -1 if it is not measured.
+     */
+    long cpuNanos() {
+        if (!CPU_SUPPORTED || !measured) {
+            return -1;
+        }
+        long total = cpuDone.get();
+        Thread current = thread;
+        if (current != null) {
+            long now = THREADS.getThreadCpuTime(current.getId());
+            if (0 <= now) {
+                total += Math.max(0, now - cpuBase);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Returns the bytes allocated so far, including a stretch in progress.
+     *
+     * @return The allocated bytes, or -1 if they are not measured.
+     */
+    long allocatedBytes() {
+        if (!ALLOCATION_SUPPORTED || !measured) {
+            return -1;
+        }
+        long total = allocDone.get();
+        Thread current = thread;
+        if (current != null) {
+            long now = SUN_THREADS.getThreadAllocatedBytes(current.getId());
+            if (0 <= now) {
+                total += Math.max(0, now - allocBase);
+            }
+        }
+        return total;
+    }
+
+    private static boolean enableCpu() {
+        try {
+            if (THREADS.isThreadCpuTimeSupported()) {
+                if (!THREADS.isThreadCpuTimeEnabled()) {
+                    THREADS.setThreadCpuTimeEnabled(true);
+                }
+                return true;
+            }
+        } catch (UnsupportedOperationException | SecurityException e) {
+        }
+        return false;
+    }
+
+    private static boolean enableAllocation() {
+        try {
+            if (SUN_THREADS != null && SUN_THREADS.isThreadAllocatedMemorySupported()) {
+                if (!SUN_THREADS.isThreadAllocatedMemoryEnabled()) {
+                    SUN_THREADS.setThreadAllocatedMemoryEnabled(true);
+                }
+                return true;
+            }
+        } catch (UnsupportedOperationException | SecurityException e) {
+        }
+        return false;
+    }
+
+    // Thread.isVirtual is looked up reflectively, as in AgentEngine, so
+    // that the Bailiff still runs on JVMs without virtual threads.
+    private static Method findIsVirtual() {
+        try {
+            return Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static boolean isVirtual(Thread t) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (Boolean) IS_VIRTUAL.invoke(t);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+// AgentRegistry.java
+// Concurrent registry of the agents resident in a Bailiff.
+
+package dsv.pis.gotag.bailiff;
+
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The AgentRegistry keeps track of the agents resident in a Bailiff,
+ * keyed by their UUID. It replaces a HashMap guarded by a single monitor.
+ * <p>
+ * An agent may migrate back into the Bailiff it is leaving before its
+ * previous incarnation has finished. The new incarnation then waits for
+ * the previous one to deregister, and only for that one: each registration
+ * owns a latch which is opened when it leaves. Arrivals and departures of
+ * other agents never wait on each other.
+ * <p>
+ * Readers never block. Lookups and snapshots are weakly consistent views
+ * of the underlying ConcurrentHashMap.
+ *
+ * @param <A> The type of the registered agent wrapper.
+ */
+class AgentRegistry<A> {
+
+    /**
+     * A single registration of an agent.
+     */
+    static final class Registration<A> {
+        final UUID id;
+        final A agent;
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        Registration(UUID id, A agent) {
+            this.id = id;
+            this.agent = agent;
+        }
+
+        /**
+         * Waits until this registration has been released.
+         *
+         * @throws InterruptedException Thrown if the wait is interrupted.
+         */
+        void awaitRelease() throws InterruptedException {
+            released.await();
+        }
+    }
+
+    private final ConcurrentHashMap<UUID, Registration<A>> agents =
+            new ConcurrentHashMap<UUID, Registration<A>>();
+
+    /**
+     * Registers an agent under its UUID. If a previous incarnation of the
+     * agent is still registered, the caller waits until it is released.
+     *
+     * @param id    The UUID of the agent.
+     * @param agent The agent to register.
+     * @return The registration, to be passed to {@link #release}.
+     * @throws InterruptedException Thrown if the wait for the previous
+     *                              incarnation is interrupted.
+     */
+    Registration<A> register(UUID id, A agent) throws InterruptedException {
+        Registration<A> mine = new Registration<A>(id, agent);
+        for (; ; ) {
+            Registration<A> previous = agents.putIfAbsent(id, mine);
+            if (previous == null) {
+                return mine;
+            }
+            previous.awaitRelease();
+        }
+    }
+
+    /**
+     * Removes a registration and wakes the incarnation waiting for it,
+     * if any.
+     *
+     * @param reg The registration returned by {@link #register}.
+     */
+    void release(Registration<A> reg) {
+        agents.remove(reg.id, reg);
+        reg.released.countDown();
+    }
+
+    /**
+     * Returns the agent registered under a UUID.
+     *
+     * @param id The UUID of the agent.
+     * @return The agent or null if it is not resident.
+     */
+    A get(UUID id) {
+        Registration<A> reg = agents.get(id);
+        return (reg != null) ? reg.agent : null;
+    }
+
+    /**
+     * Returns true if an agent is registered under the UUID.
+     *
+     * @param id The UUID of the agent.
+     * @return True if the agent is resident.
+     */
+    boolean contains(UUID id) {
+        return agents.containsKey(id);
+    }
+
+    /**
+     * Returns a snapshot of the UUIDs of the resident agents.
+     *
+     * @return A new list of UUIDs.
+     */
+    ArrayList<UUID> names() {
+        return new ArrayList<UUID>(agents.keySet());
+    }
+
+    /**
+     * Returns a snapshot of the resident agents.
+     *
+     * @return A new list of agents.
+     */
+    ArrayList<A> agents() {
+        ArrayList<A> list = new ArrayList<A>(agents.size());
+        for (Registration<A> reg : agents.values()) {
+            list.add(reg.agent);
+        }
+        return list;
+    }
+
+    /**
+     * Returns the number of resident agents.
+     *
+     * @return The number of registrations.
+     */
+    int size() {
+        return agents.size();
+    }
+
+    public String toString() {
+        return agents.keySet().toString();
+    }
+}
@@ -0,0 +1,81 @@
+// AgentStats.java
+// Resource use of one resident agent.
+
+package dsv.pis.gotag.bailiff;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+/**
+ * AgentStats describe the resources one resident agent has used in its
+ * current Bailiff: CPU time, allocated bytes and time spent there, and
+ * how many hops the agent has made so far. The figures are returned for
+ * all residents by {@link BailiffInterface#getAgentsStats()}.
+ * <p>
+ * CPU time and allocation can only be measured for agents that run on
+ * platform threads, that is in the pool and tick modes of the Bailiff.
+ * They are -1 when they could not be measured.
+ */
+public class AgentStats implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final UUID id;
+    private final long cpuNanos;
+    private final long allocatedBytes;
+    private final long uptimeMillis;
+    private final int hops;
+    private final boolean abnormal;
+
+    /**
+     * Creates new agent statistics.
+     *
+     * @param id             The UUID of the agent.
+     * @param cpuNanos       The CPU time used in this Bailiff, or -1.
+     * @param allocatedBytes The bytes allocated in this Bailiff, or -1.
+     * @param uptimeMillis   The time since the agent arrived.
+     * @param hops           The number of migrations the agent has made.
+     * @param abnormal       True if the Bailiff finds the agent's resource
+     *                       use abnormal compared to the other residents.
+     */
+    public AgentStats(UUID id, long cpuNanos, long allocatedBytes,
+                      long uptimeMillis, int hops, boolean abnormal) {
+        this.id = id;
+        this.cpuNanos = cpuNanos;
+        this.allocatedBytes = allocatedBytes;
+        this.uptimeMillis = uptimeMillis;
+        this.hops = hops;
+        this.abnormal = abnormal;
+    }
+
+    public UUID getUUID() {
+        return id;
+    }
+
+    public long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public long getUptimeMillis() {
+        return uptimeMillis;
+    }
+
+    public int getHops() {
+        return hops;
+    }
+
+    public boolean isAbnormal() {
+        return abnormal;
+    }
+
+    public String toString() {
+        return "<agentStats agent=\"" + id + "\" cpuNanos=\"" + cpuNanos
+                + "\" allocatedBytes=\"" + allocatedBytes
+                + "\" uptimeMillis=\"" + uptimeMillis + "\" hops=\"" + hops
+                + "\"" + (abnormal ? " abnormal=\"YES\"" : "") + "/>";
+    }
+}
@@ -13,8 +13,22 @@ import java.net.UnknownHostException;
 import java.rmi.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import dsv.pis.gotag.exceptions.NoSuchAgentException;
+import dsv.pis.gotag.exceptions.NoSuchReservationException;
 import dsv.pis.gotag.player.TagPlayer;
 import net.jini.core.entry.*;
 import net.jini.core.lookup.*;
@@ -52,11 +66,181 @@ public class Bailiff
     protected String room;
     protected String host;
     protected Map propertyMap;
-    protected JoinManager bf_joinmanager;
+    protected BailiffDirectory bf_directory;
+    protected IDListener bf_idlistener;
+    protected LookupCache bf_lookupcache;
+
+    /**
+     * The context lent to resident agents, once discovery has started.
+     */
+    protected volatile HostContext agentContext;
     protected InetAddress myInetAddress;
 
-    //HashMap of active agents in the Bailiff
-    HashMap<UUID, agitator> localAgents = new HashMap<UUID, agitator>();
+    /**
+     * The engine that lends threads of execution to admitted agents.
+     */
+    protected AgentEngine engine;
+
+    /**
+     * The lifetime of a migration reservation in milliseconds.
+     */
+    public static final long RESERVATION_TTL = 5000;
+
+    /**
+     * Places held for agents in the middle of a two-phase migration.
+     */
+    protected final ReservationBook reservations = new ReservationBook(RESERVATION_TTL);
+
+    /**
+     * Serializes the tags in this Bailiff, so that the 'it' state passes
+     * from one agent to the other without a second 'it' in between.
+     */
+    private final Object tagLock = new Object();
+
+    /**
+     * The maximum number of resident and reserved agents, or 0 for no limit.
+     */
+    protected volatile int maxAgents = 0;
+
+    /**
+     * The default time a shutdown may take to move the residents away,
+     * in milliseconds.
+     */
+    public static final long DEFAULT_DRAIN_TIME = 10000;
+
+    /**
+     * The maximum number of peer Bailiffs a drain spreads agents over.
+     */
+    public static final int MAX_DRAIN_PEERS = 64;
+
+    /**
+     * The maximum number of agents a drain asks to relocate at once.
+     */
+    public static final int MAX_RELOCATORS = 64;
+
+    /**
+     * The time a shutdown may take to move the residents away.
+     */
+    protected long drainMillis = DEFAULT_DRAIN_TIME;
+
+    /**
+     * True once the Bailiff has started to shut down. It then admits no
+     * new agents.
+     */
+    protected volatile boolean draining = false;
+
+    /**
+     * The minimum time between two refreshes of the published BailiffLoad,
+     * in milliseconds.
+     */
+    public static final long LOAD_REFRESH_INTERVAL = 2000;
+
+    /**
+     * Refreshes the BailiffLoad attribute, once the Bailiff is registered.
+     */
+    protected volatile LoadPublisher loadPublisher;
+
+    /**
+     * An agent whose CPU time or allocation rate is this many times the
+     * median of the residents is reported as abnormal.
+     */
+    public static final int ABNORMAL_FACTOR = 8;
+
+    /**
+     * The CPU time below which an agent is never abnormal, in nanoseconds.
+     */
+    public static final long ABNORMAL_MIN_CPU = 1000000000L;
+
+    /**
+     * The allocation below which an agent is never abnormal, in bytes.
+     */
+    public static final long ABNORMAL_MIN_ALLOCATION = 64L << 20;
+
+    /**
+     * The time between two checks of the residents for abnormal resource
+     * use, in milliseconds.
+     */
+    public static final long AUDIT_INTERVAL = 10000;
+
+    /**
+     * The warning given when the agents run on virtual threads, whose CPU
+     * time and allocation the JVM does not report. The steps of stepped
+     * agents in tick mode run on the platform threads of the
+     * TickScheduler, and are measured there.
+     */
+    protected static final String AGENTS_NOT_METERED =
+            "WARNING: agents run on virtual threads, so their CPU time and allocation"
+                    + " are not measured and none is flagged as abnormal, except for the"
+                    + " steps of stepped agents in tick mode. Use -engine pool to measure them.";
+
+    /**
+     * Checks the residents for abnormal resource use.
+     */
+    protected final ScheduledExecutorService auditor =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "agent-auditor");
+                t.setDaemon(true);
+                return t;
+            });
+
+    /**
+     * The time between two runs of the mail forwarder, in milliseconds.
+     */
+    public static final long MAIL_FORWARD_INTERVAL = 5000;
+
+    /**
+     * The mailbox of the Bailiff, or null if it keeps none.
+     */
+    protected volatile Mailbox mailbox;
+
+    /**
+     * Forwards the mail for other users, while there is a mailbox.
+     */
+    protected volatile MailForwarder mailForwarder;
+
+    /**
+     * The scheduler that drives SteppedAgents in tick mode, or null if all
+     * agents run on the AgentEngine.
+     */
+    protected volatile TickScheduler ticker;
+
+    /**
+     * The registry of active agents in the Bailiff.
+     */
+    AgentRegistry<agitator> localAgents = new AgentRegistry<agitator>();
+
+    /**
+     * Live counters and latency histograms, exported through JMX.
+     */
+    protected final BailiffMetrics metrics =
+            new BailiffMetrics(() -> localAgents.size());
+
+    /**
+     * The name the metrics are registered under, or null.
+     */
+    protected ObjectName metricsName;
+
+    /**
+     * Resolved entry point and getUUID handles, per agent class.
+     */
+    protected final EntryPointCache entryPoints = new EntryPointCache();
+
+    /**
+     * The time after which the code of an agent type that has not been
+     * seen is released, in milliseconds.
+     */
+    public static final long CODEBASE_IDLE_TIME = 30 * 60 * 1000;
+
+    /**
+     * The class loaders and classes of the codebases agents arrive from.
+     */
+    protected CodebaseRegistry codebases;
+
+    /**
+     * Local listeners to arrivals, departures and tags.
+     */
+    protected final CopyOnWriteArrayList<RosterListener> rosterListeners =
+            new CopyOnWriteArrayList<RosterListener>();
 
 
     protected void debugMsg(String s) {
@@ -83,6 +267,15 @@ public class Bailiff
         return user;
     }
 
+    /**
+     * Returns the live counters of this Bailiff, as exported through JMX.
+     *
+     * @return The metrics.
+     */
+    public BailiffMetricsMBean getMetrics() {
+        return metrics;
+    }
+
     /**
      * Returns the host name string of this Bailiff
      *
@@ -92,6 +285,144 @@ public class Bailiff
         return host;
     }
 
+    /**
+     * Sets the maximum number of agents this Bailiff admits. Places held
+     * by reservations count as agents.
+     *
+     * @param max The maximum number of agents, or 0 for no limit.
+     */
+    public void setMaxAgents(int max) {
+        maxAgents = max;
+        loadChanged();
+    }
+
+    /**
+     * Sets the time a shutdown may take to move the residents away.
+     *
+     * @param ms The drain time in milliseconds.
+     */
+    public void setDrainTime(long ms) {
+        drainMillis = ms;
+    }
+
+    /**
+     * Opens the mailbox of the Bailiff and starts forwarding the mail
+     * for other users. The messages kept in the file are held again.
+     *
+     * @param file The file of the mailbox.
+     * @throws IOException Thrown if the file can not be used.
+     */
+    public void openMailbox(File file) throws IOException {
+        Mailbox box = new Mailbox(file, log);
+        mailbox = box;
+        mailForwarder = new MailForwarder(box, user, bf_lookupcache,
+                MAIL_FORWARD_INTERVAL, log);
+        log.entry("<mailbox file=\"" + file + "\" messages=\"" + box.size() + "\"/>");
+        mailForwarder.changed();
+    }
+
+    /**
+     * Returns the current load of the Bailiff, as published in the lookup
+     * servers.
+     *
+     * @return A new load entry.
+     */
+    public BailiffLoad currentLoad() {
+        int residents = localAgents.size();
+        boolean itPresent = false;
+        for (agitator agt : localAgents.agents()) {
+            if (agt.isIt()) {
+                itPresent = true;
+                break;
+            }
+        }
+        int max = maxAgents;
+        Integer load = (0 < max)
+                ? (int) Math.min(100L, 100L * (residents + reservations.size()) / max)
+                : null;
+        return new BailiffLoad(residents, itPresent, load);
+    }
+
+    /**
+     * Tells the LoadPublisher that the load may have changed.
+     */
+    protected void loadChanged() {
+        LoadPublisher publisher = loadPublisher;
+        if (publisher != null) {
+            publisher.changed();
+        }
+    }
+
+    /**
+     * Puts the Bailiff in tick mode. Agents arriving from now on that are
+     * SteppedAgents are driven by the scheduler instead of running their
+     * entry point on a thread of their own.
+     *
+     * @param scheduler The scheduler to use, or null to leave tick mode.
+     */
+    public void setTickScheduler(TickScheduler scheduler) {
+        ticker = scheduler;
+        log.entry("<tickMode scheduler=\"" + scheduler + "\"/>");
+    }
+
+    /**
+     * Subscribes a local listener to the roster events of this Bailiff.
+     *
+     * @param l The listener to add.
+     */
+    public void addRosterListener(RosterListener l) {
+        rosterListeners.addIfAbsent(l);
+    }
+
+    /**
+     * Unsubscribes a local listener from the roster events of this Bailiff.
+     *
+     * @param l The listener to remove.
+     */
+    public void removeRosterListener(RosterListener l) {
+        rosterListeners.remove(l);
+    }
+
+    protected void fireAgentArrived(UUID id, boolean isIt) {
+        for (RosterListener l : rosterListeners) {
+            try {
+                l.agentArrived(id, isIt);
+            } catch (RuntimeException e) {
+                log.entry(e);
+            }
+        }
+    }
+
+    protected void fireAgentDeparted(UUID id) {
+        for (RosterListener l : rosterListeners) {
+            try {
+                l.agentDeparted(id);
+            } catch (RuntimeException e) {
+                log.entry(e);
+            }
+        }
+    }
+
+    protected void fireAgentTagged(UUID id, UUID by) {
+        for (RosterListener l : rosterListeners) {
+            try {
+                l.agentTagged(id, by);
+            } catch (RuntimeException e) {
+                log.entry(e);
+            }
+        }
+    }
+
+    protected void fireBailiffDraining(long deadline) {
+        for (RosterListener l : rosterListeners) {
+            try {
+                l.bailiffDraining(deadline);
+            } catch (RuntimeException e) {
+                log.entry(e);
+            }
+        }
+    }
+
     /**
      * A helper class to receive callbacks from the JoinManager.
      *
@@ -106,7 +437,7 @@ public class Bailiff
         /**
          * The ServiceID returned by the JoinManager.
          */
-        protected ServiceID myServiceID;
+        protected volatile ServiceID myServiceID;
 
         /**
          * Creates a new IDListener.
@@ -140,78 +471,73 @@ public class Bailiff
 
     /**
      * This class wraps and encapsulates the remote object to which the
-     * Bailiff lends a thread of execution.
+     * Bailiff lends a thread of execution. An agitator is a task that is
+     * submitted to the Bailiff's AgentEngine.
      */
-    private class agitator extends Thread {
+    private class agitator implements Runnable {
 
         protected TagPlayer myObj;    // The client object
         protected String myCb;    // The name of the entry point method
         protected Object[] myArgs;    // Arguments to the entry point method
-        protected java.lang.reflect.Method myMethod; // Ref. to entry point method
-        protected java.lang.reflect.Method myUUIDMethod; // Ref. to getUUID method
-        protected Class[] myParms; // Class reflection of arguments
+        protected java.lang.invoke.MethodHandle myMethod; // Entry point handle
+        protected ClassLoader myLoader; // The client object's classloader
         protected UUID id;
-        protected Object retour;
+        private AgentRegistry.Registration<agitator> myReg; // Our registration
+        private final MigrationTicket myPlace; // Held until we are registered
+        private RosterListener myListener; // myObj, if it listens to the roster
+        private HostContext.Lease myContext; // Lent to myObj, if it is ContextAware
+        final AgentMeter meter = new AgentMeter(); // CPU and allocation
+        volatile boolean abnormal; // As of the last assessment
+        final long arrivedAt = System.currentTimeMillis();
 
         /**
          * Creates a new agitator by copying th references to the client
          * object, the name of the entry method and the arguments to
          * the entry method.
          *
-         * @param obj  The client object, holding the method to execute
-         * @param cb   The name of the entry point method (callback)
-         * @param args Arguments to the entry point method
+         * @param obj   The client object, holding the method to execute
+         * @param cb    The name of the entry point method (callback)
+         * @param args  Arguments to the entry point method
+         * @param place The place claimed for the client object
          */
-        public agitator(TagPlayer obj, String cb, Object[] args) {
+        public agitator(TagPlayer obj, String cb, Object[] args, MigrationTicket place) {
             myObj = obj;
             myCb = cb;
             myArgs = args;
-
-            // If the array of arguments are non-zero we must create an array
-            // of Class so that we can match the entry point method's name with
-            // the parameter signature. So, the myParms[] array is loaded with
-            // the class of each entry point parameter.
+            myPlace = place;
 
             try {
                 initializeUUID();
+            } catch (NoSuchMethodException e) {
+                // Not every agent has a UUID of its own, see below.
             } catch (Throwable t) {
                 log.entry(t);
             }
-
-
-            if (0 < args.length) {
-                myParms = new Class[args.length];
-                for (int i = 0; i < args.length; i++) {
-                    myParms[i] = args[i].getClass();
-                }
-            } else {
-                myParms = null;
+            if (id == null) {
+                // The registry needs a key, so an agent without a UUID is
+                // known by a made-up one for as long as it stays here.
+                id = UUID.randomUUID();
             }
         }
 
         /**
          * This method locates the method that is the client object's requested
-         * entry point. It also sets the classloader of the current instance
-         * to follow the client's classloader.
+         * entry point. The entry point is matched by name and by the classes
+         * of the arguments, and is resolved only once per agent class. It
+         * also registers the client's codebase and records its classloader,
+         * which the executing thread follows while the agent runs.
          *
          * @throws NoSuchMethodException Thrown if the entry point specified
          *                               in the constructor can not be found.
          */
         public void initialize() throws java.lang.NoSuchMethodException {
-            myMethod = myObj.getClass().getMethod(myCb, myParms);
-            setContextClassLoader(myObj.getClass().getClassLoader());
+            myMethod = entryPoints.entryPoint(myObj, myCb, myArgs);
+            myLoader = codebases.arrived(myObj.getClass());
         }
 
         //initialize UUID of agitator with UUID of object
-        public void initializeUUID() throws java.lang.NoSuchMethodException {
-            myUUIDMethod = myObj.getClass().getMethod("getUUID");
-            setContextClassLoader(myObj.getClass().getClassLoader());
-            try {
-                retour = myUUIDMethod.invoke(myObj);
-            } catch (Throwable t) {
-                log.entry(t);
-            }
-            id = (UUID) retour;
+        public void initializeUUID() throws Throwable {
+            id = entryPoints.getUUID(myObj);
         }
 
 
@@ -223,6 +549,51 @@ public class Bailiff
             return myObj.itAgent();
         }
 
+        public boolean passIt() {
+            return myObj.passIt();
+        }
+
+        public boolean isMigrating() {
+            return myObj.isMigrating();
+        }
+
+        /**
+         * Asks the client object to stop here and to tell how it is
+         * restarted elsewhere.
+         *
+         * @return The parcel, or null if the object can not be relocated.
+         */
+        public MigrationParcel relocate() {
+            if (myObj instanceof Relocatable) {
+                try {
+                    return ((Relocatable) myObj).relocate();
+                } catch (RuntimeException e) {
+                    log.entry(e);
+                }
+            }
+            return null;
+        }
+
+        public AgentInfo getInfo() {
+            return new AgentInfo(id, myObj.isIt(), myObj.isMigrating());
+        }
+
+        public int getHops() {
+            return myObj.getHops();
+        }
+
+        /**
+         * Returns the resources used by the agent so far.
+         *
+         * @param now      The current time in milliseconds.
+         * @param abnormal True if the use is abnormal.
+         * @return The statistics of the agent.
+         */
+        public AgentStats getStats(long now, boolean abnormal) {
+            return new AgentStats(id, meter.cpuNanos(), meter.allocatedBytes(),
+                    now - arrivedAt, getHops(), abnormal);
+        }
+
         //getUUID
         public UUID getUUID() {
             return id;
@@ -235,45 +606,165 @@ public class Bailiff
         }
 
         /**
-         * Overrides the default run() method in class Thread (a superclass to
-         * us). Then we invoke the requested entry point on the client object.
+         * Invoked by the AgentEngine. The executing thread adopts the client's
+         * classloader and we invoke the requested entry point on the client
+         * object. Engine threads may be reused, so the previous context
+         * classloader is restored when the agent leaves.
+         * <p>
+         * If the Bailiff is in tick mode and the client is a SteppedAgent,
+         * the agent is only admitted here and then handed to the
+         * TickScheduler, and this task ends at once.
          */
         public void run() {
+            Thread current = Thread.currentThread();
+            ClassLoader previousLoader = current.getContextClassLoader();
+            current.setContextClassLoader(myLoader);
+            try {
+                TickScheduler scheduler = ticker;
+                if (scheduler != null && myObj instanceof SteppedAgent) {
+                    runStepped(scheduler);
+                } else {
+                    runAgent();
+                }
+            } finally {
+                current.setContextClassLoader(previousLoader);
+            }
+        }
 
-            synchronized (localAgents) {
-                while (localAgents.containsKey(id)) {
-                    try {
-                        // We need to wait in case an agitator this agitator will migrate in the same
-                        // bailiff
-                        localAgents.wait();
-                    } catch (InterruptedException e) {
-                        log.entry("[InterruptedException] agitator " + id);
-                    }
+        /**
+         * Adds the agent to the registry of current agents and tells the
+         * other residents about it. If a previous incarnation of this agent
+         * has migrated back into this Bailiff and is still registered, we
+         * wait for that one only.
+         * <p>
+         * The sender has already let go of the agent, so a failure here is
+         * always logged, and what was done of the admission is undone.
+         *
+         * @return True if the agent was admitted and may run.
+         */
+        private boolean admit() {
+            try {
+                enter();
+                return true;
+            } catch (RuntimeException e) {
+                log.entry("<lost agent=\"" + id + "\" reason=\"" + e + "\"/>");
+                log.entry(e);
+                if (myReg != null) {
+                    leave();
+                }
+                return false;
+            } finally {
+                reservations.release(myPlace);
+            }
+        }
+
+        private void enter() {
+            while (myReg == null) {
+                try {
+                    myReg = localAgents.register(id, this);
+                } catch (InterruptedException e) {
+                    log.entry("[InterruptedException] agitator " + id);
                 }
+            }
+            // Registered, so we are counted as a resident from now on.
+            reservations.release(myPlace);
+
+            // Tell the other residents, then let the agent listen to the
+            // roster itself if it wants to.
+            metrics.migratedIn(localAgents.size());
+            loadChanged();
+
+            HostContext context = agentContext;
+            if (context != null && myObj instanceof ContextAware) {
+                myContext = context.lend();
+                ((ContextAware) myObj).setAgentContext(myContext);
+            }
+
+            fireAgentArrived(id, myObj.isIt());
+            if (myObj instanceof RosterListener) {
+                myListener = (RosterListener) myObj;
+                addRosterListener(myListener);
+            }
+        }
 
-                // Add the agent in the list of current agents
-                localAgents.put(id, this);
-                //debugMsg("[" + id + "] Start running");
-                //debugMsg("[" + id + "] " + localAgents.toString());
+        /**
+         * Removes the agent from the registry, wakes a possible waiting
+         * incarnation and tells the other residents.
+         */
+        private void leave() {
+            if (myListener != null) {
+                removeRosterListener(myListener);
             }
+            if (myContext != null) {
+                myContext.close();    // Drops the listeners left behind
+            }
+            localAgents.release(myReg);
+            metrics.left(myObj.isMigrating());
+            loadChanged();
+            fireAgentDeparted(id);
+            if (debug) {
+                log.entry(getStats(System.currentTimeMillis(), false).toString());
+            }
+        }
 
+        private void runAgent() {
+            if (!admit()) {
+                return;
+            }
+            meter.begin();
             try {
-                myMethod.invoke(myObj, myArgs);
+                EntryPointCache.invoke(myMethod, myObj, myArgs);
             } catch (Throwable t) {
                 if (debug) {
                     log.entry(t);
                 }
             } finally {
-                synchronized (localAgents) {
-                    // Remove the agent from list of current agents
-                    localAgents.remove(id);
-                    //debugMsg("[" + id + "] " + localAgents.toString());
-                    //debugMsg("[" + id + "] End running");
-
-                    // Notify a possible waiting thread
-                    localAgents.notify();
+                meter.end();
+                leave();
+            }
+        }
+
+        private void runStepped(TickScheduler scheduler) {
+            final SteppedAgent stepped = (SteppedAgent) myObj;
+            if (!admit()) {
+                return;
+            }
+            meter.begin();
+            try {
+                stepped.arrive(myArgs);
+            } catch (Throwable t) {
+                if (debug) {
+                    log.entry(t);
                 }
+                leave();
+                return;
+            } finally {
+                meter.end();
             }
+
+            scheduler.add(new TickScheduler.Task() {
+                public boolean tick(long deadlineNanos) {
+                    Thread current = Thread.currentThread();
+                    ClassLoader previousLoader = current.getContextClassLoader();
+                    current.setContextClassLoader(myLoader);
+                    boolean again = false;
+                    meter.begin();
+                    try {
+                        again = stepped.step(deadlineNanos);
+                    } catch (Throwable t) {
+                        if (debug) {
+                            log.entry(t);
+                        }
+                    } finally {
+                        meter.end();
+                        current.setContextClassLoader(previousLoader);
+                        if (!again) {
+                            leave();
+                        }
+                    }
+                    return again;
+                }
+            });
         }
     } // class agitator
 
@@ -290,15 +781,20 @@ public class Bailiff
      * @returns The ping response.
      */
     public String ping() throws java.rmi.RemoteException {
-        if (debug) {
-            log.entry("<ping/>");
-        }
+        long t0 = System.nanoTime();
+        try {
+            if (debug) {
+                log.entry("<ping/>");
+            }
 
-        return ("Ping echo from Bailiff on host=" + host
-                + " [" + myInetAddress.getHostAddress() + "] "
-                + " room=" + room
-                + " user=" + user
-                + ".");
+            return ("Ping echo from Bailiff on host=" + host
+                    + " [" + myInetAddress.getHostAddress() + "] "
+                    + " room=" + room
+                    + " user=" + user
+                    + ".");
+        } finally {
+            metrics.record(BailiffMetrics.Call.PING, t0);
+        }
     }
 
     // In BailiffInterface:
@@ -310,10 +806,15 @@ public class Bailiff
      * @returns The property value.
      */
     public String getProperty(String key) {
-        if (debug) {
-            log.entry("<getProperty key=\"" + key + "\"/>");
+        long t0 = System.nanoTime();
+        try {
+            if (debug) {
+                log.entry("<getProperty key=\"" + key + "\"/>");
+            }
+            return (String) propertyMap.get(key.toLowerCase());
+        } finally {
+            metrics.record(BailiffMetrics.Call.GET_PROPERTY, t0);
         }
-        return (String) propertyMap.get(key.toLowerCase());
     }
 
     // In BailiffInterface:
@@ -336,9 +837,9 @@ public class Bailiff
 
     /**
      * Entry point for remote clients who want to pass an object to be
-     * executed by the Bailiff. The Bailiff starts a new thread for the
-     * object and calls the specified entry (callback) method. When that
-     * method returns, the thread exits and the object becomes inert.
+     * executed by the Bailiff. The Bailiff submits the object to its
+     * AgentEngine, which calls the specified entry (callback) method. When
+     * that method returns, the task ends and the object becomes inert.
      *
      * @param obj  The object to execute.
      * @param cb   The name of the entry (callback) method to call.
@@ -346,58 +847,453 @@ public class Bailiff
      *             the array must match the entry method's signature.
      * @throws NoSuchMethodException Thrown if the specified entry method
      *                               does not exist with the expected signature.
+     * @throws RemoteException       Thrown if the AgentEngine can not admit
+     *                               the object.
      */
     public void migrate(TagPlayer obj, String cb, Object[] args)
             throws
             java.rmi.RemoteException,
             java.lang.NoSuchMethodException {
-        log.entry("<migrate obj=\"" + obj + "\" isIT=\"" + (obj.isIt() ? "YES" : "NO") + "\" cb=\"" + cb
-                + "\" args=\"" + args + "\"/>");
-
-        agitator agt = new agitator(obj, cb, args);
-        agt.initialize();
-        //System.out.println( agt + " added to hmap");
-        agt.start();
+        long t0 = System.nanoTime();
+        try {
+            MigrationTicket place = reservations.hold(localAgents::size, maxAgents);
+            if (place == null) {
+                throw new java.rmi.RemoteException("Bailiff is full");
+            }
+            admit(obj, cb, args, place);
+        } finally {
+            metrics.record(BailiffMetrics.Call.MIGRATE, t0);
+        }
     }
 
     // In BailiffInterface:
 
     @Override
-    public ArrayList<UUID> getAgentsNames() throws RemoteException {
-        Set<UUID> keySet = localAgents.keySet();
-        return new ArrayList<>(keySet);
+    public boolean[] migrateBatch(ArrayList<MigrationParcel> parcels)
+            throws RemoteException {
+        long t0 = System.nanoTime();
+        try {
+            boolean[] admitted = new boolean[parcels.size()];
+
+            log.entry("<migrateBatch size=\"" + parcels.size() + "\"/>");
+
+            // Admit the group up to the capacity left, in order.
+            for (int i = 0; i < parcels.size(); i++) {
+                MigrationTicket place = reservations.hold(localAgents::size, maxAgents);
+                if (place == null) {
+                    break;
+                }
+                MigrationParcel p = parcels.get(i);
+                try {
+                    admit(p.getAgent(), p.getCallback(), p.getArgs(), place);
+                    admitted[i] = true;
+                } catch (java.rmi.RemoteException | java.lang.NoSuchMethodException e) {
+                    log.entry("<migrateBatchFailed obj=\"" + p.getAgent() + "\" reason=\""
+                            + e + "\"/>");
+                }
+            }
+            return admitted;
+        } finally {
+            metrics.record(BailiffMetrics.Call.MIGRATE_BATCH, t0);
+        }
     }
 
-    // In BailiffInterface:
-
-    @Override
-    public boolean isIt(UUID name) throws RemoteException, NoSuchAgentException {
-        // Is the agent in the Bailiff ?
-        //debugMsg("Try to find UUID: [" + name.toString() + "] in " + localAgents.toString());
+    /**
+     * Starts an agent that has been admitted, by migrate or by commit.
+     * The agent's place stays claimed until it is registered, or is
+     * released here if it can not be started.
+     *
+     * @param obj   The object to execute.
+     * @param cb    The name of the entry (callback) method to call.
+     * @param args  Array of arguments to the entry method.
+     * @param place The place claimed for the agent.
+     * @throws NoSuchMethodException Thrown if the specified entry method
+     *                               does not exist with the expected signature.
+     * @throws RemoteException       Thrown if the AgentEngine can not admit
+     *                               the object.
+     */
+    protected void admit(TagPlayer obj, String cb, Object[] args, MigrationTicket place)
+            throws
+            java.rmi.RemoteException,
+            java.lang.NoSuchMethodException {
+        boolean started = false;
+        try {
+            if (draining) {
+                throw new java.rmi.RemoteException("Bailiff is shutting down");
+            }
 
-        if (!localAgents.containsKey(name)) {
-            throw new NoSuchAgentException(name);
-        }
+            log.entry("<migrate obj=\"" + obj + "\" isIT=\"" + (obj.isIt() ? "YES" : "NO") + "\" cb=\"" + cb
+                    + "\" args=\"" + args + "\"/>");
 
-        return localAgents.get(name).isIt();
+            agitator agt = new agitator(obj, cb, args, place);
+            agt.initialize();
+            //System.out.println( agt + " added to hmap");
+            try {
+                engine.execute(agt);
+                started = true;
+            } catch (RejectedExecutionException e) {
+                log.entry("<rejected obj=\"" + obj + "\" engine=\"" + engine.getMode() + "\"/>");
+                throw new java.rmi.RemoteException("Bailiff can not admit more agents", e);
+            }
+        } finally {
+            if (!started) {
+                reservations.release(place);
+            }
+        }
+    }
+
+    // In BailiffInterface:
+
+    @Override
+    public MigrationTicket reserve(UUID agent, boolean isIt) throws RemoteException {
+        long t0 = System.nanoTime();
+        try {
+            MigrationTicket ticket = draining ? null
+                    : reservations.reserve(agent, isIt, localAgents::size, maxAgents);
+            if (ticket != null) {
+                loadChanged();
+            }
+            if (debug) {
+                log.entry("<reserve agent=\"" + agent + "\" granted=\""
+                        + (ticket != null ? "YES" : "NO") + "\"/>");
+            }
+            return ticket;
+        } finally {
+            metrics.record(BailiffMetrics.Call.RESERVE, t0);
+        }
+    }
+
+    // In BailiffInterface:
+
+    @Override
+    public void commit(MigrationTicket ticket, TagPlayer obj, String cb, Object[] args)
+            throws RemoteException, NoSuchMethodException, NoSuchReservationException {
+        long t0 = System.nanoTime();
+        try {
+            if (!reservations.claim(ticket)) {
+                throw new NoSuchReservationException(ticket.getSerial(), ticket.getAgent());
+            }
+            admit(obj, cb, args, ticket);
+        } finally {
+            metrics.record(BailiffMetrics.Call.COMMIT, t0);
+        }
+    }
+
+    // In BailiffInterface:
+
+    @Override
+    public void cancel(MigrationTicket ticket) throws RemoteException {
+        long t0 = System.nanoTime();
+        try {
+            if (reservations.cancel(ticket)) {
+                loadChanged();
+            }
+        } finally {
+            metrics.record(BailiffMetrics.Call.CANCEL, t0);
+        }
+    }
+
+    // In BailiffInterface:
+
+    @Override
+    public ArrayList<UUID> getAgentsNames() throws RemoteException {
+        long t0 = System.nanoTime();
+        try {
+            return localAgents.names();
+        } finally {
+            metrics.record(BailiffMetrics.Call.GET_AGENTS_NAMES, t0);
+        }
+    }
+
+    // In BailiffInterface:
+
+    @Override
+    public ArrayList<AgentInfo> getAgentsInfo() throws RemoteException {
+        long t0 = System.nanoTime();
+        try {
+            ArrayList<agitator> agents = localAgents.agents();
+            ArrayList<AgentInfo> roster = new ArrayList<AgentInfo>(agents.size());
+            for (agitator agt : agents) {
+                roster.add(agt.getInfo());
+            }
+            return roster;
+        } finally {
+            metrics.record(BailiffMetrics.Call.GET_AGENTS_INFO, t0);
+        }
+    }
+
+    // In BailiffInterface:
+
+    /**
+     * Returns the resources used by each resident agent. An agent is
+     * flagged as abnormal when its CPU time or allocation per second of
+     * residence is more than ABNORMAL_FACTOR times the median of the
+     * residents and above an absolute floor.
+     *
+     * @return The statistics of the resident agents.
+     */
+    @Override
+    public ArrayList<AgentStats> getAgentsStats() throws RemoteException {
+        long t0 = System.nanoTime();
+        try {
+            return assess();
+        } finally {
+            metrics.record(BailiffMetrics.Call.GET_AGENTS_STATS, t0);
+        }
+    }
+
+    /**
+     * Assesses the resource use of the residents, as getAgentsStats. It
+     * also runs every AUDIT_INTERVAL, so that an agent is logged when it
+     * becomes abnormal, whether anyone asks or not.
+     *
+     * @return The statistics of the resident agents.
+     */
+    protected ArrayList<AgentStats> assess() {
+        ArrayList<agitator> agents = localAgents.agents();
+        int n = agents.size();
+        long now = System.currentTimeMillis();
+        long[] cpu = new long[n];
+        long[] alloc = new long[n];
+        double[] cpuRate = new double[n];
+        double[] allocRate = new double[n];
+        for (int i = 0; i < n; i++) {
+            agitator agt = agents.get(i);
+            long uptime = Math.max(1, now - agt.arrivedAt);
+            cpu[i] = agt.meter.cpuNanos();
+            alloc[i] = agt.meter.allocatedBytes();
+            cpuRate[i] = (double) cpu[i] / uptime;
+            allocRate[i] = (double) alloc[i] / uptime;
+        }
+        double cpuMedian = median(cpuRate);
+        double allocMedian = median(allocRate);
+
+        ArrayList<AgentStats> stats = new ArrayList<AgentStats>(n);
+        for (int i = 0; i < n; i++) {
+            boolean abnormal =
+                    (ABNORMAL_MIN_CPU <= cpu[i]
+                            && ABNORMAL_FACTOR * cpuMedian < cpuRate[i])
+                            || (ABNORMAL_MIN_ALLOCATION <= alloc[i]
+                            && ABNORMAL_FACTOR * allocMedian < allocRate[i]);
+            agitator agt = agents.get(i);
+            AgentStats as = agt.getStats(now, abnormal);
+            if (abnormal && !agt.abnormal) {
+                log.entry(as.toString());
+            }
+            agt.abnormal = abnormal;
+            stats.add(as);
+        }
+        return stats;
+    }
+
+    private void audit() {
+        try {
+            assess();
+        } catch (RuntimeException e) {
+            // Keep the audits going.
+            log.entry(e);
+        }
+    }
+
+    // In BailiffInterface:
+
+    @Override
+    public boolean enqueue(MailMessage msg) throws RemoteException {
+        long t0 = System.nanoTime();
+        try {
+            Mailbox box = mailbox;
+            if (box == null || msg == null) {
+                return false;
+            }
+            boolean held = box.enqueue(msg, System.currentTimeMillis());
+            if (held && !msg.getToUser().equals(user)) {
+                mailForwarder.changed();
+            }
+            return held;
+        } catch (IOException e) {
+            log.entry(e);
+            throw new RemoteException("mailbox failed", e);
+        } finally {
+            metrics.record(BailiffMetrics.Call.ENQUEUE, t0);
+        }
+    }
+
+    // In BailiffInterface:
+
+    @Override
+    public int enqueueBatch(ArrayList<MailMessage> msgs) throws RemoteException {
+        long t0 = System.nanoTime();
+        try {
+            Mailbox box = mailbox;
+            if (box == null || msgs == null) {
+                return 0;
+            }
+            long now = System.currentTimeMillis();
+            int held = 0;
+            boolean forward = false;
+            for (MailMessage msg : msgs) {
+                if (box.enqueue(msg, now)) {
+                    held++;
+                    forward |= !msg.getToUser().equals(user);
+                }
+            }
+            if (forward) {
+                mailForwarder.changed();
+            }
+            return held;
+        } catch (IOException e) {
+            log.entry(e);
+            throw new RemoteException("mailbox failed", e);
+        } finally {
+            metrics.record(BailiffMetrics.Call.ENQUEUE_BATCH, t0);
+        }
+    }
+
+    // In BailiffInterface:
+
+    @Override
+    public ArrayList<MailMessage> drain(String toUser, int max) throws RemoteException {
+        long t0 = System.nanoTime();
+        try {
+            Mailbox box = mailbox;
+            if (box == null || toUser == null) {
+                return new ArrayList<MailMessage>();
+            }
+            return box.drain(toUser, max);
+        } catch (IOException e) {
+            log.entry(e);
+            throw new RemoteException("mailbox failed", e);
+        } finally {
+            metrics.record(BailiffMetrics.Call.DRAIN, t0);
+        }
+    }
+
+    /**
+     * Returns the median of the non-negative rates, or 0 if there are none.
+     * Negative rates belong to agents that could not be measured.
+     */
+    private static double median(double[] rates) {
+        double[] known = new double[rates.length];
+        int count = 0;
+        for (double rate : rates) {
+            if (0 <= rate) {
+                known[count++] = rate;
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        Arrays.sort(known, 0, count);
+        return known[count / 2];
+    }
+
+    // In BailiffInterface:
+
+    @Override
+    public boolean isIt(UUID name) throws RemoteException, NoSuchAgentException {
+        long t0 = System.nanoTime();
+        try {
+            // Is the agent in the Bailiff ?
+            //debugMsg("Try to find UUID: [" + name.toString() + "] in " + localAgents.toString());
+
+            agitator agt = localAgents.get(name);
+            if (agt == null) {
+                throw new NoSuchAgentException(name);
+            }
+
+            return agt.isIt();
+        } finally {
+            metrics.record(BailiffMetrics.Call.IS_IT, t0);
+        }
     }
 
     // In BailiffInterface:
 
     @Override
     public boolean itAgent(UUID name) throws RemoteException, NoSuchAgentException {
-        // Is the agent in the Bailiff ?
-        //debugMsg("Try to find UUID: [" + name.toString() + "] in " + localAgents.toString());
+        long t0 = System.nanoTime();
+        try {
+            // Is the agent in the Bailiff ?
+            //debugMsg("Try to find UUID: [" + name.toString() + "] in " + localAgents.toString());
+
+            agitator agt = localAgents.get(name);
+            if (agt == null) {
+                throw new NoSuchAgentException(name);
+            }
+
+            boolean res = agt.itAgent();
+            if (res) {
+                log.entry("<it agent=\"" + name + "\"/>");
+                metrics.tagged();
+                fireAgentTagged(name, null);
+            }
 
-        if (!localAgents.containsKey(name)) {
-            throw new NoSuchAgentException(name);
+            return res;
+        } finally {
+            metrics.record(BailiffMetrics.Call.IT_AGENT, t0);
         }
+    }
 
-        boolean res = localAgents.get(name).itAgent();
-        if (res)
-            log.entry("<it agent=\"" + name + "\"/>");
+    // In BailiffInterface:
 
-        return res;
+    @Override
+    public UUID tagAnyone(UUID tagger) throws RemoteException, NoSuchAgentException {
+        long t0 = System.nanoTime();
+        try {
+            agitator self = localAgents.get(tagger);
+            if (self == null) {
+                throw new NoSuchAgentException(tagger);
+            }
+
+            // Only the 'it' agent may tag.
+            if (!self.isIt()) {
+                return null;
+            }
+
+            // Walk the residents from a random starting point so that the same
+            // agent is not always the victim. itAgent() is atomic on the agent
+            // and refuses while it is migrating, so a candidate that starts to
+            // leave after we looked at it is simply skipped.
+            ArrayList<agitator> agents = localAgents.agents();
+            int n = agents.size();
+            if (n == 0) {
+                return null;
+            }
+            int start = ThreadLocalRandom.current().nextInt(n);
+            for (int i = 0; i < n; i++) {
+                agitator agt = agents.get((start + i) % n);
+                if (agt == self || agt.isIt() || agt.isMigrating()) {
+                    continue;
+                }
+                if (handOver(self, agt)) {
+                    log.entry("<it agent=\"" + agt.getUUID() + "\" by=\"" + tagger + "\"/>");
+                    metrics.tagged();
+                    fireAgentTagged(agt.getUUID(), tagger);
+                    return agt.getUUID();
+                }
+            }
+            return null;
+        } finally {
+            metrics.record(BailiffMetrics.Call.TAG_ANYONE, t0);
+        }
+    }
+
+    /**
+     * Tags an agent for the 'it' agent and takes the 'it' state from the
+     * tagger, as one step with respect to the other tags in this Bailiff.
+     *
+     * @param tagger The 'it' agent.
+     * @param target The agent to tag.
+     * @return True if the target was tagged.
+     */
+    private boolean handOver(agitator tagger, agitator target) {
+        synchronized (tagLock) {
+            if (!tagger.isIt() || !target.itAgent()) {
+                return false;
+            }
+            tagger.passIt();
+            return true;
+        }
     }
 
     /**
@@ -423,7 +1319,87 @@ public class Bailiff
             java.rmi.RemoteException,
             java.net.UnknownHostException,
             java.io.IOException {
+        this(room, user, debug, log, AgentEngine.newVirtualEngine());
+    }
+
+    /**
+     * Creates a new Bailiff service instance running its agents on the
+     * given AgentEngine.
+     *
+     * @param room   Informational text field used to designate the 'room'.
+     * @param user   Information text field used to designate the 'user'.
+     * @param debug  If true, diagnostic messages will be logged.
+     * @param log    The Logger to use, or null for a default Logger.
+     * @param engine The engine that executes admitted agents.
+     * @throws RemoteException
+     * @throws UnknownHostException Thrown if the local host address can not
+     *                              be determined.
+     * @throws IOException          Thrown if there is an I/O problem.
+     */
+    public Bailiff(String room, String user, boolean debug, Logger log,
+                   AgentEngine engine)
+            throws
+            java.rmi.RemoteException,
+            java.net.UnknownHostException,
+            java.io.IOException {
+        this(room, user, debug, log, engine, new TimeoutSocketFactory());
+    }
+
+    /**
+     * Creates a new Bailiff service instance exported with the given
+     * client socket factory. The factory is sent to clients inside the
+     * Bailiff's stub, so it decides how long their calls may block.
+     *
+     * @param room   Informational text field used to designate the 'room'.
+     * @param user   Information text field used to designate the 'user'.
+     * @param debug  If true, diagnostic messages will be logged.
+     * @param log    The Logger to use, or null for a default Logger.
+     * @param engine The engine that executes admitted agents.
+     * @param csf    The client socket factory, or null for the RMI default.
+     * @throws RemoteException
+     * @throws UnknownHostException Thrown if the local host address can not
+     *                              be determined.
+     * @throws IOException          Thrown if there is an I/O problem.
+     */
+    public Bailiff(String room, String user, boolean debug, Logger log,
+                   AgentEngine engine, java.rmi.server.RMIClientSocketFactory csf)
+            throws
+            java.rmi.RemoteException,
+            java.net.UnknownHostException,
+            java.io.IOException {
+        this(room, user, debug, log, engine, csf, new JiniDirectory());
+    }
+
+    /**
+     * Creates a new Bailiff service instance that registers itself and
+     * finds its peers in the given directory instead of the Jini lookup
+     * servers.
+     *
+     * @param room      Informational text field used to designate the 'room'.
+     * @param user      Information text field used to designate the 'user'.
+     * @param debug     If true, diagnostic messages will be logged.
+     * @param log       The Logger to use, or null for a default Logger.
+     * @param engine    The engine that executes admitted agents.
+     * @param csf       The client socket factory, or null for the RMI default.
+     * @param directory The directory to register in. It is terminated
+     *                  when the Bailiff shuts down.
+     * @throws RemoteException
+     * @throws UnknownHostException Thrown if the local host address can not
+     *                              be determined.
+     * @throws IOException          Thrown if there is an I/O problem.
+     */
+    public Bailiff(String room, String user, boolean debug, Logger log,
+                   AgentEngine engine, java.rmi.server.RMIClientSocketFactory csf,
+                   BailiffDirectory directory)
+            throws
+            java.rmi.RemoteException,
+            java.net.UnknownHostException,
+            java.io.IOException {
+        super(0, csf, null);
+        this.bf_directory = directory;
         this.log = (log == null) ? new Logger() : log;
+        this.engine = engine;
+        this.codebases = new CodebaseRegistry(CODEBASE_IDLE_TIME, this.log);
         this.user = user;
         this.room = room;
         myInetAddress = java.net.InetAddress.getLocalHost();
@@ -433,38 +1409,375 @@ public class Bailiff
         propertyMap = Collections.synchronizedMap(new HashMap());
         propertyMap.put("hostname", host);
         propertyMap.put("hostaddress", myInetAddress.getHostAddress());
+        propertyMap.put("room", room);
+        propertyMap.put("user", user);
 
         log.entry("STARTING host=" + host + ", room=" + room + ", user="
-                + user + ", debug=" + debug + ".");
+                + user + ", debug=" + debug + ", engine=" + engine.getMode() + ".");
+        if (engine.isVirtual()) {
+            log.entry(AGENTS_NOT_METERED);
+        }
+        auditor.scheduleWithFixedDelay(this::audit, AUDIT_INTERVAL, AUDIT_INTERVAL,
+                TimeUnit.MILLISECONDS);
+
+        // Export the metrics to JMX consoles. A Bailiff without them still
+        // works, so a failure is only logged.
+        try {
+            metricsName = metrics.register
+                    (ManagementFactory.getPlatformMBeanServer(), room, user);
+        } catch (JMException e) {
+            log.entry(e);
+        }
 
         // Create Jini service attributes.
 
         Entry[] bf_attributes =
                 new Entry[]{
                         new Name("Bailiff"),
-                        new Location(host, room, user)
+                        new Location(host, room, user),
+                        currentLoad()
                         //      ,
                         //	new BailiffServiceType (host, room, user)
                 };
 
-        // Create a Jini JoinManager that will help us to register ourselves
-        // with all discovered Jini lookup servers.
+        // Register ourselves in the directory, by default with all
+        // discovered Jini lookup servers.
+
+        bf_idlistener = new IDListener();
+        bf_directory.register(this, bf_attributes, bf_idlistener);
+
+        loadPublisher = new LoadPublisher(bf_directory, (BailiffLoad) bf_attributes[2],
+                this::currentLoad, LOAD_REFRESH_INTERVAL, this.log);
 
-        bf_joinmanager = new JoinManager
-                (
-                        this,            // the service object
-                        bf_attributes,        // the attribute sets
-                        new IDListener(),    // Service ID callback
-                        null,            // Default Service Discovery Manager
-                        null            // Default Lease Renewal Manager
-                );
+        // Keep one discovery cache of all Bailiffs for the lifetime of the
+        // service. Resident agents look up their next hop in it instead of
+        // starting a ServiceDiscoveryManager of their own on every arrival.
+
+        bf_lookupcache = bf_directory.createLookupCache
+                (new ServiceTemplate(null, new Class[]{BailiffInterface.class}, null));
+        agentContext = new HostContext(bf_lookupcache, this, bf_idlistener::getServiceID, log);
     }
 
     /**
-     * Shuts down this Bailiff service.
+     * Shuts down this Bailiff service. The resident agents are first
+     * moved away, within the Bailiff's drain time.
      */
     public void shutdown() {
-        bf_joinmanager.terminate();
+        shutdown(drainMillis);
+    }
+
+    /**
+     * Drains and shuts down this Bailiff service.
+     *
+     * @param deadlineMillis The time the drain may take, in milliseconds.
+     * @return What became of the resident agents.
+     */
+    public DrainReport shutdown(long deadlineMillis) {
+        DrainReport report = drain(deadlineMillis);
+        log.entry(report.toString());
+
+        LoadPublisher publisher = loadPublisher;
+        if (publisher != null) {
+            publisher.shutdown();
+        }
+        MailForwarder forwarder = mailForwarder;
+        if (forwarder != null) {
+            forwarder.shutdown();
+        }
+        Mailbox box = mailbox;
+        if (box != null) {
+            box.close();
+        }
+        bf_directory.terminate();
+        engine.shutdown();
+        codebases.shutdown();
+        auditor.shutdownNow();
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException e) {
+                log.entry(e);
+            }
+        }
+        TickScheduler scheduler = ticker;
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        return report;
+    }
+
+    /**
+     * Moves the resident agents away. The Bailiff stops admitting agents
+     * and asks the residents to leave. Those still resident after half
+     * the time are relocated to peer Bailiffs, in parallel, one batch per
+     * peer. Agents that stop late are shipped in the time that is left.
+     *
+     * @param deadlineMillis The time the drain may take, in milliseconds.
+     * @return What became of the resident agents.
+     */
+    protected DrainReport drain(long deadlineMillis) {
+        long start = System.currentTimeMillis();
+        long deadline = start + deadlineMillis;
+
+        draining = true;
+        int residents = localAgents.size();
+        log.entry("<draining residents=\"" + residents + "\" ms=\"" + deadlineMillis + "\"/>");
+        fireBailiffDraining(deadline);
+
+        // Give the residents the first half of the time to leave.
+        long askUntil = start + deadlineMillis / 2;
+        while (0 < localAgents.size() && System.currentTimeMillis() < askUntil) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+
+        ArrayList<agitator> stragglers = localAgents.agents();
+        int left = Math.max(0, residents - stragglers.size());
+        int moved = 0;
+        int lost = 0;
+
+        if (!stragglers.isEmpty()) {
+            // Stop the stragglers in the first half of the time left, and
+            // ship them in the second. Those stopped meanwhile are shipped
+            // in half of what then remains.
+            Relocation relocation = new Relocation(stragglers);
+            long now = System.currentTimeMillis();
+            ArrayList<MigrationParcel> parcels =
+                    relocation.collect(now + Math.max(0, deadline - now) / 2);
+            moved += evacuate(parcels, deadline);
+            lost += parcels.size();
+
+            now = System.currentTimeMillis();
+            ArrayList<MigrationParcel> late =
+                    relocation.collect(now + Math.max(0, deadline - now) / 2);
+            if (!late.isEmpty()) {
+                moved += evacuate(late, deadline);
+                lost += late.size();
+            }
+            lost -= moved;
+
+            // Those that would not stop are lost unless they have left
+            // by themselves meanwhile.
+            lost += relocation.close();
+            for (agitator agt : relocation.unstopped()) {
+                if (localAgents.contains(agt.getUUID())) {
+                    lost++;
+                } else {
+                    left++;
+                }
+            }
+        }
+
+        return new DrainReport(residents, left, moved, lost,
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * The stopping of the stragglers of a drain. The agents are asked to
+     * stop all at the same time, since each may take a while to come to a
+     * point where it can be stopped, and their parcels are collected as
+     * they come.
+     */
+    private final class Relocation {
+        private final ExecutorService relocators;
+        private final int total;
+        private final ArrayList<MigrationParcel> stopped = new ArrayList<MigrationParcel>();
+        private final ArrayList<agitator> unstopped = new ArrayList<agitator>();
+        private int answered = 0;
+        private boolean closed = false;
+
+        /**
+         * Asks agents to stop here.
+         *
+         * @param agents The agents to relocate.
+         */
+        Relocation(ArrayList<agitator> agents) {
+            total = agents.size();
+            relocators = Executors.newFixedThreadPool
+                    (Math.max(1, Math.min(total, MAX_RELOCATORS)));
+            for (final agitator agt : agents) {
+                relocators.execute(() -> stop(agt));
+            }
+        }
+
+        private void stop(agitator agt) {
+            MigrationParcel p = agt.relocate();
+            synchronized (this) {
+                if (p == null) {
+                    unstopped.add(agt);
+                } else if (closed) {
+                    // Stopped after the drain gave up on it
+                    log.entry("<relocateLate agent=\"" + agt.getUUID() + "\"/>");
+                } else {
+                    stopped.add(p);
+                }
+                answered++;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Waits until all agents have answered or a point in time has
+         * passed, and takes the parcels of those stopped so far.
+         *
+         * @param until The Java system time by which to stop waiting.
+         * @return The parcels not taken before.
+         */
+        synchronized ArrayList<MigrationParcel> collect(long until) {
+            long wait;
+            while (answered < total && 0 < (wait = until - System.currentTimeMillis())) {
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            ArrayList<MigrationParcel> taken = new ArrayList<MigrationParcel>(stopped);
+            stopped.clear();
+            return taken;
+        }
+
+        /**
+         * Gives up on the agents that have not answered. An agent that
+         * stops after this is logged, since it is neither shipped nor
+         * resident any more.
+         *
+         * @return The number of agents that had not answered.
+         */
+        synchronized int close() {
+            closed = true;
+            relocators.shutdownNow();
+            int abandoned = total - answered + stopped.size();
+            if (0 < abandoned) {
+                log.entry("<relocateAbandoned agents=\"" + abandoned + "\"/>");
+            }
+            return abandoned;
+        }
+
+        /**
+         * Returns the agents that could not be stopped, since they are
+         * not Relocatable or were leaving by themselves.
+         */
+        synchronized ArrayList<agitator> unstopped() {
+            return new ArrayList<agitator>(unstopped);
+        }
+    }
+
+    /**
+     * Ships relocated agents to peer Bailiffs. The parcels are dealt out
+     * over the peers and each share is sent with one migrateBatch call,
+     * all shares at the same time. The parcels a peer refuses are dealt
+     * out again over the peers that took all of theirs, until they are
+     * all placed, no such peer is left or the deadline has passed. A
+     * share whose call failed is not sent again, since the peer may have
+     * admitted it.
+     *
+     * @param parcels  The relocated agents.
+     * @param deadline The Java system time by which to give up.
+     * @return The number of agents admitted by a peer.
+     */
+    protected int evacuate(ArrayList<MigrationParcel> parcels, long deadline) {
+        if (parcels.isEmpty()) {
+            return 0;
+        }
+        ArrayList<BailiffInterface> peers = findPeers(deadline);
+        if (peers.isEmpty()) {
+            log.entry("<evacuate peers=\"0\"/>");
+            return 0;
+        }
+
+        ExecutorService senders = Executors.newFixedThreadPool
+                (Math.min(peers.size(), parcels.size()));
+        int moved = 0;
+        ArrayList<MigrationParcel> unplaced = parcels;
+        while (!unplaced.isEmpty() && !peers.isEmpty()
+                && System.currentTimeMillis() < deadline) {
+            int nofPeers = Math.min(peers.size(), unplaced.size());
+            ArrayList<ArrayList<MigrationParcel>> shares =
+                    new ArrayList<ArrayList<MigrationParcel>>(nofPeers);
+            for (int k = 0; k < nofPeers; k++) {
+                shares.add(new ArrayList<MigrationParcel>());
+            }
+            for (int i = 0; i < unplaced.size(); i++) {
+                shares.get(i % nofPeers).add(unplaced.get(i));
+            }
+
+            ArrayList<Future<boolean[]>> results = new ArrayList<Future<boolean[]>>(nofPeers);
+            for (int k = 0; k < nofPeers; k++) {
+                final BailiffInterface peer = peers.get(k);
+                final ArrayList<MigrationParcel> share = shares.get(k);
+                results.add(senders.submit(() -> peer.migrateBatch(share)));
+            }
+
+            // The peers not used in this round may take the refused.
+            ArrayList<BailiffInterface> open =
+                    new ArrayList<BailiffInterface>(peers.subList(nofPeers, peers.size()));
+            ArrayList<MigrationParcel> refused = new ArrayList<MigrationParcel>();
+            for (int k = 0; k < nofPeers; k++) {
+                Future<boolean[]> f = results.get(k);
+                try {
+                    long wait = Math.max(1, deadline - System.currentTimeMillis());
+                    boolean[] admitted = f.get(wait, TimeUnit.MILLISECONDS);
+                    boolean full = false;
+                    for (int i = 0; i < admitted.length; i++) {
+                        if (admitted[i]) {
+                            moved++;
+                        } else {
+                            refused.add(shares.get(k).get(i));
+                            full = true;
+                        }
+                    }
+                    if (!full) {
+                        open.add(peers.get(k));
+                    }
+                } catch (ExecutionException | TimeoutException | InterruptedException e) {
+                    log.entry("<evacuateFailed reason=\"" + e + "\"/>");
+                    f.cancel(true);
+                }
+            }
+            unplaced = refused;
+            peers = open;
+        }
+        senders.shutdownNow();
+        if (!unplaced.isEmpty()) {
+            log.entry("<evacuateRefused agents=\"" + unplaced.size() + "\"/>");
+        }
+        return moved;
+    }
+
+    /**
+     * Looks up other Bailiffs to move agents to. They are taken from the
+     * discovery cache, or waited for if the cache is still empty.
+     *
+     * @param deadline The Java system time by which to give up.
+     * @return The peers found, never this Bailiff.
+     */
+    protected ArrayList<BailiffInterface> findPeers(long deadline) {
+        ArrayList<BailiffInterface> peers = new ArrayList<BailiffInterface>();
+        final ServiceID self = bf_idlistener.getServiceID();
+        ServiceItemFilter others = item -> self == null || !self.equals(item.serviceID);
+        try {
+            ServiceItem[] items = bf_lookupcache.lookup(others, MAX_DRAIN_PEERS);
+            if (items == null || items.length == 0) {
+                ServiceTemplate template =
+                        new ServiceTemplate(null, new Class[]{BailiffInterface.class}, null);
+                long wait = Math.max(1, (deadline - System.currentTimeMillis()) / 4);
+                items = bf_directory.lookup(template, 1, MAX_DRAIN_PEERS, others, wait);
+            }
+            if (items != null) {
+                for (ServiceItem item : items) {
+                    if (item.service instanceof BailiffInterface) {
+                        peers.add((BailiffInterface) item.service);
+                    }
+                }
+            }
+        } catch (java.rmi.RemoteException | InterruptedException e) {
+            log.entry(e);
+        }
+        return peers;
     }
 
     /**
@@ -483,8 +1796,8 @@ public class Bailiff
      * Bailiff and registers it with the Jini lookup server(s).
      * When the main routine exits the JVM will
      * keep on running because the JoinManager will be running and referring
-     * to the Bailiff. There may also be agitator threads active. Some house-
-     * holding counters and a shutdown method are attractive extensions.
+     * to the Bailiff. There may also be agitator tasks active. The house-
+     * holding counters are exported as BailiffMetrics through JMX.
      *
      * @param argv The array of commandline strings, Java standard.
      * @throws java.net.UnknownHostException Thrown if the name of the
@@ -515,13 +1828,49 @@ public class Bailiff
         CmdlnOption logOption = new CmdlnOption("-log",
                 CmdlnOption.OPTIONAL |
                         CmdlnOption.PAR_OPT);
+        CmdlnOption engineOption = new CmdlnOption("-engine",
+                CmdlnOption.OPTIONAL |
+                        CmdlnOption.PAR_REQ);
+        CmdlnOption poolSizeOption = new CmdlnOption("-poolsize",
+                CmdlnOption.OPTIONAL |
+                        CmdlnOption.PAR_REQ);
+        CmdlnOption drainOption = new CmdlnOption("-drain",
+                CmdlnOption.OPTIONAL |
+                        CmdlnOption.PAR_REQ);
+        CmdlnOption maxOption = new CmdlnOption("-max",
+                CmdlnOption.OPTIONAL |
+                        CmdlnOption.PAR_REQ);
+        CmdlnOption tickOption = new CmdlnOption("-tick",
+                CmdlnOption.OPTIONAL |
+                        CmdlnOption.PAR_REQ);
+        CmdlnOption tickPoolOption = new CmdlnOption("-tickpool",
+                CmdlnOption.OPTIONAL |
+                        CmdlnOption.PAR_REQ);
+        CmdlnOption connectTimeoutOption = new CmdlnOption("-connecttimeout",
+                CmdlnOption.OPTIONAL |
+                        CmdlnOption.PAR_REQ);
+        CmdlnOption readTimeoutOption = new CmdlnOption("-readtimeout",
+                CmdlnOption.OPTIONAL |
+                        CmdlnOption.PAR_REQ);
+        CmdlnOption mailboxOption = new CmdlnOption("-mailbox",
+                CmdlnOption.OPTIONAL |
+                        CmdlnOption.PAR_REQ);
 
         CmdlnOption[] opts =
                 new CmdlnOption[]{helpOption,
                         debugOption,
                         roomOption,
                         userOption,
-                        logOption};
+                        logOption,
+                        engineOption,
+                        poolSizeOption,
+                        tickOption,
+                        tickPoolOption,
+                        maxOption,
+                        drainOption,
+                        connectTimeoutOption,
+                        readTimeoutOption,
+                        mailboxOption};
 
         String[] restArgs = Commandline.parseArgs(System.out, argv, opts);
 
@@ -531,7 +1880,10 @@ public class Bailiff
 
         if (helpOption.getIsSet() == true) {
             System.out.println
-                    ("Usage: [-room room][-user user][-debug][-log [logfile]]");
+                    ("Usage: [-room room][-user user][-debug][-log [logfile]]"
+                            + "[-engine virtual|pool][-poolsize n]"
+                            + "[-tick ms [-tickpool n]][-max n][-drain ms]"
+                            + "[-connecttimeout ms][-readtimeout ms][-mailbox file]");
             System.out.print("Where room is location of the service ");
             if (room == null) {
                 System.out.println("(no default).");
@@ -548,6 +1900,21 @@ public class Bailiff
 
             System.out.println("      -debug turns on debugging mode.");
             System.out.println("      -log turns on logging to file.");
+            System.out.println("      -engine selects how agents are run: on virtual");
+            System.out.println("       threads (default) or on a bounded thread pool.");
+            System.out.println("      -poolsize sets the size of the pool (default = "
+                    + AgentEngine.DEFAULT_POOL_SIZE + ").");
+            System.out.println("      -max limits the number of agents admitted (default = no limit).");
+            System.out.println("      -drain sets the time to move agents away on shutdown (default = "
+                    + DEFAULT_DRAIN_TIME + " ms).");
+            System.out.println("      -tick drives stepped agents every ms milliseconds");
+            System.out.println("       on a pool of -tickpool workers (default = number of CPUs).");
+            System.out.println("      -connecttimeout and -readtimeout bound how long clients");
+            System.out.println("       wait to connect to this Bailiff and for its replies (default = "
+                    + TimeoutSocketFactory.DEFAULT_CONNECT_TIMEOUT + " and "
+                    + TimeoutSocketFactory.DEFAULT_READ_TIMEOUT + " ms).");
+            System.out.println("      -mailbox sets the file messages are kept in (default =");
+            System.out.println("       bailiff-user-room.mail in the current directory).");
 
             System.exit(0);
         }
@@ -562,6 +1929,82 @@ public class Bailiff
             user = userOption.getValue().toLowerCase();
         }
 
+        String engineMode = AgentEngine.VIRTUAL;
+        int poolSize = AgentEngine.DEFAULT_POOL_SIZE;
+
+        if (engineOption.getIsSet() == true) {
+            engineMode = engineOption.getValue().toLowerCase();
+        }
+
+        if (poolSizeOption.getIsSet() == true) {
+            try {
+                poolSize = Integer.parseInt(poolSizeOption.getValue());
+            } catch (NumberFormatException e) {
+                System.out.println("Bad -poolsize: " + poolSizeOption.getValue());
+                System.exit(1);
+            }
+        }
+
+        int maxAgents = 0;
+
+        if (maxOption.getIsSet() == true) {
+            try {
+                maxAgents = Integer.parseInt(maxOption.getValue());
+            } catch (NumberFormatException e) {
+                System.out.println("Bad -max: " + maxOption.getValue());
+                System.exit(1);
+            }
+        }
+
+        long drainMillis = DEFAULT_DRAIN_TIME;
+
+        if (drainOption.getIsSet() == true) {
+            try {
+                drainMillis = Long.parseLong(drainOption.getValue());
+            } catch (NumberFormatException e) {
+                System.out.println("Bad -drain: " + drainOption.getValue());
+                System.exit(1);
+            }
+        }
+
+        long tickMillis = 0;
+        int tickPool = Runtime.getRuntime().availableProcessors();
+
+        if (tickOption.getIsSet() == true) {
+            try {
+                tickMillis = Long.parseLong(tickOption.getValue());
+                if (tickPoolOption.getIsSet() == true) {
+                    tickPool = Integer.parseInt(tickPoolOption.getValue());
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("Bad -tick or -tickpool value.");
+                System.exit(1);
+            }
+        }
+
+        int connectTimeout = TimeoutSocketFactory.DEFAULT_CONNECT_TIMEOUT;
+        int readTimeout = TimeoutSocketFactory.DEFAULT_READ_TIMEOUT;
+
+        try {
+            if (connectTimeoutOption.getIsSet() == true) {
+                connectTimeout = Integer.parseInt(connectTimeoutOption.getValue());
+            }
+            if (readTimeoutOption.getIsSet() == true) {
+                readTimeout = Integer.parseInt(readTimeoutOption.getValue());
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Bad -connecttimeout or -readtimeout value.");
+            System.exit(1);
+        }
+
+        AgentEngine engine = null;
+        try {
+            engine = AgentEngine.forMode(engineMode, poolSize);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+
         Logger log;
 
         if (logOption.getIsSet() == true) {
@@ -574,7 +2017,30 @@ public class Bailiff
 
         // Set the RMI security manager.
         System.setSecurityManager(new RMISecurityManager());
-        Bailiff bf = new Bailiff(room, user, debug, log);
+        if (engine.isVirtual()) {
+            // Also in tick mode, where agents that can not be stepped
+            // still run on the engine.
+            System.out.println(AGENTS_NOT_METERED);
+        }
+        Bailiff bf = new Bailiff(room, user, debug, log, engine,
+                new TimeoutSocketFactory(connectTimeout, readTimeout));
+        bf.setMaxAgents(maxAgents);
+        bf.setDrainTime(drainMillis);
+        File mailFile = (mailboxOption.getIsSet() == true)
+                ? new File(mailboxOption.getValue())
+                : new File(("bailiff-" + user + "-" + room + ".mail")
+                .replaceAll("[^A-Za-z0-9._-]", "_"));
+        try {
+            bf.openMailbox(mailFile);
+        } catch (IOException e) {
+            // The Bailiff still works, but keeps no mail.
+            log.entry(e);
+        }
+        if (0 < tickMillis) {
+            // A step may use at most half a tick.
+            bf.setTickScheduler(new TickScheduler(tickMillis,
+                    Math.max(1, tickMillis / 2), tickPool));
+        }
         if (noFrameOption.getIsSet() == false) {
             BailiffFrame bff = new BailiffFrame(bf);
         }
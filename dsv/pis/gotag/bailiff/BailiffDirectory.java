@@ -0,0 +1,77 @@
+// BailiffDirectory.java
+// Where a Bailiff registers itself and finds the other Bailiffs.
+
+package dsv.pis.gotag.bailiff;
+
+import java.io.IOException;
+
+import net.jini.core.entry.Entry;
+import net.jini.core.lookup.ServiceItem;
+import net.jini.core.lookup.ServiceTemplate;
+import net.jini.lookup.LookupCache;
+import net.jini.lookup.ServiceIDListener;
+import net.jini.lookup.ServiceItemFilter;
+
+/**
+ * A BailiffDirectory registers a Bailiff so that clients can find it, and
+ * lets the Bailiff find its peers. A Bailiff normally uses the Jini
+ * lookup servers of its network, through a JoinManager and a
+ * ServiceDiscoveryManager; a simulation can put an in-memory directory
+ * in their place.
+ * <p>
+ * A directory serves one Bailiff: it is created for it and terminated
+ * with it.
+ */
+public interface BailiffDirectory {
+
+    /**
+     * Registers the Bailiff.
+     *
+     * @param service    The service object.
+     * @param attributes The attribute sets of the service.
+     * @param listener   Told the ServiceID of the service once it has one.
+     * @throws IOException Thrown if the registration can not be started.
+     */
+    public void register(Object service, Entry[] attributes, ServiceIDListener listener)
+            throws IOException;
+
+    /**
+     * Replaces registered attribute sets, as JoinManager.modifyAttributes.
+     *
+     * @param templates  The attribute templates to match.
+     * @param attributes The new attribute sets, one per template.
+     */
+    public void modifyAttributes(Entry[] templates, Entry[] attributes);
+
+    /**
+     * Creates a cache of the services that match a template. It lives
+     * until it is terminated, or until the directory is.
+     *
+     * @param tmpl The template to match.
+     * @return The cache.
+     * @throws IOException Thrown if discovery can not be started.
+     */
+    public LookupCache createLookupCache(ServiceTemplate tmpl) throws IOException;
+
+    /**
+     * Looks up services, waiting for a while until enough of them are found,
+     * as ServiceDiscoveryManager.lookup.
+     *
+     * @param tmpl       The template to match.
+     * @param minMatches The number of services to wait for.
+     * @param maxMatches The maximum number of services to return.
+     * @param filter     An additional filter, or null.
+     * @param waitMillis The time to wait.
+     * @return The services found, possibly fewer than minMatches.
+     * @throws InterruptedException      Thrown if the wait is interrupted.
+     * @throws java.rmi.RemoteException Thrown if the lookup fails.
+     */
+    public ServiceItem[] lookup(ServiceTemplate tmpl, int minMatches, int maxMatches,
+                                ServiceItemFilter filter, long waitMillis)
+            throws InterruptedException, java.rmi.RemoteException;
+
+    /**
+     * Withdraws the registration and stops discovery.
+     */
+    public void terminate();
+}
@@ -53,8 +53,7 @@ public class BailiffFrame extends JFrame {
         // Install the code to execute when the Exit item is selected.
         item.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                bf.shutdown();    // Shut down the Bailiff
-                System.exit(0);    // Exit the JVM
+                shutdownAndExit();
             }
         });
 
@@ -76,6 +75,16 @@ public class BailiffFrame extends JFrame {
             }
         });
 
+        // Create and add a menu item labelled 'Read mail' to the Info menu.
+        item = (JMenuItem) options.add(new JMenuItem("Read mail"));
+        // Bind ALT+M to the Read mail item.
+        item.setMnemonic(KeyEvent.VK_M);
+        item.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                showMailDialog();
+            }
+        });
+
         // Install the menubar.
         setJMenuBar(menuBar);
 
@@ -84,8 +93,7 @@ public class BailiffFrame extends JFrame {
         addWindowListener(new WindowAdapter() {
             // If the windows is closed, shut down the Bailiff.
             public void windowClosing(WindowEvent e) {
-                bf.shutdown();
-                System.exit(0);
+                shutdownAndExit();
             }
 
             // If we are minimized or maximized, keep working.
@@ -109,6 +117,45 @@ public class BailiffFrame extends JFrame {
         setVisible(true);
     }
 
+    /**
+     * Shuts down the Bailiff and exits the JVM. Shutting down drains the
+     * Bailiff, which takes a while, so it is done on a thread of its own
+     * to keep the GUI responsive.
+     */
+    public void shutdownAndExit() {
+        setTitle(bf.getRoom() + " : Bailiff (shutting down)");
+        new Thread(new Runnable() {
+            public void run() {
+                bf.shutdown();    // Drain and shut down the Bailiff
+                System.exit(0);    // Exit the JVM
+            }
+        }).start();
+    }
+
+    /**
+     * Takes the mail for the Bailiff's user out of its mailbox and shows
+     * it in a dialogue.
+     */
+    public void showMailDialog() {
+        new Thread(new Runnable() {
+            public void run() {
+                StringBuilder sb = new StringBuilder();
+                try {
+                    for (MailMessage msg : bf.drain(bf.getUser(), MailForwarder.MAX_BATCH)) {
+                        sb.append((msg.getFromUser() != null) ? msg.getFromUser() : "(unknown)")
+                                .append(": ").append(msg.getText()).append('\n');
+                    }
+                } catch (java.rmi.RemoteException e) {
+                    sb.append(e.getMessage());
+                }
+                JOptionPane.showMessageDialog(null,
+                        (sb.length() == 0) ? "No mail." : sb.toString(),
+                        "Mail for " + bf.getUser(),
+                        JOptionPane.INFORMATION_MESSAGE);
+            }
+        }).start();
+    }
+
     /**
      * The 'about' dialog.
      */
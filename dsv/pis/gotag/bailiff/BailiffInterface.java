@@ -6,6 +6,7 @@
 package dsv.pis.gotag.bailiff;
 
 import dsv.pis.gotag.exceptions.NoSuchAgentException;
+import dsv.pis.gotag.exceptions.NoSuchReservationException;
 import dsv.pis.gotag.player.TagPlayer;
 
 import java.rmi.RemoteException;
@@ -59,6 +60,70 @@ public interface BailiffInterface
             java.lang.NoSuchMethodException;
 
 
+    /**
+     * The entry point for moving many agents at once, for instance when a
+     * room is rebalanced or a Bailiff is drained. All parcels travel in one
+     * call and one stream. The Bailiff admits as many of them as its
+     * capacity allows, in order, and starts each one as {@link #migrate}
+     * does.
+     *
+     * @param parcels The agents to admit, with their entry points.
+     * @return One element per parcel, in order: true if that agent was
+     * admitted and started, false if it was refused or its entry point
+     * was not found.
+     * @throws java.rmi.RemoteException Thrown if there is an RMI problem.
+     */
+    public boolean[] migrateBatch(ArrayList<MigrationParcel> parcels)
+            throws
+            java.rmi.RemoteException;
+
+    /**
+     * First phase of a two-phase migration. Asks the Bailiff to hold a
+     * place for an agent. This is cheap: nothing but the agent's UUID is
+     * sent. The place is held for a few seconds.
+     *
+     * @param agent The UUID of the agent that wants to migrate.
+     * @param isIt  True if the agent is 'it'.
+     * @return A ticket for {@link #commit}, or null if the Bailiff will not
+     * admit the agent.
+     * @throws java.rmi.RemoteException Thrown if there is an RMI problem.
+     */
+    public MigrationTicket reserve(UUID agent, boolean isIt)
+            throws
+            java.rmi.RemoteException;
+
+    /**
+     * Second phase of a two-phase migration. Ships the agent into the
+     * place held by the ticket and starts it as {@link #migrate} does.
+     * The agent's current Bailiff deregisters it only once this call has
+     * returned and the agent's entry point ends.
+     *
+     * @param ticket The ticket returned by {@link #reserve}.
+     * @param obj    The object (to execute).
+     * @param cb     The name of the method to call as the program of obj.
+     * @param args   The parameters for the callback method.
+     * @throws java.rmi.RemoteException        Thrown if there is an RMI problem.
+     * @throws java.lang.NoSuchMethodException Thrown if the proposed
+     *                                         callback is not found.
+     * @throws NoSuchReservationException      Thrown if the ticket has
+     *                                         expired or was already used.
+     */
+    public void commit(MigrationTicket ticket, TagPlayer obj, String cb, Object[] args)
+            throws
+            java.rmi.RemoteException,
+            java.lang.NoSuchMethodException,
+            NoSuchReservationException;
+
+    /**
+     * Gives back a place held by {@link #reserve} that will not be used.
+     *
+     * @param ticket The ticket returned by {@link #reserve}.
+     * @throws java.rmi.RemoteException Thrown if there is an RMI problem.
+     */
+    public void cancel(MigrationTicket ticket)
+            throws
+            java.rmi.RemoteException;
+
     /**
      * To retrieve the names of agents in the requested Bailiff
      *
@@ -68,6 +133,66 @@ public interface BailiffInterface
     public ArrayList<UUID> getAgentsNames()
             throws java.rmi.RemoteException;
 
+    /**
+     * To retrieve the roster of the requested Bailiff in a single call.
+     * Each entry holds the UUID of a resident agent together with its
+     * 'it' and migrating flags, so clients need not call
+     * {@link #isIt(UUID)} once per agent.
+     *
+     * @return A snapshot of the resident agents and their tag state.
+     * @throws RemoteException
+     */
+    public ArrayList<AgentInfo> getAgentsInfo()
+            throws java.rmi.RemoteException;
+
+    /**
+     * To retrieve the resources used by the agents of the requested
+     * Bailiff: CPU time, allocated bytes, time of residence and number of
+     * hops. Agents whose use is abnormal compared to the other residents
+     * are flagged.
+     *
+     * @return A snapshot of the resource use of the resident agents.
+     * @throws RemoteException
+     */
+    public ArrayList<AgentStats> getAgentsStats()
+            throws java.rmi.RemoteException;
+
+    /**
+     * Deposits a message in the Bailiff's mailbox. A message for the
+     * Bailiff's own user waits there to be drained; a message for another
+     * user is forwarded to a Bailiff of that user.
+     *
+     * @param msg The message.
+     * @return True if the message is held, false if it has expired or
+     * the Bailiff keeps no mailbox.
+     * @throws RemoteException
+     */
+    public boolean enqueue(MailMessage msg)
+            throws java.rmi.RemoteException;
+
+    /**
+     * Deposits many messages at once, as Bailiffs do when they forward
+     * mail. Messages the mailbox holds already are not stored twice.
+     *
+     * @param msgs The messages.
+     * @return The number of messages held; those not held have expired.
+     * It is 0 if the Bailiff keeps no mailbox.
+     * @throws RemoteException
+     */
+    public int enqueueBatch(ArrayList<MailMessage> msgs)
+            throws java.rmi.RemoteException;
+
+    /**
+     * Takes the oldest messages for a user out of the mailbox.
+     *
+     * @param user The recipient.
+     * @param max  The maximum number of messages to take.
+     * @return The messages, possibly none.
+     * @throws RemoteException
+     */
+    public ArrayList<MailMessage> drain(String user, int max)
+            throws java.rmi.RemoteException;
+
 
     /**
      * For asking to an agent if he is 'it'.
@@ -97,4 +222,22 @@ public interface BailiffInterface
     public boolean itAgent(UUID name)
             throws java.rmi.RemoteException, NoSuchAgentException;
 
+    /**
+     * Lets the 'it' agent tag any other agent in the Bailiff.
+     * The Bailiff picks, at random, a resident agent that is neither the
+     * tagger, 'it' nor migrating, and tags it. Agents are tried in turn until
+     * one accepts, so a single call replaces a client-side loop of
+     * {@link #itAgent(UUID)} attempts. The tagger gives up its own 'it'
+     * state in the same step as the other agent is tagged, so there is
+     * never more than one 'it' agent for the caller to see.
+     *
+     * @param tagger The UUID of the 'it' agent, which must be resident.
+     * @return The UUID of the agent that was tagged, or null if nobody
+     * was available or the tagger is not 'it'.
+     * @throws java.rmi.RemoteException
+     * @throws NoSuchAgentException Thrown if the tagger is not in the Bailiff.
+     */
+    public UUID tagAnyone(UUID tagger)
+            throws java.rmi.RemoteException, NoSuchAgentException;
+
 }
@@ -0,0 +1,114 @@
+// BailiffLoad.java
+// Jini attribute describing the current load of a Bailiff.
+
+package dsv.pis.gotag.bailiff;
+
+import net.jini.core.entry.Entry;
+import net.jini.core.lookup.ServiceItem;
+import net.jini.entry.AbstractEntry;
+import net.jini.lookup.ServiceItemFilter;
+
+/**
+ * The BailiffLoad entry is published by every Bailiff next to its Name
+ * and Location attributes, and refreshed as agents come and go. Clients
+ * find it in the attribute sets of the ServiceItems returned by their
+ * lookup, so they can choose among Bailiffs without calling any of them.
+ * A template holding a BailiffLoad with only itPresent set, for
+ * instance, finds the Bailiffs without (or with) the 'it' agent.
+ * <p>
+ * The entry is refreshed at a limited rate and may therefore be a few
+ * seconds old.
+ */
+public class BailiffLoad extends AbstractEntry {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The number of resident agents.
+     */
+    public Integer residents;
+
+    /**
+     * True if the 'it' agent is resident.
+     */
+    public Boolean itPresent;
+
+    /**
+     * The residents and reserved places as a percentage of the capacity
+     * of the Bailiff, or null if its capacity is not limited.
+     */
+    public Integer load;
+
+    /**
+     * A filter that passes the Bailiffs which are not known to be full.
+     */
+    public static final ServiceItemFilter NOT_FULL = new ServiceItemFilter() {
+        public boolean check(ServiceItem item) {
+            BailiffLoad l = find(item.attributeSets);
+            return l == null || !l.isFull();
+        }
+    };
+
+    /**
+     * Creates an empty entry, which as a template matches every load.
+     */
+    public BailiffLoad() {
+    }
+
+    /**
+     * Creates a new load entry.
+     *
+     * @param residents The number of resident agents.
+     * @param itPresent True if the 'it' agent is resident.
+     * @param load      The percentage of capacity in use, or null.
+     */
+    public BailiffLoad(Integer residents, Boolean itPresent, Integer load) {
+        this.residents = residents;
+        this.itPresent = itPresent;
+        this.load = load;
+    }
+
+    /**
+     * Returns true if the Bailiff had no room left.
+     *
+     * @return True if the load is known and at least 100 percent.
+     */
+    public boolean isFull() {
+        return load != null && 100 <= load;
+    }
+
+    /**
+     * Returns true if the Bailiff was known to be empty.
+     *
+     * @return True if the number of residents is known and zero.
+     */
+    public boolean isEmpty() {
+        return residents != null && residents == 0;
+    }
+
+    /**
+     * Returns true if the 'it' agent was known to be resident.
+     *
+     * @return True if itPresent is known and true.
+     */
+    public boolean hasIt() {
+        return Boolean.TRUE.equals(itPresent);
+    }
+
+    /**
+     * Finds the load entry among the attributes of a service.
+     *
+     * @param attributes The attribute sets of a ServiceItem.
+     * @return The load entry, or null if the service publishes none.
+     */
+    public static BailiffLoad find(Entry[] attributes) {
+        if (attributes != null) {
+            for (Entry e : attributes) {
+                if (e instanceof BailiffLoad) {
+                    return (BailiffLoad) e;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,297 @@
+// BailiffMetrics.java
+// Live throughput and latency counters of a Bailiff.
+
+package dsv.pis.gotag.bailiff;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * BailiffMetrics count the traffic of one Bailiff and are exported as a
+ * standard MBean. Every remote method records its call with
+ * {@link #record}, which adds to a striped LongAdder in a log2 latency
+ * histogram. Recording takes no locks, so concurrent calls on the hot
+ * path do not contend; the cost is paid by the reader, who sums the
+ * stripes.
+ */
+public class BailiffMetrics implements BailiffMetricsMBean {
+
+    /**
+     * The measured remote methods of the Bailiff.
+     */
+    public enum Call {
+        PING("ping"),
+        GET_PROPERTY("getProperty"),
+        MIGRATE("migrate"),
+        MIGRATE_BATCH("migrateBatch"),
+        RESERVE("reserve"),
+        COMMIT("commit"),
+        CANCEL("cancel"),
+        GET_AGENTS_NAMES("getAgentsNames"),
+        GET_AGENTS_INFO("getAgentsInfo"),
+        GET_AGENTS_STATS("getAgentsStats"),
+        IS_IT("isIt"),
+        IT_AGENT("itAgent"),
+        TAG_ANYONE("tagAnyone"),
+        ENQUEUE("enqueue"),
+        ENQUEUE_BATCH("enqueueBatch"),
+        DRAIN("drain");
+
+        private final String method;
+
+        Call(String method) {
+            this.method = method;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+    }
+
+    /**
+     * The number of log2 microsecond buckets of a histogram. The last
+     * bucket also holds everything above 2^BUCKETS microseconds.
+     */
+    public static final int BUCKETS = 32;
+
+    /**
+     * The latency histogram of one remote method.
+     */
+    private static final class Histogram {
+        final LongAdder[] buckets = new LongAdder[BUCKETS];
+        final LongAdder totalNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void add(long nanos) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+            int i = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros | 1));
+            buckets[i].increment();
+            totalNanos.add(nanos);
+        }
+
+        long[] snapshot() {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+            }
+            return counts;
+        }
+
+        long count() {
+            long sum = 0;
+            for (LongAdder b : buckets) {
+                sum += b.sum();
+            }
+            return sum;
+        }
+    }
+
+    private final Histogram[] histograms = new Histogram[Call.values().length];
+    private final LongAdder migrationsIn = new LongAdder();
+    private final LongAdder migrationsOut = new LongAdder();
+    private final LongAdder departures = new LongAdder();
+    private final LongAdder tags = new LongAdder();
+    private final LongAccumulator peakResidents = new LongAccumulator(Math::max, 0);
+    private final IntSupplier residents;
+
+    /**
+     * Creates new metrics.
+     *
+     * @param residents Tells the current number of resident agents.
+     */
+    public BailiffMetrics(IntSupplier residents) {
+        this.residents = residents;
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Records one call of a remote method.
+     *
+     * @param call       The method called.
+     * @param startNanos The System.nanoTime() at which the call started.
+     */
+    public void record(Call call, long startNanos) {
+        histograms[call.ordinal()].add(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records the admission of an agent.
+     *
+     * @param residentsNow The number of residents after the admission.
+     */
+    public void migratedIn(int residentsNow) {
+        migrationsIn.increment();
+        peakResidents.accumulate(residentsNow);
+    }
+
+    /**
+     * Records an agent leaving.
+     *
+     * @param migrated True if it migrated elsewhere, false if it ended.
+     */
+    public void left(boolean migrated) {
+        (migrated ? migrationsOut : departures).increment();
+    }
+
+    /**
+     * Records a successful tag.
+     */
+    public void tagged() {
+        tags.increment();
+    }
+
+    /**
+     * Registers the metrics with an MBean server, under the domain of the
+     * Bailiff package and the room and user of the Bailiff. If several
+     * Bailiffs with the same room and user run in one JVM, the later ones
+     * get an instance number.
+     *
+     * @param server The MBean server.
+     * @param room   The room of the Bailiff.
+     * @param user   The user of the Bailiff.
+     * @return The name the metrics were registered under.
+     * @throws JMException If the registration fails.
+     */
+    public ObjectName register(MBeanServer server, String room, String user)
+            throws JMException {
+        String base = "dsv.pis.gotag:type=Bailiff"
+                + ",room=" + ObjectName.quote(String.valueOf(room))
+                + ",user=" + ObjectName.quote(String.valueOf(user));
+        for (int instance = 1; ; instance++) {
+            ObjectName name = new ObjectName
+                    ((instance == 1) ? base : base + ",instance=" + instance);
+            try {
+                server.registerMBean(this, name);
+                return name;
+            } catch (InstanceAlreadyExistsException e) {
+                // Try the next instance number.
+            }
+        }
+    }
+
+    @Override
+    public long getMigrationsIn() {
+        return migrationsIn.sum();
+    }
+
+    @Override
+    public long getMigrationsOut() {
+        return migrationsOut.sum();
+    }
+
+    @Override
+    public long getDepartures() {
+        return departures.sum();
+    }
+
+    @Override
+    public long getPings() {
+        return histograms[Call.PING.ordinal()].count();
+    }
+
+    @Override
+    public long getAgentsNamesCalls() {
+        return histograms[Call.GET_AGENTS_NAMES.ordinal()].count();
+    }
+
+    @Override
+    public long getIsItCalls() {
+        return histograms[Call.IS_IT.ordinal()].count();
+    }
+
+    @Override
+    public long getItAgentCalls() {
+        return histograms[Call.IT_AGENT.ordinal()].count();
+    }
+
+    @Override
+    public long getTags() {
+        return tags.sum();
+    }
+
+    @Override
+    public int getResidents() {
+        return residents.getAsInt();
+    }
+
+    @Override
+    public int getPeakResidents() {
+        return (int) Math.max(peakResidents.get(), residents.getAsInt());
+    }
+
+    @Override
+    public String[] getMethods() {
+        Call[] calls = Call.values();
+        String[] names = new String[calls.length];
+        for (int i = 0; i < calls.length; i++) {
+            names[i] = calls[i].getMethod();
+        }
+        return names;
+    }
+
+    @Override
+    public long calls(String method) {
+        return histogram(method).count();
+    }
+
+    @Override
+    public double meanLatencyMicros(String method) {
+        Histogram h = histogram(method);
+        long count = h.count();
+        return (count == 0) ? 0 : h.totalNanos.sum() / 1000.0 / count;
+    }
+
+    @Override
+    public long latencyPercentileMicros(String method, double percentile) {
+        long[] counts = histogram(method).snapshot();
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (rank <= seen) {
+                return 1L << (i + 1);
+            }
+        }
+        return 1L << BUCKETS;
+    }
+
+    @Override
+    public long[] latencyHistogram(String method) {
+        return histogram(method).snapshot();
+    }
+
+    @Override
+    public void resetPeakResidents() {
+        peakResidents.reset();
+        peakResidents.accumulate(residents.getAsInt());
+    }
+
+    private Histogram histogram(String method) {
+        for (Call call : Call.values()) {
+            if (call.getMethod().equals(method)) {
+                return histograms[call.ordinal()];
+            }
+        }
+        throw new IllegalArgumentException("No such method: " + method);
+    }
+}
@@ -0,0 +1,105 @@
+// BailiffMetricsMBean.java
+// JMX management interface of the Bailiff metrics.
+
+package dsv.pis.gotag.bailiff;
+
+/**
+ * The management interface through which a JMX console reads the live
+ * counters and latency histograms of a Bailiff. Method names are those
+ * returned by {@link #getMethods()}, e.g. "migrate" or "isIt".
+ */
+public interface BailiffMetricsMBean {
+
+    /**
+     * Returns the number of agents admitted, by migrate, migrateBatch
+     * or commit.
+     */
+    public long getMigrationsIn();
+
+    /**
+     * Returns the number of agents that left by migrating elsewhere.
+     */
+    public long getMigrationsOut();
+
+    /**
+     * Returns the number of agents that ended in this Bailiff.
+     */
+    public long getDepartures();
+
+    /**
+     * Returns the number of pings answered.
+     */
+    public long getPings();
+
+    /**
+     * Returns the number of getAgentsNames calls.
+     */
+    public long getAgentsNamesCalls();
+
+    /**
+     * Returns the number of isIt calls.
+     */
+    public long getIsItCalls();
+
+    /**
+     * Returns the number of itAgent calls.
+     */
+    public long getItAgentCalls();
+
+    /**
+     * Returns the number of successful tags, by itAgent or tagAnyone.
+     */
+    public long getTags();
+
+    /**
+     * Returns the number of resident agents.
+     */
+    public int getResidents();
+
+    /**
+     * Returns the highest number of resident agents seen.
+     */
+    public int getPeakResidents();
+
+    /**
+     * Returns the names of the remote methods that are measured.
+     */
+    public String[] getMethods();
+
+    /**
+     * Returns the number of calls of a remote method.
+     *
+     * @param method The method name.
+     */
+    public long calls(String method);
+
+    /**
+     * Returns the mean latency of a remote method in microseconds.
+     *
+     * @param method The method name.
+     */
+    public double meanLatencyMicros(String method);
+
+    /**
+     * Returns an upper bound of a latency percentile of a remote method
+     * in microseconds.
+     *
+     * @param method     The method name.
+     * @param percentile The percentile, between 0 and 100.
+     */
+    public long latencyPercentileMicros(String method, double percentile);
+
+    /**
+     * Returns the latency histogram of a remote method. Bucket i counts
+     * the calls that took less than 2^(i+1) microseconds, and at least
+     * 2^i microseconds if i is above 0.
+     *
+     * @param method The method name.
+     */
+    public long[] latencyHistogram(String method);
+
+    /**
+     * Restarts the peak resident count from the current count.
+     */
+    public void resetPeakResidents();
+}
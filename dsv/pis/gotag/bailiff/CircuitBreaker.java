@@ -0,0 +1,133 @@
+// CircuitBreaker.java
+// Per-endpoint circuit breaker shared by all callers in a JVM.
+
+package dsv.pis.gotag.bailiff;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A CircuitBreaker stops calls to a Bailiff that keeps failing. After
+ * FAILURE_THRESHOLD consecutive failures the breaker opens, and calls are
+ * refused at once for an open time. Then a single trial call is let
+ * through: if it succeeds the breaker closes, otherwise it opens again
+ * for twice as long, up to MAX_OPEN_TIME.
+ * <p>
+ * The breakers are kept per endpoint, normally the ServiceID of a
+ * Bailiff, in a registry that belongs to this class. Since this class
+ * is loaded by the Bailiff and not by the agents' codebases, all agents
+ * in a JVM share the breakers: once one agent has found a Bailiff dead,
+ * the others skip it without trying.
+ */
+public class CircuitBreaker {
+
+    /**
+     * The number of consecutive failures that opens a breaker.
+     */
+    public static final int FAILURE_THRESHOLD = 3;
+
+    /**
+     * The time a breaker stays open the first time, in milliseconds.
+     */
+    public static final long OPEN_TIME = 5000;
+
+    /**
+     * The longest time a breaker stays open, in milliseconds.
+     */
+    public static final long MAX_OPEN_TIME = 60000;
+
+    private static final ConcurrentHashMap<Object, CircuitBreaker> breakers =
+            new ConcurrentHashMap<Object, CircuitBreaker>();
+
+    private final Object endpoint;
+    private int failures = 0;
+    private long openTime = OPEN_TIME;
+    private long openUntil = 0;     // 0 while closed
+    private boolean trialOut = false;
+
+    private CircuitBreaker(Object endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Returns the breaker of an endpoint, shared in this JVM.
+     *
+     * @param endpoint The endpoint, such as the ServiceID of a Bailiff.
+     *                 For null a new breaker is returned that is not
+     *                 shared.
+     * @return The breaker.
+     */
+    public static CircuitBreaker of(Object endpoint) {
+        if (endpoint == null) {
+            return new CircuitBreaker(null);
+        }
+        return breakers.computeIfAbsent(endpoint, CircuitBreaker::new);
+    }
+
+    /**
+     * Returns true if the breaker of an endpoint refuses calls now. Unlike
+     * of, this does not create a breaker for an unknown endpoint.
+     *
+     * @param endpoint The endpoint.
+     * @return True if the endpoint has a breaker and it is open.
+     */
+    public static boolean isOpen(Object endpoint) {
+        CircuitBreaker cb = (endpoint != null) ? breakers.get(endpoint) : null;
+        return cb != null && cb.isOpen();
+    }
+
+    /**
+     * Asks to make a call. Open breakers refuse, except for one trial
+     * call once the open time has passed.
+     *
+     * @return True if the call may be made.
+     */
+    public synchronized boolean tryAcquire() {
+        if (openUntil == 0) {
+            return true;
+        }
+        if (trialOut || System.currentTimeMillis() < openUntil) {
+            return false;
+        }
+        trialOut = true;
+        return true;
+    }
+
+    /**
+     * Returns true if calls are refused now, without asking for a trial.
+     *
+     * @return True if the breaker is open and its open time has not passed.
+     */
+    public synchronized boolean isOpen() {
+        return openUntil != 0 && (trialOut || System.currentTimeMillis() < openUntil);
+    }
+
+    /**
+     * Records a successful call, which closes the breaker.
+     */
+    public synchronized void onSuccess() {
+        failures = 0;
+        openTime = OPEN_TIME;
+        openUntil = 0;
+        trialOut = false;
+    }
+
+    /**
+     * Records a failed call.
+     */
+    public synchronized void onFailure() {
+        if (openUntil != 0) {
+            // The trial failed: stay open for longer.
+            openTime = Math.min(MAX_OPEN_TIME, 2 * openTime);
+            openUntil = System.currentTimeMillis() + openTime;
+            trialOut = false;
+        } else if (FAILURE_THRESHOLD <= ++failures) {
+            openUntil = System.currentTimeMillis() + openTime;
+        }
+    }
+
+    public synchronized String toString() {
+        return "<circuitBreaker endpoint=\"" + endpoint + "\" state=\""
+                + (openUntil == 0 ? "closed" : trialOut ? "trial" : "open")
+                + "\" failures=\"" + failures + "\"/>";
+    }
+}
@@ -0,0 +1,135 @@
+// CodebaseRegistry.java
+// Keeps the class loaders of hot agent codebases alive in a Bailiff.
+
+package dsv.pis.gotag.bailiff;
+
+import dsv.pis.gotag.util.Logger;
+
+import java.rmi.server.RMIClassLoader;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CodebaseRegistry keeps track of the codebases that agents arrive
+ * from, and of the class loaders and classes RMI has created for them.
+ * <p>
+ * RMI shares one class loader per codebase, but holds it only weakly.
+ * Once no agent of a codebase is resident, the loader and its classes
+ * can be collected, and the next agent of that type has its classes
+ * downloaded and defined again. The registry holds the loader and the
+ * agent classes seen so far strongly, so repeat migrations of a hot agent
+ * type find them already loaded, together with the entry points cached
+ * for those classes.
+ * <p>
+ * A codebase that has not been used for the idle time is evicted. Its
+ * loader can then be collected, which keeps metaspace bounded on
+ * Bailiffs that run for days. The registry sweeps on a timer, so that
+ * the loaders are let go also when no agents arrive any more.
+ */
+class CodebaseRegistry {
+
+    /**
+     * The key used for classes that were not loaded from a codebase.
+     */
+    private static final String LOCAL = "";
+
+    /**
+     * What is kept for one codebase.
+     */
+    static final class Codebase {
+        final String annotation;
+        final ClassLoader loader;
+        final Set<Class<?>> classes = ConcurrentHashMap.newKeySet();
+        volatile long lastUsed;
+
+        Codebase(String annotation, ClassLoader loader) {
+            this.annotation = annotation;
+            this.loader = loader;
+        }
+
+        public String toString() {
+            return "Codebase[" + annotation + ", " + classes.size() + " classes]";
+        }
+    }
+
+    private final ConcurrentHashMap<String, Codebase> codebases =
+            new ConcurrentHashMap<String, Codebase>();
+
+    private final long idleMillis;
+    private final Logger log;
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Creates a new registry and starts its sweeps.
+     *
+     * @param idleMillis The time after which an unused codebase is evicted.
+     * @param log        The Logger that records new and evicted codebases.
+     */
+    CodebaseRegistry(long idleMillis, Logger log) {
+        this.idleMillis = idleMillis;
+        this.log = log;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "codebase-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        // A codebase is evicted at most half an idle time late.
+        long period = Math.max(1, idleMillis / 2);
+        timer.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records the arrival of an agent and returns the class loader its
+     * code should run with.
+     *
+     * @param agentClass The class of the arriving agent.
+     * @return The class loader shared by the agent's codebase.
+     */
+    ClassLoader arrived(Class<?> agentClass) {
+        long now = System.currentTimeMillis();
+        String annotation = RMIClassLoader.getClassAnnotation(agentClass);
+        if (annotation == null) {
+            annotation = LOCAL;
+        }
+        ClassLoader loader = agentClass.getClassLoader();
+
+        Codebase cb = codebases.get(annotation);
+        if (cb == null || cb.loader != loader) {
+            // New codebase, or RMI has given it a new loader since.
+            Codebase fresh = new Codebase(annotation, loader);
+            cb = codebases.merge(annotation, fresh,
+                    (old, add) -> (old.loader == add.loader) ? old : add);
+            if (cb == fresh) {
+                log.entry("<codebase annotation=\"" + annotation + "\"/>");
+            }
+        }
+        cb.classes.add(agentClass);
+        cb.lastUsed = now;
+        return loader;
+    }
+
+    /**
+     * Stops sweeping.
+     */
+    void shutdown() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Evicts the codebases that have been idle for too long.
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Codebase> it = codebases.values().iterator(); it.hasNext(); ) {
+            Codebase cb = it.next();
+            if (cb.lastUsed + idleMillis <= now) {
+                it.remove();
+                log.entry("<evictCodebase annotation=\"" + cb.annotation + "\"/>");
+            }
+        }
+    }
+}
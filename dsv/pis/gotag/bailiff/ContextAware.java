@@ -0,0 +1,20 @@
+// ContextAware.java
+// Agents that want the AgentContext of their host.
+
+package dsv.pis.gotag.bailiff;
+
+/**
+ * An agent that implements ContextAware is given the AgentContext of
+ * the Bailiff it arrives in, before its entry point is called. Agents
+ * launched outside of a Bailiff have no context and must fend for
+ * themselves.
+ */
+public interface ContextAware {
+
+    /**
+     * Gives the agent the context of its host Bailiff.
+     *
+     * @param context The context, valid until the agent leaves.
+     */
+    public void setAgentContext(AgentContext context);
+}
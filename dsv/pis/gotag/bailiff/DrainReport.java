@@ -0,0 +1,65 @@
+// DrainReport.java
+// The outcome of draining a Bailiff.
+
+package dsv.pis.gotag.bailiff;
+
+import java.io.Serializable;
+
+/**
+ * A DrainReport tells what happened to the agents resident in a Bailiff
+ * when it was shut down: how many left by themselves when asked, how
+ * many the Bailiff moved to peers, and how many were lost.
+ */
+public class DrainReport implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int residents;
+    private final int left;
+    private final int moved;
+    private final int lost;
+    private final long millis;
+
+    /**
+     * Creates a new report.
+     *
+     * @param residents The number of agents resident when the drain began.
+     * @param left      The number of agents that left by themselves.
+     * @param moved     The number of agents moved by the Bailiff.
+     * @param lost      The number of agents that could not be moved.
+     * @param millis    The time the drain took.
+     */
+    public DrainReport(int residents, int left, int moved, int lost, long millis) {
+        this.residents = residents;
+        this.left = left;
+        this.moved = moved;
+        this.lost = lost;
+        this.millis = millis;
+    }
+
+    public int getResidents() {
+        return residents;
+    }
+
+    public int getLeft() {
+        return left;
+    }
+
+    public int getMoved() {
+        return moved;
+    }
+
+    public int getLost() {
+        return lost;
+    }
+
+    public long getMillis() {
+        return millis;
+    }
+
+    public String toString() {
+        return "<drain residents=\"" + residents + "\" left=\"" + left
+                + "\" moved=\"" + moved + "\" lost=\"" + lost
+                + "\" ms=\"" + millis + "\"/>";
+    }
+}
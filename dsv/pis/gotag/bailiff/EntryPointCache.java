@@ -0,0 +1,172 @@
+// EntryPointCache.java
+// Cache of resolved agent entry points.
+
+package dsv.pis.gotag.bailiff;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The EntryPointCache resolves the entry point (callback) methods of
+ * migrating agents to MethodHandles and keeps them for the next arrival
+ * of the same agent class. Agents hop constantly and their class never
+ * changes, so the reflective lookup is done once per (class, callback name,
+ * parameter types) instead of on every migration.
+ * <p>
+ * The handles are stored in a ClassValue. The cached entries therefore
+ * belong to the agent class itself and disappear together with it when
+ * the class loader that defined it is collected.
+ * <p>
+ * All handles are adapted to a uniform (Object, Object[]) shape so that
+ * they can be called with invokeExact, which the JIT is able to inline.
+ */
+class EntryPointCache {
+
+    /**
+     * The uniform type of an entry point handle: (receiver, args) -> result.
+     */
+    private static final MethodType ENTRY_TYPE =
+            MethodType.methodType(Object.class, Object.class, Object[].class);
+
+    /**
+     * The uniform type of a getUUID handle: (receiver) -> result.
+     */
+    private static final MethodType GETTER_TYPE =
+            MethodType.methodType(Object.class, Object.class);
+
+    /**
+     * A resolved entry point and the parameter types it was resolved for.
+     */
+    private static final class EntryPoint {
+        final Class<?>[] parms;
+        final MethodHandle handle;
+
+        EntryPoint(Class<?>[] parms, MethodHandle handle) {
+            this.parms = parms;
+            this.handle = handle;
+        }
+
+        /**
+         * Returns true if this entry point was resolved for arguments of
+         * exactly these classes.
+         */
+        boolean matches(Object[] args) {
+            if (parms.length != args.length) {
+                return false;
+            }
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].getClass() != parms[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The handles resolved for one agent class.
+     */
+    private static final class ClassEntries {
+        final ConcurrentHashMap<String, EntryPoint[]> entryPoints =
+                new ConcurrentHashMap<String, EntryPoint[]>();
+        volatile MethodHandle uuidGetter;
+    }
+
+    private final ClassValue<ClassEntries> entries = new ClassValue<ClassEntries>() {
+        protected ClassEntries computeValue(Class<?> type) {
+            return new ClassEntries();
+        }
+    };
+
+    /**
+     * Returns the handle of the public method named cb on the class of obj,
+     * whose parameter types are the classes of args.
+     *
+     * @param obj  The agent object.
+     * @param cb   The name of the entry point method.
+     * @param args The arguments the entry point will be called with.
+     * @return A handle of type (Object, Object[]) -> Object.
+     * @throws NoSuchMethodException Thrown if no such public method exists.
+     */
+    MethodHandle entryPoint(Object obj, String cb, Object[] args)
+            throws NoSuchMethodException {
+        Class<?> type = obj.getClass();
+        ClassEntries ce = entries.get(type);
+
+        EntryPoint[] known = ce.entryPoints.get(cb);
+        if (known != null) {
+            for (EntryPoint ep : known) {
+                if (ep.matches(args)) {
+                    return ep.handle;
+                }
+            }
+        }
+
+        // Not seen before: resolve the method, as the reflective lookup did,
+        // from the classes of the actual arguments.
+        Class<?>[] parms = new Class<?>[args.length];
+        for (int i = 0; i < args.length; i++) {
+            parms[i] = args[i].getClass();
+        }
+        Method m = type.getMethod(cb, parms);
+        MethodHandle handle = unreflect(m)
+                .asSpreader(Object[].class, parms.length)
+                .asType(ENTRY_TYPE);
+
+        EntryPoint ep = new EntryPoint(parms, handle);
+        ce.entryPoints.merge(cb, new EntryPoint[]{ep}, (old, add) -> {
+            EntryPoint[] grown = new EntryPoint[old.length + 1];
+            System.arraycopy(old, 0, grown, 0, old.length);
+            grown[old.length] = add[0];
+            return grown;
+        });
+        return handle;
+    }
+
+    /**
+     * Returns the UUID of an agent through its public getUUID method.
+     *
+     * @param obj The agent object.
+     * @return The UUID of the agent.
+     * @throws NoSuchMethodException Thrown if the agent has no getUUID method.
+     * @throws Throwable             Anything thrown by getUUID itself.
+     */
+    UUID getUUID(Object obj) throws Throwable {
+        ClassEntries ce = entries.get(obj.getClass());
+        MethodHandle getter = ce.uuidGetter;
+        if (getter == null) {
+            Method m = obj.getClass().getMethod("getUUID");
+            getter = unreflect(m).asType(GETTER_TYPE);
+            ce.uuidGetter = getter;
+        }
+        return (UUID) (Object) getter.invokeExact(obj);
+    }
+
+    /**
+     * Invokes an entry point handle.
+     *
+     * @param handle A handle returned by {@link #entryPoint}.
+     * @param obj    The agent object.
+     * @param args   The arguments to the entry point.
+     * @throws Throwable Anything thrown by the entry point.
+     */
+    static void invoke(MethodHandle handle, Object obj, Object[] args)
+            throws Throwable {
+        Object ignored = (Object) handle.invokeExact(obj, args);
+    }
+
+    private static MethodHandle unreflect(Method m) throws NoSuchMethodException {
+        try {
+            return MethodHandles.publicLookup().unreflect(m);
+        } catch (IllegalAccessException e) {
+            NoSuchMethodException nsme =
+                    new NoSuchMethodException("Entry point not accessible: " + m);
+            nsme.initCause(e);
+            throw nsme;
+        }
+    }
+}
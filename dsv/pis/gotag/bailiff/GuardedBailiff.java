@@ -0,0 +1,146 @@
+// GuardedBailiff.java
+// Client-side proxy that calls a Bailiff through its circuit breaker.
+
+package dsv.pis.gotag.bailiff;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.MarshalException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.ServerError;
+import java.rmi.ServerException;
+import java.rmi.UnmarshalException;
+
+import dsv.pis.gotag.exceptions.CircuitOpenException;
+
+/**
+ * A GuardedBailiff is a local proxy around the remote reference of a
+ * Bailiff. Every call first asks the CircuitBreaker of the Bailiff: an
+ * open breaker makes the call fail at once with a CircuitOpenException.
+ * A failure of the transport counts as a failure of the Bailiff: it
+ * could not be reached, its reference is stale, or the call broke or
+ * timed out on the wire. Anything else counts as a success, since the
+ * Bailiff did answer: a normal result, an exception such as
+ * NoSuchAgentException, and a RemoteException the Bailiff threw itself,
+ * such as the refusal of a full or draining Bailiff, which reaches the
+ * client as a ServerException.
+ * <p>
+ * How long a single call may block is bounded by the socket factory the
+ * Bailiff was exported with, see {@link TimeoutSocketFactory}.
+ */
+public final class GuardedBailiff implements InvocationHandler {
+
+    private final BailiffInterface target;
+    private final CircuitBreaker breaker;
+    private final Object endpoint;
+
+    private GuardedBailiff(BailiffInterface target, Object endpoint) {
+        this.target = target;
+        this.endpoint = endpoint;
+        this.breaker = CircuitBreaker.of(endpoint);
+    }
+
+    /**
+     * Wraps the remote reference of a Bailiff.
+     *
+     * @param bfi      The remote reference.
+     * @param endpoint The key of the Bailiff's breaker, normally its
+     *                 ServiceID.
+     * @return A proxy that calls bfi through the breaker.
+     */
+    public static BailiffInterface guard(BailiffInterface bfi, Object endpoint) {
+        if (Proxy.isProxyClass(bfi.getClass())
+                && Proxy.getInvocationHandler(bfi) instanceof GuardedBailiff) {
+            return bfi;    // Already guarded
+        }
+        return (BailiffInterface) Proxy.newProxyInstance
+                (BailiffInterface.class.getClassLoader(),
+                        new Class<?>[]{BailiffInterface.class},
+                        new GuardedBailiff(bfi, endpoint));
+    }
+
+    /**
+     * Returns the remote reference behind a proxy made by guard, or the
+     * argument itself if it is not one.
+     *
+     * @param bfi A Bailiff reference.
+     * @return The unguarded reference.
+     */
+    public static BailiffInterface unguard(BailiffInterface bfi) {
+        if (bfi != null && Proxy.isProxyClass(bfi.getClass())) {
+            InvocationHandler h = Proxy.getInvocationHandler(bfi);
+            if (h instanceof GuardedBailiff) {
+                return ((GuardedBailiff) h).target;
+            }
+        }
+        return bfi;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+        if (m.getDeclaringClass() == Object.class) {
+            // Proxies of the same Bailiff are equal, and equal to the
+            // Bailiff's own reference.
+            switch (m.getName()) {
+                case "equals":
+                    return target.equals(unguard((args[0] instanceof BailiffInterface)
+                            ? (BailiffInterface) args[0] : null));
+                case "hashCode":
+                    return target.hashCode();
+                default:
+                    return "Guarded" + target;
+            }
+        }
+
+        if (!breaker.tryAcquire()) {
+            throw new CircuitOpenException(endpoint);
+        }
+        try {
+            Object result = m.invoke(target, args);
+            breaker.onSuccess();
+            return result;
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (isTransportFailure(cause)) {
+                breaker.onFailure();
+            } else {
+                breaker.onSuccess();
+            }
+            throw cause;
+        }
+    }
+
+    /**
+     * Returns true if a call failed on the way to or from the Bailiff,
+     * rather than being answered by it. Only such failures tell that a
+     * Bailiff is hard to reach; a refusal tells that it is busy.
+     *
+     * @param t What the call threw.
+     * @return True for a failure of the transport.
+     */
+    public static boolean isTransportFailure(Throwable t) {
+        if (!(t instanceof RemoteException)
+                || t instanceof ServerException || t instanceof ServerError) {
+            return false;
+        }
+        Throwable cause = t.getCause();
+        if (t instanceof MarshalException || t instanceof UnmarshalException) {
+            // A broken or timed out stream, but not an object that could
+            // not be serialized or a class that could not be loaded.
+            return !(cause instanceof ObjectStreamException
+                    || cause instanceof ClassNotFoundException);
+        }
+        return t instanceof ConnectException
+                || t instanceof ConnectIOException
+                || t instanceof java.rmi.UnknownHostException
+                || t instanceof NoSuchObjectException
+                || cause instanceof IOException;
+    }
+}
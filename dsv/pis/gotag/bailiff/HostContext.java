@@ -0,0 +1,237 @@
+// HostContext.java
+// The AgentContext a Bailiff lends to its residents.
+
+package dsv.pis.gotag.bailiff;
+
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import dsv.pis.gotag.util.Logger;
+import net.jini.core.lookup.ServiceID;
+import net.jini.core.lookup.ServiceItem;
+import net.jini.core.lookup.ServiceTemplate;
+import net.jini.lookup.LookupCache;
+import net.jini.lookup.ServiceDiscoveryEvent;
+import net.jini.lookup.ServiceDiscoveryListener;
+import net.jini.lookup.ServiceItemFilter;
+
+/**
+ * The HostContext answers the lookups of resident agents from the
+ * Bailiff's LookupCache of BailiffInterface services. The cache can only
+ * be filtered, so the templates of the agents are matched here, by a
+ * {@link TemplateMatcher}.
+ * <p>
+ * Each agent is lent a {@link Lease} on the context, which remembers
+ * the listeners the agent adds, so that the Bailiff can remove them when
+ * the agent leaves, even if the agent failed to.
+ */
+class HostContext implements AgentContext {
+
+    private final LookupCache bailiffs;
+    private final BailiffInterface local;
+    private final Supplier<ServiceID> serviceID;
+    private final Logger log;
+
+    /**
+     * The listeners of the agents and the filtering listeners registered
+     * with the cache on their behalf.
+     */
+    private final ConcurrentHashMap<ServiceDiscoveryListener, ServiceDiscoveryListener> listeners =
+            new ConcurrentHashMap<ServiceDiscoveryListener, ServiceDiscoveryListener>();
+
+    /**
+     * Passes on the events of the cache about Bailiffs that match an
+     * agent's template and filter.
+     */
+    private static final class FilteredListener implements ServiceDiscoveryListener {
+        private final ServiceTemplate tmpl;
+        private final ServiceItemFilter filter;
+        private final ServiceDiscoveryListener target;
+
+        FilteredListener(ServiceTemplate tmpl, ServiceItemFilter filter,
+                         ServiceDiscoveryListener target) {
+            this.tmpl = tmpl;
+            this.filter = filter;
+            this.target = target;
+        }
+
+        private boolean accepts(ServiceItem item) {
+            return item != null && TemplateMatcher.matches(tmpl, item)
+                    && (filter == null || filter.check(item));
+        }
+
+        public void serviceAdded(ServiceDiscoveryEvent e) {
+            if (accepts(e.getPostEventServiceItem())) {
+                target.serviceAdded(e);
+            }
+        }
+
+        public void serviceRemoved(ServiceDiscoveryEvent e) {
+            if (accepts(e.getPreEventServiceItem())) {
+                target.serviceRemoved(e);
+            }
+        }
+
+        public void serviceChanged(ServiceDiscoveryEvent e) {
+            if (accepts(e.getPostEventServiceItem())
+                    || accepts(e.getPreEventServiceItem())) {
+                target.serviceChanged(e);
+            }
+        }
+    }
+
+    /**
+     * Creates a new context.
+     *
+     * @param bailiffs  The Bailiff's discovery cache of Bailiffs.
+     * @param local     The Bailiff itself.
+     * @param serviceID Tells the ServiceID of the Bailiff, once known.
+     * @param log       The log of the Bailiff.
+     */
+    HostContext(LookupCache bailiffs, BailiffInterface local,
+                Supplier<ServiceID> serviceID, Logger log) {
+        this.bailiffs = bailiffs;
+        this.local = local;
+        this.serviceID = serviceID;
+        this.log = log;
+    }
+
+    /**
+     * Lends the context to an agent.
+     *
+     * @return A new lease, to be closed when the agent leaves.
+     */
+    Lease lend() {
+        return new Lease();
+    }
+
+    /**
+     * The context as lent to one agent. It passes the calls on to the
+     * HostContext and keeps track of the agent's listeners.
+     */
+    final class Lease implements AgentContext {
+
+        private final HashSet<ServiceDiscoveryListener> added =
+                new HashSet<ServiceDiscoveryListener>();
+        private boolean closed = false;
+
+        private Lease() {
+        }
+
+        /**
+         * Removes the listeners the agent has left behind. Listeners
+         * added afterwards are ignored.
+         */
+        synchronized void close() {
+            closed = true;
+            for (ServiceDiscoveryListener listener : added) {
+                HostContext.this.removeBailiffListener(listener);
+            }
+            added.clear();
+        }
+
+        // In AgentContext:
+
+        @Override
+        public ServiceItem[] lookupBailiffs(ServiceTemplate tmpl, int maxMatches,
+                                            ServiceItemFilter filter) {
+            return HostContext.this.lookupBailiffs(tmpl, maxMatches, filter);
+        }
+
+        // In AgentContext:
+
+        @Override
+        public synchronized void addBailiffListener(ServiceTemplate tmpl, ServiceItemFilter filter,
+                                                    ServiceDiscoveryListener listener) {
+            if (!closed && added.add(listener)) {
+                HostContext.this.addBailiffListener(tmpl, filter, listener);
+            }
+        }
+
+        // In AgentContext:
+
+        @Override
+        public synchronized void removeBailiffListener(ServiceDiscoveryListener listener) {
+            if (added.remove(listener)) {
+                HostContext.this.removeBailiffListener(listener);
+            }
+        }
+
+        // In AgentContext:
+
+        @Override
+        public BailiffInterface getLocalBailiff() {
+            return HostContext.this.getLocalBailiff();
+        }
+
+        // In AgentContext:
+
+        @Override
+        public ServiceID getServiceID() {
+            return HostContext.this.getServiceID();
+        }
+
+        // In AgentContext:
+
+        @Override
+        public void log(String entry) {
+            HostContext.this.log(entry);
+        }
+    }
+
+    // In AgentContext:
+
+    @Override
+    public ServiceItem[] lookupBailiffs(final ServiceTemplate tmpl, int maxMatches,
+                                        final ServiceItemFilter filter) {
+        ServiceItem[] items = bailiffs.lookup(new ServiceItemFilter() {
+            public boolean check(ServiceItem item) {
+                return TemplateMatcher.matches(tmpl, item) && (filter == null || filter.check(item));
+            }
+        }, maxMatches);
+        return (items != null) ? items : new ServiceItem[0];
+    }
+
+    // In AgentContext:
+
+    @Override
+    public void addBailiffListener(ServiceTemplate tmpl, ServiceItemFilter filter,
+                                   ServiceDiscoveryListener listener) {
+        FilteredListener fl = new FilteredListener(tmpl, filter, listener);
+        if (listeners.putIfAbsent(listener, fl) == null) {
+            bailiffs.addListener(fl);
+        }
+    }
+
+    // In AgentContext:
+
+    @Override
+    public void removeBailiffListener(ServiceDiscoveryListener listener) {
+        ServiceDiscoveryListener fl = listeners.remove(listener);
+        if (fl != null) {
+            bailiffs.removeListener(fl);
+        }
+    }
+
+    // In AgentContext:
+
+    @Override
+    public BailiffInterface getLocalBailiff() {
+        return local;
+    }
+
+    // In AgentContext:
+
+    @Override
+    public ServiceID getServiceID() {
+        return serviceID.get();
+    }
+
+    // In AgentContext:
+
+    @Override
+    public void log(String entry) {
+        log.entry(entry);
+    }
+}
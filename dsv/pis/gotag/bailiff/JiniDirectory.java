@@ -0,0 +1,99 @@
+// JiniDirectory.java
+// The BailiffDirectory of the Jini lookup servers on the network.
+
+package dsv.pis.gotag.bailiff;
+
+import java.io.IOException;
+
+import net.jini.core.entry.Entry;
+import net.jini.core.lookup.ServiceItem;
+import net.jini.core.lookup.ServiceTemplate;
+import net.jini.lease.LeaseRenewalManager;
+import net.jini.lookup.JoinManager;
+import net.jini.lookup.LookupCache;
+import net.jini.lookup.ServiceDiscoveryManager;
+import net.jini.lookup.ServiceIDListener;
+import net.jini.lookup.ServiceItemFilter;
+
+/**
+ * The JiniDirectory registers a Bailiff with all the Jini lookup servers
+ * it discovers, through a JoinManager, and finds peers through a
+ * ServiceDiscoveryManager. It is the directory a Bailiff uses unless it
+ * is given another.
+ * <p>
+ * The JoinManager is given the discovery and lease renewal managers of
+ * the ServiceDiscoveryManager, so that a Bailiff runs one discovery
+ * session against the lookup servers, not one for each.
+ */
+class JiniDirectory implements BailiffDirectory {
+
+    private final LeaseRenewalManager leases = new LeaseRenewalManager();
+    private JoinManager joinManager;
+    private ServiceDiscoveryManager sdm;
+
+    // In BailiffDirectory:
+
+    @Override
+    public synchronized void register(Object service, Entry[] attributes,
+                                      ServiceIDListener listener)
+            throws IOException {
+        joinManager = new JoinManager
+                (
+                        service,        // the service object
+                        attributes,     // the attribute sets
+                        listener,       // Service ID callback
+                        discovery().getDiscoveryManager(), // Shared discovery
+                        leases          // Shared lease renewal
+                );
+    }
+
+    // In BailiffDirectory:
+
+    @Override
+    public void modifyAttributes(Entry[] templates, Entry[] attributes) {
+        joinManager.modifyAttributes(templates, attributes);
+    }
+
+    // In BailiffDirectory:
+
+    @Override
+    public synchronized LookupCache createLookupCache(ServiceTemplate tmpl) throws IOException {
+        return discovery().createLookupCache(tmpl, null, null);
+    }
+
+    // In BailiffDirectory:
+
+    @Override
+    public ServiceItem[] lookup(ServiceTemplate tmpl, int minMatches, int maxMatches,
+                                ServiceItemFilter filter, long waitMillis)
+            throws InterruptedException, java.rmi.RemoteException {
+        ServiceDiscoveryManager d;
+        try {
+            d = discovery();
+        } catch (IOException e) {
+            throw new java.rmi.RemoteException("discovery failed", e);
+        }
+        return d.lookup(tmpl, minMatches, maxMatches, filter, waitMillis);
+    }
+
+    // In BailiffDirectory:
+
+    @Override
+    public synchronized void terminate() {
+        // The JoinManager first: the discovery it uses belongs to the SDM,
+        // which ends it.
+        if (joinManager != null) {
+            joinManager.terminate();
+        }
+        if (sdm != null) {
+            sdm.terminate();
+        }
+    }
+
+    private synchronized ServiceDiscoveryManager discovery() throws IOException {
+        if (sdm == null) {
+            sdm = new ServiceDiscoveryManager(null, leases);
+        }
+        return sdm;
+    }
+}
@@ -0,0 +1,95 @@
+// LoadPublisher.java
+// Rate-limited refresh of the BailiffLoad attribute.
+
+package dsv.pis.gotag.bailiff;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import dsv.pis.gotag.util.Logger;
+import net.jini.core.entry.Entry;
+
+/**
+ * The LoadPublisher keeps the BailiffLoad attribute of a Bailiff up to
+ * date in the lookup servers. Every change of the roster calls
+ * {@link #changed}, but the attribute is rewritten at most once per
+ * interval and only if it differs from the one last published, since
+ * each rewrite is a remote call to every lookup server the directory
+ * knows of.
+ */
+class LoadPublisher {
+
+    private final BailiffDirectory directory;
+    private final Supplier<BailiffLoad> source;
+    private final long intervalMillis;
+    private final Logger log;
+    private final ScheduledExecutorService timer;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile long lastPublished = 0;
+    private BailiffLoad published; // Only touched by the timer thread
+
+    /**
+     * Creates a new publisher.
+     *
+     * @param directory      The directory the Bailiff is registered in.
+     * @param initial        The load entry registered with the Bailiff.
+     * @param source         Computes the current load.
+     * @param intervalMillis The minimum time between two refreshes.
+     * @param log            The log for refresh failures.
+     */
+    LoadPublisher(BailiffDirectory directory, BailiffLoad initial,
+                  Supplier<BailiffLoad> source, long intervalMillis, Logger log) {
+        this.directory = directory;
+        this.published = initial;
+        this.source = source;
+        this.intervalMillis = intervalMillis;
+        this.log = log;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "load-publisher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Tells the publisher that the load may have changed. A refresh is
+     * scheduled unless one is pending already.
+     */
+    void changed() {
+        if (scheduled.compareAndSet(false, true)) {
+            long delay = lastPublished + intervalMillis - System.currentTimeMillis();
+            try {
+                timer.schedule(this::publish, Math.max(0, delay), TimeUnit.MILLISECONDS);
+            } catch (java.util.concurrent.RejectedExecutionException e) {
+                // Shut down
+            }
+        }
+    }
+
+    /**
+     * Stops refreshing.
+     */
+    void shutdown() {
+        timer.shutdownNow();
+    }
+
+    private void publish() {
+        // Clear the flag first, so that a change during the refresh
+        // schedules another one.
+        scheduled.set(false);
+        BailiffLoad current = source.get();
+        if (!current.equals(published)) {
+            try {
+                directory.modifyAttributes(new Entry[]{new BailiffLoad()},
+                        new Entry[]{current});
+                published = current;
+            } catch (RuntimeException e) {
+                log.entry(e);
+            }
+        }
+        lastPublished = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,152 @@
+// MailForwarder.java
+// Forwards the mail held by a Bailiff to the Bailiffs of its recipients.
+
+package dsv.pis.gotag.bailiff;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import dsv.pis.gotag.util.Logger;
+import net.jini.core.entry.Entry;
+import net.jini.core.lookup.ServiceItem;
+import net.jini.core.lookup.ServiceTemplate;
+import net.jini.lookup.LookupCache;
+import net.jini.lookup.ServiceItemFilter;
+import net.jini.lookup.entry.Location;
+
+/**
+ * The MailForwarder moves the messages in a Bailiff's Mailbox that are
+ * for other users to a Bailiff registered for each of them, up to
+ * MAX_BATCH messages per remote call. A message is removed here only
+ * once the other Bailiff has taken it, so it is delivered at least once;
+ * the receiving Mailbox ignores copies it already holds.
+ * <p>
+ * The forwarder runs every interval, and soon after {@link #changed} is
+ * called. It also expires old messages. Messages for a user without a
+ * Bailiff in sight simply wait for the next run.
+ */
+class MailForwarder {
+
+    /**
+     * The maximum number of messages sent in one call.
+     */
+    static final int MAX_BATCH = 256;
+
+    /**
+     * The maximum number of Bailiffs of a user tried in one run.
+     */
+    private static final int MAX_TARGETS = 3;
+
+    private final Mailbox mailbox;
+    private final String localUser;
+    private final LookupCache bailiffs;
+    private final Logger log;
+    private final ScheduledExecutorService timer;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /**
+     * Creates and starts a new forwarder.
+     *
+     * @param mailbox        The mailbox to forward from.
+     * @param localUser      The user of this Bailiff, whose mail stays.
+     * @param bailiffs       The discovery cache of Bailiffs.
+     * @param intervalMillis The time between two runs.
+     * @param log            The log for failures.
+     */
+    MailForwarder(Mailbox mailbox, String localUser, LookupCache bailiffs,
+                  long intervalMillis, Logger log) {
+        this.mailbox = mailbox;
+        this.localUser = (localUser != null) ? localUser.toLowerCase() : null;
+        this.bailiffs = bailiffs;
+        this.log = log;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "mail-forwarder");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleWithFixedDelay(this::run, intervalMillis, intervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Tells the forwarder that there is mail to forward. A run is
+     * scheduled at once unless one is pending already.
+     */
+    void changed() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                timer.execute(this::run);
+            } catch (java.util.concurrent.RejectedExecutionException e) {
+                // Shut down
+            }
+        }
+    }
+
+    /**
+     * Stops forwarding.
+     */
+    void shutdown() {
+        timer.shutdownNow();
+    }
+
+    private void run() {
+        scheduled.set(false);
+        try {
+            mailbox.expire(System.currentTimeMillis());
+            for (String user : mailbox.users()) {
+                if (!user.equals(localUser)) {
+                    forward(user);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.entry(e);
+        }
+    }
+
+    /**
+     * Sends the mail of a user to one of the user's Bailiffs.
+     */
+    private void forward(String user) throws IOException {
+        final ServiceTemplate tmpl = new ServiceTemplate(null,
+                new Class[]{BailiffInterface.class},
+                new Entry[]{new Location(null, null, user)});
+        ServiceItem[] targets = bailiffs.lookup(new ServiceItemFilter() {
+            public boolean check(ServiceItem item) {
+                return TemplateMatcher.matches(tmpl, item)
+                        && !CircuitBreaker.isOpen(item.serviceID);
+            }
+        }, MAX_TARGETS);
+        if (targets == null) {
+            return;
+        }
+
+        for (ServiceItem item : targets) {
+            BailiffInterface bfi =
+                    GuardedBailiff.guard((BailiffInterface) item.service, item.serviceID);
+            try {
+                ArrayList<MailMessage> batch = mailbox.peek(user, MAX_BATCH);
+                while (!batch.isEmpty()) {
+                    int taken = bfi.enqueueBatch(batch);
+                    if (taken == 0) {
+                        break;    // That Bailiff keeps no mail
+                    }
+                    // Those not taken have expired on the way.
+                    mailbox.remove(batch);
+                    log.entry("<mailForwarded to=\"" + user + "\" messages=\""
+                            + taken + "\" of=\"" + batch.size() + "\"/>");
+                    batch = mailbox.peek(user, MAX_BATCH);
+                }
+                if (batch.isEmpty()) {
+                    return;
+                }
+            } catch (RemoteException e) {
+                log.entry(e);    // Try the next Bailiff of the user
+            }
+        }
+    }
+}
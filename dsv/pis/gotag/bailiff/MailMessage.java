@@ -0,0 +1,159 @@
+// MailMessage.java
+// A message held in the mailboxes of Bailiffs.
+
+package dsv.pis.gotag.bailiff;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.UUID;
+
+/**
+ * A MailMessage is a short text for a user, deposited at any Bailiff with
+ * {@link BailiffInterface#enqueue} and forwarded in batches to a Bailiff
+ * registered for that user, where it waits to be drained. It carries a
+ * UUID, so that a message forwarded twice is stored only once, and the
+ * Java system time at which it expires.
+ */
+public class MailMessage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The longest text a message may have, in characters.
+     */
+    public static final int MAX_TEXT_LENGTH = 8192;
+
+    /**
+     * The longest user name a message may have, in characters.
+     */
+    public static final int MAX_USER_LENGTH = 256;
+
+    private final UUID id;
+    private final String toUser;
+    private final String fromUser;
+    private final String text;
+    private final long posted;
+    private final long expires;
+
+    /**
+     * Creates a new message.
+     *
+     * @param toUser   The (system-local) name of the recipient.
+     * @param fromUser The name of the sender, or null.
+     * @param text     The message text.
+     * @param expires  The Java system time when the message expires.
+     * @throws IllegalArgumentException Thrown if the recipient is missing
+     *                                  or a name or the text is too long.
+     */
+    public MailMessage(String toUser, String fromUser, String text, long expires) {
+        this(UUID.randomUUID(), toUser, fromUser, text,
+                System.currentTimeMillis(), expires);
+    }
+
+    MailMessage(UUID id, String toUser, String fromUser, String text,
+                long posted, long expires) {
+        if (text == null) {
+            text = "";
+        }
+        check(toUser, fromUser, text);
+        this.id = id;
+        this.toUser = toUser.toLowerCase();
+        this.fromUser = fromUser;
+        this.text = text;
+        this.posted = posted;
+        this.expires = expires;
+    }
+
+    /**
+     * Checks the fields of a message, as the constructor would.
+     *
+     * @throws IllegalArgumentException Thrown if the recipient is missing
+     *                                  or a name or the text is too long.
+     */
+    private static void check(String toUser, String fromUser, String text) {
+        if (toUser == null || toUser.isEmpty()) {
+            throw new IllegalArgumentException("no recipient");
+        }
+        if (MAX_USER_LENGTH < toUser.length()
+                || (fromUser != null && MAX_USER_LENGTH < fromUser.length())) {
+            throw new IllegalArgumentException("user name too long");
+        }
+        if (MAX_TEXT_LENGTH < text.length()) {
+            throw new IllegalArgumentException
+                    ("text of " + text.length() + " characters");
+        }
+    }
+
+    /**
+     * Reads a message sent by another party, which need not have built it
+     * with the constructor, and refuses it if the constructor would have.
+     */
+    private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (id == null || text == null) {
+            throw new InvalidObjectException("incomplete message");
+        }
+        try {
+            check(toUser, fromUser, text);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidObjectException(e.getMessage());
+        }
+        if (!toUser.equals(toUser.toLowerCase())) {
+            throw new InvalidObjectException("recipient not in lower case");
+        }
+    }
+
+    public UUID getUUID() {
+        return id;
+    }
+
+    /**
+     * Returns the recipient, in lower case.
+     */
+    public String getToUser() {
+        return toUser;
+    }
+
+    /**
+     * Returns the sender, or null if unknown.
+     */
+    public String getFromUser() {
+        return fromUser;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Returns the Java system time when the message was created.
+     */
+    public long getPosted() {
+        return posted;
+    }
+
+    /**
+     * Returns the Java system time when the message expires.
+     */
+    public long getExpires() {
+        return expires;
+    }
+
+    /**
+     * Returns true if the message has expired.
+     *
+     * @param now The current Java system time.
+     * @return True if the message is no longer to be delivered.
+     */
+    public boolean isExpired(long now) {
+        return expires <= now;
+    }
+
+    public String toString() {
+        return "<mailMessage id=\"" + id + "\" to=\"" + toUser
+                + "\" from=\"" + fromUser + "\" expires=\"" + expires + "\"/>";
+    }
+}
@@ -0,0 +1,412 @@
+// Mailbox.java
+// Store of mail messages held by a Bailiff, kept in an append-only file.
+
+package dsv.pis.gotag.bailiff;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+
+import dsv.pis.gotag.util.Logger;
+
+/**
+ * The Mailbox holds the MailMessages deposited at a Bailiff, by recipient,
+ * in the order they arrived: those for the Bailiff's own user until they
+ * are drained, the others until they have been forwarded or expire.
+ * <p>
+ * Every change is appended to a file as one record, and the file is
+ * forced to the disk before the change is acknowledged, so the messages
+ * survive a restart of the Bailiff, or a crash of its host. A record is
+ * encoded whole before it is written, and a failed write is cut off the
+ * file again, so a record is either in the file or not at all. A record
+ * is either a message or the removal of one. When the file holds many
+ * more records than live messages it is compacted: the live messages are
+ * written to a new file, which then replaces the old one. A record cut
+ * short by a crash ends the replay.
+ * A lock file next to the file keeps two Bailiffs from sharing it.
+ * <p>
+ * A message costs its text and a few dozen bytes, in memory and on disk;
+ * no thread is held for it.
+ */
+class Mailbox {
+
+    /**
+     * The record of a message.
+     */
+    private static final int MESSAGE = 'M';
+
+    /**
+     * The record of a removal.
+     */
+    private static final int REMOVAL = 'R';
+
+    /**
+     * The number of dead records the file may hold before it is compacted,
+     * beyond one per live message.
+     */
+    private static final int COMPACT_SLACK = 1024;
+
+    private final File file;
+    private final Logger log;
+    private final HashMap<String, LinkedHashMap<UUID, MailMessage>> boxes =
+            new HashMap<String, LinkedHashMap<UUID, MailMessage>>();
+    private int size = 0;
+    private int records = 0;
+    private FileOutputStream lockFile;
+    private FileOutputStream out;
+
+    /**
+     * Opens a mailbox, reading the messages kept in its file. Messages
+     * that have expired meanwhile are dropped.
+     *
+     * @param file The file of the mailbox. It is created if missing.
+     * @param log  The log for damaged files.
+     * @throws IOException Thrown if the file can not be read or written,
+     *                     or is in use by another mailbox.
+     */
+    Mailbox(File file, Logger log) throws IOException {
+        this.file = file;
+        this.log = log;
+        lockFile = new FileOutputStream(file.getPath() + ".lock");
+        FileLock lock = null;
+        try {
+            lock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Held by another mailbox in this JVM
+        } finally {
+            if (lock == null) {
+                lockFile.close();
+            }
+        }
+        if (lock == null) {
+            throw new IOException("mailbox " + file + " is in use");
+        }
+        try {
+            if (file.exists()) {
+                replay();
+            }
+            expire(System.currentTimeMillis());
+            compact();
+        } catch (IOException e) {
+            lockFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Stores a message, unless it has expired or is stored already.
+     *
+     * @param msg The message.
+     * @param now The current Java system time.
+     * @return True if the message is held, now or from before.
+     * @throws IOException Thrown if the message can not be written.
+     */
+    synchronized boolean enqueue(MailMessage msg, long now) throws IOException {
+        if (msg.isExpired(now)) {
+            return false;
+        }
+        checkOpen();
+        LinkedHashMap<UUID, MailMessage> box = boxes.get(msg.getToUser());
+        if (box != null && box.containsKey(msg.getUUID())) {
+            return true;
+        }
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        writeMessage(new DataOutputStream(record), msg);
+        append(record);
+        records++;
+        add(msg);
+        return true;
+    }
+
+    /**
+     * Removes and returns the oldest messages for a user that have not
+     * expired.
+     *
+     * @param user The recipient.
+     * @param max  The maximum number of messages.
+     * @return The messages, possibly none.
+     * @throws IOException Thrown if the removal can not be written.
+     */
+    synchronized ArrayList<MailMessage> drain(String user, int max) throws IOException {
+        ArrayList<MailMessage> taken = peek(user, max);
+        remove(taken);
+        return taken;
+    }
+
+    /**
+     * Returns the oldest messages for a user that have not expired,
+     * without removing them.
+     *
+     * @param user The recipient.
+     * @param max  The maximum number of messages.
+     * @return The messages, possibly none.
+     */
+    synchronized ArrayList<MailMessage> peek(String user, int max) {
+        ArrayList<MailMessage> found = new ArrayList<MailMessage>();
+        LinkedHashMap<UUID, MailMessage> box = boxes.get(user.toLowerCase());
+        if (box != null) {
+            long now = System.currentTimeMillis();
+            for (MailMessage msg : box.values()) {
+                if (max <= found.size()) {
+                    break;
+                }
+                if (!msg.isExpired(now)) {
+                    found.add(msg);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Removes messages, such as those that have been forwarded.
+     *
+     * @param msgs The messages. Those not held are ignored.
+     * @throws IOException Thrown if the removal can not be written.
+     */
+    synchronized void remove(Collection<MailMessage> msgs) throws IOException {
+        checkOpen();
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        DataOutputStream w = new DataOutputStream(batch);
+        ArrayList<MailMessage> held = new ArrayList<MailMessage>();
+        for (MailMessage msg : msgs) {
+            LinkedHashMap<UUID, MailMessage> box = boxes.get(msg.getToUser());
+            if (box != null && box.containsKey(msg.getUUID())) {
+                writeRemoval(w, msg.getUUID());
+                held.add(msg);
+            }
+        }
+        if (held.isEmpty()) {
+            return;
+        }
+        append(batch);
+        for (MailMessage msg : held) {
+            LinkedHashMap<UUID, MailMessage> box = boxes.get(msg.getToUser());
+            box.remove(msg.getUUID());
+            if (box.isEmpty()) {
+                boxes.remove(msg.getToUser());
+            }
+            size--;
+        }
+        records += held.size();
+        compactIfSparse();
+    }
+
+    /**
+     * Removes the messages that have expired.
+     *
+     * @param now The current Java system time.
+     * @return The number of messages removed.
+     * @throws IOException Thrown if the removals can not be written.
+     */
+    synchronized int expire(long now) throws IOException {
+        ArrayList<MailMessage> expired = new ArrayList<MailMessage>();
+        for (LinkedHashMap<UUID, MailMessage> box : boxes.values()) {
+            for (MailMessage msg : box.values()) {
+                if (msg.isExpired(now)) {
+                    expired.add(msg);
+                }
+            }
+        }
+        if (out != null) {
+            remove(expired);
+        } else {
+            // Still opening: the file is rewritten next.
+            for (MailMessage msg : expired) {
+                LinkedHashMap<UUID, MailMessage> box = boxes.get(msg.getToUser());
+                box.remove(msg.getUUID());
+                if (box.isEmpty()) {
+                    boxes.remove(msg.getToUser());
+                }
+                size--;
+            }
+        }
+        return expired.size();
+    }
+
+    /**
+     * Returns the recipients that have messages here.
+     */
+    synchronized ArrayList<String> users() {
+        return new ArrayList<String>(boxes.keySet());
+    }
+
+    /**
+     * Returns the number of messages held.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Closes the file. The mailbox can not be used afterwards.
+     */
+    synchronized void close() {
+        try {
+            if (out != null) {
+                out.close();
+            }
+            lockFile.close();    // Also releases the lock
+        } catch (IOException e) {
+            log.entry(e);
+        }
+        out = null;
+    }
+
+    private void checkOpen() throws IOException {
+        if (out == null) {
+            throw new IOException("mailbox " + file + " is closed");
+        }
+    }
+
+    /**
+     * Appends encoded records to the file and forces them to the disk.
+     * If that fails, the file is cut back to its length before, so that
+     * no part of the records is left to be replayed.
+     */
+    private void append(ByteArrayOutputStream records) throws IOException {
+        long length = out.getChannel().size();
+        try {
+            records.writeTo(out);
+            out.getChannel().force(false);
+        } catch (IOException e) {
+            try {
+                out.getChannel().truncate(length);
+            } catch (IOException f) {
+                log.entry(f);
+            }
+            throw e;
+        }
+    }
+
+    private void add(MailMessage msg) {
+        LinkedHashMap<UUID, MailMessage> box = boxes.get(msg.getToUser());
+        if (box == null) {
+            box = new LinkedHashMap<UUID, MailMessage>();
+            boxes.put(msg.getToUser(), box);
+        }
+        if (box.put(msg.getUUID(), msg) == null) {
+            size++;
+        }
+    }
+
+    /**
+     * Reads the records of the file into memory.
+     */
+    private void replay() throws IOException {
+        HashMap<UUID, String> owner = new HashMap<UUID, String>();
+        try (DataInputStream in = new DataInputStream
+                (new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int type;
+                try {
+                    type = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    break;        // Clean end
+                }
+                if (type == MESSAGE) {
+                    MailMessage msg = readMessage(in);
+                    add(msg);
+                    owner.put(msg.getUUID(), msg.getToUser());
+                } else if (type == REMOVAL) {
+                    UUID id = new UUID(in.readLong(), in.readLong());
+                    String user = owner.remove(id);
+                    LinkedHashMap<UUID, MailMessage> box =
+                            (user != null) ? boxes.get(user) : null;
+                    if (box != null && box.remove(id) != null) {
+                        if (box.isEmpty()) {
+                            boxes.remove(user);
+                        }
+                        size--;
+                    }
+                } else {
+                    log.entry("<mailbox file=\"" + file + "\" damaged=\"record type "
+                            + type + "\"/>");
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            log.entry("<mailbox file=\"" + file + "\" damaged=\"last record cut short\"/>");
+        } catch (IllegalArgumentException e) {
+            log.entry("<mailbox file=\"" + file + "\" damaged=\"" + e.getMessage() + "\"/>");
+        }
+    }
+
+    private void compactIfSparse() throws IOException {
+        if (2 * size + COMPACT_SLACK < records) {
+            compact();
+        }
+    }
+
+    /**
+     * Writes the live messages to a new file, replaces the old file with
+     * it and opens it for appending.
+     */
+    private void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream f = new FileOutputStream(tmp)) {
+            DataOutputStream w = new DataOutputStream(new BufferedOutputStream(f));
+            for (LinkedHashMap<UUID, MailMessage> box : boxes.values()) {
+                for (MailMessage msg : box.values()) {
+                    writeMessage(w, msg);
+                }
+            }
+            w.flush();
+            f.getChannel().force(false);
+        }
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        records = size;
+        out = new FileOutputStream(file, true);
+    }
+
+    private static void writeMessage(DataOutputStream w, MailMessage msg) throws IOException {
+        w.writeByte(MESSAGE);
+        w.writeLong(msg.getUUID().getMostSignificantBits());
+        w.writeLong(msg.getUUID().getLeastSignificantBits());
+        w.writeUTF(msg.getToUser());
+        w.writeBoolean(msg.getFromUser() != null);
+        if (msg.getFromUser() != null) {
+            w.writeUTF(msg.getFromUser());
+        }
+        w.writeUTF(msg.getText());
+        w.writeLong(msg.getPosted());
+        w.writeLong(msg.getExpires());
+    }
+
+    private static MailMessage readMessage(DataInputStream in) throws IOException {
+        UUID id = new UUID(in.readLong(), in.readLong());
+        String toUser = in.readUTF();
+        String fromUser = in.readBoolean() ? in.readUTF() : null;
+        String text = in.readUTF();
+        long posted = in.readLong();
+        long expires = in.readLong();
+        return new MailMessage(id, toUser, fromUser, text, posted, expires);
+    }
+
+    private static void writeRemoval(DataOutputStream w, UUID id) throws IOException {
+        w.writeByte(REMOVAL);
+        w.writeLong(id.getMostSignificantBits());
+        w.writeLong(id.getLeastSignificantBits());
+    }
+}
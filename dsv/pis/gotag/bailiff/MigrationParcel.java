@@ -0,0 +1,67 @@
+// MigrationParcel.java
+// One agent of a batch migration.
+
+package dsv.pis.gotag.bailiff;
+
+import dsv.pis.gotag.player.TagPlayer;
+
+import java.io.Serializable;
+
+/**
+ * A MigrationParcel carries one agent of a batch migration together with
+ * the entry point it is to be started with. A batch of parcels is sent
+ * with {@link BailiffInterface#migrateBatch}, in a single stream, so the
+ * class descriptors of agents of the same type are sent only once.
+ */
+public class MigrationParcel implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TagPlayer agent;
+    private final String cb;
+    private final Object[] args;
+
+    /**
+     * Creates a new parcel.
+     *
+     * @param agent The object to execute.
+     * @param cb    The name of the method to call as the program of agent.
+     * @param args  The parameters for the callback method, never null.
+     */
+    public MigrationParcel(TagPlayer agent, String cb, Object[] args) {
+        this.agent = agent;
+        this.cb = cb;
+        this.args = args;
+    }
+
+    /**
+     * Returns the agent.
+     *
+     * @return The object to execute.
+     */
+    public TagPlayer getAgent() {
+        return agent;
+    }
+
+    /**
+     * Returns the name of the entry point.
+     *
+     * @return The callback name.
+     */
+    public String getCallback() {
+        return cb;
+    }
+
+    /**
+     * Returns the arguments to the entry point.
+     *
+     * @return The callback arguments.
+     */
+    public Object[] getArgs() {
+        return args;
+    }
+
+    public String toString() {
+        return "MigrationParcel[" + agent + "." + cb + "]";
+    }
+}
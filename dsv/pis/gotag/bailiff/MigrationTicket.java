@@ -0,0 +1,82 @@
+// MigrationTicket.java
+// Reservation token of the two-phase migration protocol.
+
+package dsv.pis.gotag.bailiff;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+/**
+ * A MigrationTicket is granted by {@link BailiffInterface#reserve} and
+ * holds a place for one agent in the granting Bailiff for a short time.
+ * The agent then ships itself with {@link BailiffInterface#commit}, or
+ * gives the place back with {@link BailiffInterface#cancel}.
+ * <p>
+ * The ticket also records the 'it' state the agent announced, so the
+ * agent can tell whether it has been tagged between the reservation and
+ * the commit.
+ */
+public class MigrationTicket implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long serial;
+    private final UUID agent;
+    private final boolean it;
+    private final long expires;
+
+    /**
+     * Creates a new ticket.
+     *
+     * @param serial  The Bailiff-local serial number of the reservation.
+     * @param agent   The UUID of the agent the place is reserved for.
+     * @param it      The 'it' state announced by the agent.
+     * @param expires The Java system time at which the reservation lapses.
+     */
+    public MigrationTicket(long serial, UUID agent, boolean it, long expires) {
+        this.serial = serial;
+        this.agent = agent;
+        this.it = it;
+        this.expires = expires;
+    }
+
+    /**
+     * Returns the serial number of the reservation.
+     *
+     * @return The serial number.
+     */
+    public long getSerial() {
+        return serial;
+    }
+
+    /**
+     * Returns the UUID of the agent the place is reserved for.
+     *
+     * @return The agent's UUID.
+     */
+    public UUID getAgent() {
+        return agent;
+    }
+
+    /**
+     * Returns the 'it' state announced when the place was reserved.
+     *
+     * @return True if the agent was 'it'.
+     */
+    public boolean isIt() {
+        return it;
+    }
+
+    /**
+     * Returns the Java system time at which the reservation lapses.
+     *
+     * @return The expiration time in milliseconds.
+     */
+    public long getExpires() {
+        return expires;
+    }
+
+    public String toString() {
+        return "MigrationTicket[" + serial + " for " + agent + "]";
+    }
+}
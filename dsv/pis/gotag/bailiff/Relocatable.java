@@ -0,0 +1,28 @@
+// Relocatable.java
+// Interface for agents that a Bailiff may move on their behalf.
+
+package dsv.pis.gotag.bailiff;
+
+/**
+ * A Relocatable agent lets its Bailiff move it elsewhere. A Bailiff that
+ * is being drained first asks its residents to leave. It then relocates
+ * those that are still there near the deadline, by shipping the parcels
+ * they return to peer Bailiffs.
+ * <p>
+ * Agents that are not Relocatable and do not leave by themselves are
+ * lost when their Bailiff shuts down. They are never copied, because the
+ * Bailiff can not stop the original.
+ */
+public interface Relocatable {
+
+    /**
+     * Stops the agent here and returns how to restart it elsewhere. After
+     * a non-null return the agent must consider itself gone. Its own
+     * thread, if any, must end without migrating.
+     *
+     * @return The parcel that restarts the agent in its current state, or
+     * null if the agent can not be relocated right now, for example
+     * because it is migrating by itself.
+     */
+    public MigrationParcel relocate();
+}
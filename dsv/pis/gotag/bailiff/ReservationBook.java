@@ -0,0 +1,159 @@
+// ReservationBook.java
+// Places held for agents that are about to migrate into a Bailiff.
+
+package dsv.pis.gotag.bailiff;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntSupplier;
+
+/**
+ * The ReservationBook holds the places a Bailiff has promised to agents
+ * through the two-phase migration protocol. A reservation is cheap to
+ * grant and lapses by itself if the agent never commits.
+ * <p>
+ * A place is held in two stages: reserved, until the agent commits or
+ * the reservation lapses, and then claimed, until the admitted agent is
+ * registered among the residents and the place is released. A place is
+ * thus always counted, as held or as a resident, and since the book
+ * counts the residents and its places under one monitor, the capacity
+ * can not be exceeded by concurrent reservations.
+ */
+class ReservationBook {
+
+    /**
+     * Reserved places by serial. Guarded by this book.
+     */
+    private final HashMap<Long, MigrationTicket> tickets =
+            new HashMap<Long, MigrationTicket>();
+
+    /**
+     * Claimed places by serial. They do not lapse. Guarded by this book.
+     */
+    private final HashMap<Long, MigrationTicket> claimed =
+            new HashMap<Long, MigrationTicket>();
+
+    private final long ttlMillis;
+
+    /**
+     * Creates a new, empty book.
+     *
+     * @param ttlMillis The lifetime of a reservation in milliseconds.
+     */
+    ReservationBook(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Grants a reservation if the number of residents plus the places
+     * already held stays within the capacity.
+     *
+     * @param agent     The UUID of the agent.
+     * @param it        The 'it' state announced by the agent.
+     * @param residents Gives the current number of resident agents.
+     * @param capacity  The maximum number of agents, or 0 for no limit.
+     * @return The ticket, or null if there is no room.
+     */
+    synchronized MigrationTicket reserve(UUID agent, boolean it, IntSupplier residents,
+                                         int capacity) {
+        expire();
+        if (0 < capacity && capacity <= residents.getAsInt() + tickets.size() + claimed.size()) {
+            return null;
+        }
+        for (; ; ) {
+            long serial = ThreadLocalRandom.current().nextLong();
+            if (tickets.containsKey(serial) || claimed.containsKey(serial)) {
+                continue;
+            }
+            MigrationTicket ticket = new MigrationTicket(serial, agent, it,
+                    System.currentTimeMillis() + ttlMillis);
+            tickets.put(serial, ticket);
+            return ticket;
+        }
+    }
+
+    /**
+     * Reserves and claims a place at once, for an agent that arrives
+     * without a reservation.
+     *
+     * @param residents Gives the current number of resident agents.
+     * @param capacity  The maximum number of agents, or 0 for no limit.
+     * @return The claimed ticket, to be released, or null if there is no room.
+     */
+    synchronized MigrationTicket hold(IntSupplier residents, int capacity) {
+        MigrationTicket ticket = reserve(UUID.randomUUID(), false, residents, capacity);
+        if (ticket != null) {
+            tickets.remove(ticket.getSerial());
+            claimed.put(ticket.getSerial(), ticket);
+        }
+        return ticket;
+    }
+
+    /**
+     * Claims a reservation for a commit. The place stays held until it
+     * is released.
+     *
+     * @param ticket The ticket presented by the agent.
+     * @return True if the reservation was held, unexpired, for that agent.
+     */
+    synchronized boolean claim(MigrationTicket ticket) {
+        MigrationTicket held = tickets.get(ticket.getSerial());
+        if (held == null
+                || !held.getAgent().equals(ticket.getAgent())
+                || held.getExpires() <= System.currentTimeMillis()) {
+            return false;
+        }
+        tickets.remove(held.getSerial());
+        claimed.put(held.getSerial(), held);
+        return true;
+    }
+
+    /**
+     * Releases a claimed place, once its agent is registered as a
+     * resident or could not be admitted. Releasing twice is harmless.
+     *
+     * @param ticket The claimed ticket.
+     */
+    synchronized void release(MigrationTicket ticket) {
+        claimed.remove(ticket.getSerial());
+    }
+
+    /**
+     * Takes a reservation out of the book, for use by a cancel.
+     *
+     * @param ticket The ticket presented by the agent.
+     * @return True if the reservation was held for that agent.
+     */
+    synchronized boolean cancel(MigrationTicket ticket) {
+        MigrationTicket held = tickets.get(ticket.getSerial());
+        if (held == null || !held.getAgent().equals(ticket.getAgent())) {
+            return false;
+        }
+        tickets.remove(held.getSerial());
+        return true;
+    }
+
+    /**
+     * Returns the number of places currently held.
+     *
+     * @return The number of unexpired reservations and claimed places.
+     */
+    synchronized int size() {
+        expire();
+        return tickets.size() + claimed.size();
+    }
+
+    /**
+     * Drops lapsed reservations.
+     */
+    private void expire() {
+        long now = System.currentTimeMillis();
+        for (Iterator<MigrationTicket> it = tickets.values().iterator(); it.hasNext(); ) {
+            if (it.next().getExpires() <= now) {
+                it.remove();
+            }
+        }
+    }
+}
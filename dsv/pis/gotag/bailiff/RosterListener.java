@@ -0,0 +1,55 @@
+// RosterListener.java
+// In-JVM listener for changes to a Bailiff's roster.
+
+package dsv.pis.gotag.bailiff;
+
+import java.util.EventListener;
+import java.util.UUID;
+
+/**
+ * A RosterListener is told by its Bailiff when agents arrive, depart and
+ * are tagged. It lets resident agents react to the arrival of the 'it'
+ * agent immediately instead of polling the roster.
+ * <p>
+ * A resident agent that implements this interface is subscribed
+ * automatically by the Bailiff for as long as it is resident. Other local
+ * code may subscribe with {@link Bailiff#addRosterListener}.
+ * <p>
+ * The methods are called on the thread that caused the event, which is
+ * usually another agent's. They must return quickly and must not block.
+ */
+public interface RosterListener extends EventListener {
+
+    /**
+     * Called when an agent has been admitted to the Bailiff.
+     *
+     * @param id   The UUID of the agent.
+     * @param isIt True if the agent arrived as 'it'.
+     */
+    public void agentArrived(UUID id, boolean isIt);
+
+    /**
+     * Called when an agent has left the Bailiff.
+     *
+     * @param id The UUID of the agent.
+     */
+    public void agentDeparted(UUID id);
+
+    /**
+     * Called when a resident agent has been tagged and is now 'it'.
+     *
+     * @param id The UUID of the agent that was tagged.
+     * @param by The UUID of the tagger, or null if not known.
+     */
+    public void agentTagged(UUID id, UUID by);
+
+    /**
+     * Called when the Bailiff is shutting down. Resident agents should
+     * leave before the deadline; those still there at about half the
+     * time are relocated by the Bailiff if they are Relocatable, and lost
+     * otherwise.
+     *
+     * @param deadline The Java system time by which the Bailiff stops.
+     */
+    public void bailiffDraining(long deadline);
+}
@@ -0,0 +1,40 @@
+// SteppedAgent.java
+// Interface for agents that can be driven step by step by a Bailiff.
+
+package dsv.pis.gotag.bailiff;
+
+/**
+ * A SteppedAgent can run without a thread of its own. When a Bailiff
+ * runs in tick mode it does not call the agent's entry point. Instead it
+ * calls {@link #arrive} once with the entry point's arguments, and then
+ * calls {@link #step} on every tick from a fixed pool of workers until
+ * the agent says it is done.
+ * <p>
+ * A step must not sleep. An agent that wants to wait remembers when it
+ * wants to act again and returns at once from the steps before that.
+ * A step may make remote calls; it then holds its worker until they
+ * return or time out, so the pool bounds the agents busy at once.
+ * A Bailiff that is not in tick mode calls the entry point as usual, so
+ * a SteppedAgent must still provide a blocking entry point.
+ */
+public interface SteppedAgent {
+
+    /**
+     * Called once when the agent is admitted in tick mode, in place of
+     * the entry point.
+     *
+     * @param args The arguments that were given for the entry point.
+     * @throws Exception If the agent can not start. It is then dropped.
+     */
+    public void arrive(Object[] args) throws Exception;
+
+    /**
+     * Performs one bounded unit of work.
+     *
+     * @param deadlineNanos The System.nanoTime() by which the step should
+     *                      return. Overruns are recorded by the Bailiff.
+     * @return True to be stepped again on a later tick, false when the
+     * agent has left the Bailiff or is finished.
+     */
+    public boolean step(long deadlineNanos);
+}
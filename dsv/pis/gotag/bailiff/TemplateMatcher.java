@@ -0,0 +1,113 @@
+// TemplateMatcher.java
+// Jini template matching, for lookups answered without a lookup server.
+
+package dsv.pis.gotag.bailiff;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+
+import net.jini.core.entry.Entry;
+import net.jini.core.lookup.ServiceItem;
+import net.jini.core.lookup.ServiceTemplate;
+
+/**
+ * The TemplateMatcher matches service items against templates with the
+ * semantics of a Jini lookup: the ServiceID must be equal if given, every
+ * service type must be implemented and every attribute template must
+ * match some attribute set in all its non-null public fields. It is used
+ * where lookups are answered from a cache or an in-memory directory.
+ */
+public final class TemplateMatcher {
+
+    /**
+     * The public, non-static fields of each Entry class, which take part
+     * in matching.
+     */
+    private static final ClassValue<Field[]> ENTRY_FIELDS = new ClassValue<Field[]>() {
+        protected Field[] computeValue(Class<?> type) {
+            ArrayList<Field> fields = new ArrayList<Field>();
+            for (Field f : type.getFields()) {
+                int m = f.getModifiers();
+                if (!Modifier.isStatic(m) && !Modifier.isFinal(m)
+                        && !Modifier.isTransient(m) && !f.getType().isPrimitive()) {
+                    fields.add(f);
+                }
+            }
+            return fields.toArray(new Field[0]);
+        }
+    };
+
+    private TemplateMatcher() {
+    }
+
+    /**
+     * Returns true if a service item matches a template.
+     *
+     * @param tmpl The template, or null to match everything.
+     * @param item The service item.
+     * @return True if it matches.
+     */
+    public static boolean matches(ServiceTemplate tmpl, ServiceItem item) {
+        if (tmpl == null) {
+            return true;
+        }
+        if (tmpl.serviceID != null && !tmpl.serviceID.equals(item.serviceID)) {
+            return false;
+        }
+        if (tmpl.serviceTypes != null) {
+            for (Class<?> type : tmpl.serviceTypes) {
+                if (!type.isInstance(item.service)) {
+                    return false;
+                }
+            }
+        }
+        if (tmpl.attributeSetTemplates != null) {
+            for (Entry want : tmpl.attributeSetTemplates) {
+                if (want != null && !matchesAny(want, item.attributeSets)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean matchesAny(Entry want, Entry[] attributes) {
+        if (attributes == null) {
+            return false;
+        }
+        for (Entry have : attributes) {
+            if (matches(want, have)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if an attribute set matches an attribute template: it
+     * is of the template's class or a subclass, and equal to the template
+     * in every field that is not null in the template.
+     *
+     * @param want The template.
+     * @param have The attribute set.
+     * @return True if it matches.
+     */
+    public static boolean matches(Entry want, Entry have) {
+        return want.getClass().isInstance(have) && fieldsMatch(want, have);
+    }
+
+    private static boolean fieldsMatch(Entry want, Entry have) {
+        for (Field f : ENTRY_FIELDS.get(want.getClass())) {
+            try {
+                Object value = f.get(want);
+                if (value != null && !value.equals(f.get(have))) {
+                    return false;
+                }
+            } catch (IllegalAccessException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,183 @@
+// TickScheduler.java
+// Drives SteppedAgents on a fixed worker pool.
+
+package dsv.pis.gotag.bailiff;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The TickScheduler is the cooperative execution model of the Bailiff.
+ * On every tick it hands each scheduled task to a fixed pool of worker
+ * threads, with a time budget. A task that is still busy from an
+ * earlier tick is skipped, so a task never runs twice at once and the
+ * work queue never holds more than one entry per task.
+ * <p>
+ * The CPU used by the resident agents is thereby bounded by the size of
+ * the worker pool, however many agents there are.
+ */
+public class TickScheduler {
+
+    /**
+     * A unit of work that is run once per tick.
+     */
+    public interface Task {
+        /**
+         * Runs the task for one tick.
+         *
+         * @param deadlineNanos The System.nanoTime() by which to return.
+         * @return True to be run again, false to be removed.
+         */
+        public boolean tick(long deadlineNanos);
+    }
+
+    /**
+     * A scheduled task and its busy flag.
+     */
+    private static final class Slot {
+        final Task task;
+        final AtomicBoolean busy = new AtomicBoolean(false);
+
+        Slot(Task task) {
+            this.task = task;
+        }
+    }
+
+    private final Set<Slot> slots = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService ticker;
+    private final ThreadPoolExecutor workers;
+    private final long tickMillis;
+    private final long budgetNanos;
+    private final LongAdder steps = new LongAdder();
+    private final LongAdder overruns = new LongAdder();
+
+    /**
+     * Creates and starts a new TickScheduler.
+     *
+     * @param tickMillis  The tick period in milliseconds.
+     * @param budgetMillis The time budget of one task per tick.
+     * @param workerCount The number of worker threads.
+     */
+    public TickScheduler(long tickMillis, long budgetMillis, int workerCount) {
+        if (tickMillis < 1 || budgetMillis < 1 || workerCount < 1) {
+            throw new IllegalArgumentException("tick, budget and workers must be positive");
+        }
+        this.tickMillis = tickMillis;
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+
+        final AtomicInteger count = new AtomicInteger();
+        workers = new ThreadPoolExecutor(workerCount, workerCount,
+                0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                r -> new Thread(r, "tick-worker-" + count.incrementAndGet()));
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ticker");
+            t.setDaemon(true);
+            return t;
+        });
+        ticker.scheduleAtFixedRate(this::tick, tickMillis, tickMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds a task, which is run from the next tick on.
+     *
+     * @param task The task to add.
+     */
+    public void add(Task task) {
+        slots.add(new Slot(task));
+    }
+
+    /**
+     * Hands every idle task to the worker pool.
+     */
+    private void tick() {
+        for (Slot slot : slots) {
+            if (slot.busy.compareAndSet(false, true)) {
+                try {
+                    workers.execute(() -> runSlot(slot));
+                } catch (RejectedExecutionException e) {
+                    slot.busy.set(false);
+                    return;    // Shutting down
+                }
+            }
+        }
+    }
+
+    private void runSlot(Slot slot) {
+        long deadline = System.nanoTime() + budgetNanos;
+        boolean again = false;
+        try {
+            again = slot.task.tick(deadline);
+        } catch (Throwable t) {
+            again = false;
+        } finally {
+            steps.increment();
+            if (System.nanoTime() > deadline) {
+                overruns.increment();
+            }
+            if (!again) {
+                slots.remove(slot);
+            }
+            slot.busy.set(false);
+        }
+    }
+
+    /**
+     * Returns the number of scheduled tasks.
+     *
+     * @return The number of tasks.
+     */
+    public int size() {
+        return slots.size();
+    }
+
+    /**
+     * Returns the number of steps run so far.
+     *
+     * @return The step count.
+     */
+    public long getSteps() {
+        return steps.sum();
+    }
+
+    /**
+     * Returns the number of steps that overran their time budget.
+     *
+     * @return The overrun count.
+     */
+    public long getOverruns() {
+        return overruns.sum();
+    }
+
+    /**
+     * Returns the tick period.
+     *
+     * @return The tick period in milliseconds.
+     */
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Stops ticking. Tasks in progress are allowed to finish their step.
+     */
+    public void shutdown() {
+        ticker.shutdown();
+        workers.shutdown();
+    }
+
+    public String toString() {
+        return "TickScheduler[tick=" + tickMillis + "ms, workers="
+                + workers.getCorePoolSize() + ", tasks=" + slots.size() + "]";
+    }
+}
@@ -0,0 +1,101 @@
+// TimeoutSocketFactory.java
+// RMI client socket factory with connect and read timeouts.
+
+package dsv.pis.gotag.bailiff;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.rmi.server.RMIClientSocketFactory;
+
+/**
+ * The TimeoutSocketFactory bounds how long a remote call to a Bailiff may
+ * block. A Bailiff is exported with it, so the factory travels inside
+ * the Bailiff's stub and every client, agents included, connects with
+ * a connect timeout and reads with a read timeout. A call to a hung
+ * Bailiff then fails with a RemoteException after the read timeout,
+ * instead of blocking for as long as the operating system lets it.
+ * <p>
+ * RMI reuses connections made by equal factories, so factories with the
+ * same timeouts are equal.
+ */
+public class TimeoutSocketFactory implements RMIClientSocketFactory, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The default connect timeout in milliseconds.
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+    /**
+     * The default read timeout in milliseconds. It must leave room for
+     * the longest call, a migrateBatch of many agents.
+     */
+    public static final int DEFAULT_READ_TIMEOUT = 30000;
+
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    /**
+     * Creates a factory with the default timeouts.
+     */
+    public TimeoutSocketFactory() {
+        this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+    }
+
+    /**
+     * Creates a new factory.
+     *
+     * @param connectTimeout The connect timeout in milliseconds, 0 for none.
+     * @param readTimeout    The read timeout in milliseconds, 0 for none.
+     */
+    public TimeoutSocketFactory(int connectTimeout, int readTimeout) {
+        if (connectTimeout < 0 || readTimeout < 0) {
+            throw new IllegalArgumentException("timeouts must not be negative");
+        }
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress(host, port), connectTimeout);
+            s.setSoTimeout(readTimeout);
+            s.setTcpNoDelay(true);
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+        return s;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof TimeoutSocketFactory)) {
+            return false;
+        }
+        TimeoutSocketFactory f = (TimeoutSocketFactory) o;
+        return f.getClass() == getClass()
+                && f.connectTimeout == connectTimeout && f.readTimeout == readTimeout;
+    }
+
+    public int hashCode() {
+        return 31 * connectTimeout + readTimeout;
+    }
+
+    public String toString() {
+        return "TimeoutSocketFactory[connect=" + connectTimeout
+                + ", read=" + readTimeout + "]";
+    }
+}
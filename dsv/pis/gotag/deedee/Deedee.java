@@ -9,12 +9,16 @@ package dsv.pis.gotag.deedee;
 
 import java.io.*;
 import java.lang.*;
+import java.util.ArrayList;
 import java.util.Random;
 
 import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
 
+import dsv.pis.gotag.player.AgentWire;
+import dsv.pis.gotag.player.BailiffProbe;
+import dsv.pis.gotag.player.BailiffSelector;
 import dsv.pis.gotag.player.TagPlayer;
 import net.jini.core.lookup.*;
 import net.jini.core.entry.*;
@@ -22,14 +26,37 @@ import net.jini.lookup.*;
 import net.jini.lookup.entry.*;
 
 import dsv.pis.gotag.util.*;
+import dsv.pis.gotag.bailiff.AgentContext;
 import dsv.pis.gotag.bailiff.BailiffInterface;
+import dsv.pis.gotag.bailiff.BailiffLoad;
+import dsv.pis.gotag.bailiff.ContextAware;
+import dsv.pis.gotag.bailiff.MailMessage;
 
 /**
  * Deedee is a messenger agent. She looks for Bailiffs (execution services)
  * registered to a particular user (started with the -user switch).
  * When she finds one, she migrates there and pops a dialogue with her message.
+ * <p>
+ * Deedee does not poll for the Bailiffs of the user. She listens to a
+ * discovery cache, her Bailiff's or her own, and sleeps until a Bailiff
+ * of the user appears or changes, or until her message expires. When
+ * she is in a Bailiff and no Bailiff of the user is in sight, she leaves
+ * the message in its mailbox and ends, and the Bailiffs carry it on.
  */
-public class Deedee implements Serializable, TagPlayer {
+public class Deedee implements Externalizable, TagPlayer, ContextAware {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The version of the wire form written by writeExternal.
+     */
+    private static final int WIRE_VERSION = 2;
+
+    /**
+     * How long Deedee waits before trying again when the Bailiffs she
+     * knows of do not answer or refuse her, unless one appears sooner.
+     */
+    protected static final long RETRY_INTERVAL = 5000;
 
     /**
      * The service discovery manager helps us locating Jini lookup servers
@@ -37,11 +64,41 @@ public class Deedee implements Serializable, TagPlayer {
      */
     protected transient ServiceDiscoveryManager SDM;
 
+    /**
+     * The context of the Bailiff Deedee is in, if it lends her one. She
+     * then uses its discovery cache instead of her own SDM.
+     */
+    protected transient AgentContext context;
+
+    /**
+     * Deedee's own cache of the recipient's Bailiffs, when she has no
+     * context.
+     */
+    protected transient LookupCache cache;
+
+    /**
+     * Listens to the cache for the recipient's Bailiffs.
+     */
+    private transient ServiceDiscoveryListener watcher;
+
+    /**
+     * Notified when there is news about the recipient's Bailiffs, or
+     * Deedee is closed.
+     */
+    private transient Object signal;
+
+    /**
+     * True if a Bailiff of the recipient has appeared or changed since
+     * Deedee last looked. Guarded by signal.
+     */
+    private transient boolean newsPending;
+
     /**
      * The bailiff template allows us to search for bailiffs using a
-     * template description of them.
+     * template description of them. It is derived from toUser, so it is
+     * not sent along when Deedee migrates.
      */
-    protected ServiceTemplate bailiffTemplate;
+    protected transient ServiceTemplate bailiffTemplate;
 
     /**
      * The (system-local) name of the user for which the message is intended.
@@ -59,14 +116,14 @@ public class Deedee implements Serializable, TagPlayer {
     protected long expires;
 
     /**
-     * As long as the runFlop is true the main loops keeps running.
+     * The number of migrations Deedee has made.
      */
-    protected boolean runFlop = true;
+    protected int hops = 0;
 
     /**
-     * The fully qualified name of the bailiff interface class.
+     * As long as the runFlop is true the main loops keeps running.
      */
-    protected String bfName = "dsv.pis.gotag.bailiff.BailiffInterface";
+    protected volatile boolean runFlop = true;
 
     /**
      * Creates a new Deedee.
@@ -75,17 +132,74 @@ public class Deedee implements Serializable, TagPlayer {
      * @param mesg       The message text.
      * @param expires    The Java system expiration time of the message.
      */
-    public Deedee(String targetUser, String msg, long expires)
-            throws java.lang.ClassNotFoundException {
+    public Deedee(String targetUser, String msg, long expires) {
         // Copy from method arguments to instance fields.
         toUser = targetUser;
         message = msg;
         this.expires = expires;
         // And create a template to match services with.
-        bailiffTemplate =
-                new ServiceTemplate(null,
-                        new Class[]{java.lang.Class.forName(bfName)},
-                        new Entry[]{new Location(null, null, toUser)});
+        bailiffTemplate = createTemplate();
+    }
+
+    /**
+     * Creates an empty Deedee. It is used when Deedee arrives in a
+     * Bailiff, and is followed by readExternal.
+     */
+    public Deedee() {
+    }
+
+    /**
+     * Creates the template that matches the Bailiffs of the recipient.
+     *
+     * @return The service template.
+     */
+    protected ServiceTemplate createTemplate() {
+        return new ServiceTemplate(null,
+                new Class[]{BailiffInterface.class},
+                new Entry[]{new Location(null, null, toUser)});
+    }
+
+    /**
+     * Writes Deedee's compact wire form: a version byte, the recipient,
+     * the message, the expiration time, the run flag and the hop count.
+     */
+    public void writeExternal(ObjectOutput out) throws IOException {
+        AgentWire.writeVersion(out, WIRE_VERSION);
+        AgentWire.writeString(out, toUser);
+        AgentWire.writeString(out, message);
+        out.writeLong(expires);
+        out.writeByte(AgentWire.pack(runFlop));
+        out.writeInt(hops);
+    }
+
+    public void readExternal(ObjectInput in) throws IOException {
+        int version = AgentWire.readVersion(in, Deedee.class, WIRE_VERSION);
+        toUser = AgentWire.readString(in);
+        message = AgentWire.readString(in);
+        expires = in.readLong();
+        runFlop = AgentWire.bit(in.readUnsignedByte(), 0);
+        // Every copy read from the wire has made one more hop.
+        hops = ((2 <= version) ? in.readInt() : 0) + 1;
+        bailiffTemplate = createTemplate();
+    }
+
+    /**
+     * Stops listening for Bailiffs, and stops our own service discovery
+     * manager, if we have one.
+     */
+    private void closeDiscovery() {
+        if (context != null && watcher != null) {
+            context.removeBailiffListener(watcher);
+        }
+        watcher = null;
+        if (cache != null) {
+            cache.terminate();
+            cache = null;
+        }
+        if (SDM != null) {
+            SDM.terminate();
+            SDM = null;
+        }
     }
 
     /**
@@ -100,6 +214,52 @@ public class Deedee implements Serializable, TagPlayer {
         }
     }
 
+    /**
+     * Tells the main loop that there is news.
+     */
+    private void wake() {
+        synchronized (signal) {
+            newsPending = true;
+            signal.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until there is news, Deedee is closed or a point in time has
+     * passed, and takes the news.
+     *
+     * @param until The Java system time to wait until.
+     */
+    private void awaitNews(long until) {
+        synchronized (signal) {
+            long left;
+            while (!newsPending && runFlop
+                    && 0 < (left = until - System.currentTimeMillis())) {
+                try {
+                    signal.wait(left);
+                } catch (java.lang.InterruptedException e) {
+                    break;
+                }
+            }
+            newsPending = false;
+        }
+    }
+
+    /**
+     * Leaves the message in the mailbox of a Bailiff, which forwards it
+     * to a Bailiff of the recipient.
+     *
+     * @param bfi The Bailiff.
+     * @return True if the Bailiff took the message.
+     */
+    public boolean deposit(BailiffInterface bfi) {
+        try {
+            return bfi.enqueue(new MailMessage(toUser, null, message, expires));
+        } catch (java.rmi.RemoteException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
     /**
      * The entry point and main program of Deedee.
      */
@@ -116,99 +276,153 @@ public class Deedee implements Serializable, TagPlayer {
             return;
         }
 
-        // Get a service discovery manager.
-        SDM = new ServiceDiscoveryManager(null, null);
+        // Listen for the Bailiffs of our user, in the discovery cache of
+        // our Bailiff if it shares it with us, otherwise in our own. The
+        // Bailiffs already known are reported at once.
+        signal = new Object();
+        newsPending = false;
+        watcher = new ServiceDiscoveryListener() {
+            public void serviceAdded(ServiceDiscoveryEvent e) {
+                wake();
+            }
 
-        // Create a user interface frame.
-        JFrame f = new JFrame("Deedee -> [" + toUser + "]");
+            public void serviceRemoved(ServiceDiscoveryEvent e) {
+            }
 
-        // If the interface frame is closed, we terminate as well.
-        f.addWindowListener(new WindowAdapter() {
-            public void windowClosing(WindowEvent e) {
-                runFlop = false;
+            public void serviceChanged(ServiceDiscoveryEvent e) {
+                wake();
             }
-        });
+        };
+        if (context != null) {
+            context.addBailiffListener(bailiffTemplate, BailiffLoad.NOT_FULL, watcher);
+        } else {
+            SDM = new ServiceDiscoveryManager(null, null);
+            cache = SDM.createLookupCache(bailiffTemplate, BailiffLoad.NOT_FULL, watcher);
+        }
 
-        // Instantiate a Deedee GUI object.
-        DeedeeGUI dgui = new DeedeeGUI();
+        try {
+            // With none of our user's Bailiffs in sight, leave the message in
+            // the mailbox of our Bailiff rather than wait here with a thread
+            // and a window.
+            if (context != null
+                    && context.lookupBailiffs(bailiffTemplate, 1, BailiffLoad.NOT_FULL).length == 0
+                    && deposit(context.getLocalBailiff())) {
+                return;
+            }
 
-        // Put it in the interface frame.
-        f.getContentPane().add("Center", dgui);
+            // Create a user interface frame.
+            JFrame f = new JFrame("Deedee -> [" + toUser + "]");
 
-        dgui.init();
-        dgui.start();
+            // If the interface frame is closed, we terminate as well.
+            f.addWindowListener(new WindowAdapter() {
+                public void windowClosing(WindowEvent e) {
+                    runFlop = false;
+                    wake();
+                }
+            });
 
-        f.pack();
-        f.setSize(new Dimension(192, 192));
-        //    f.show ();  // 30-jan-2009 deprecated, replaced by f.setVisible()
-        f.setVisible(true);
+            // Instantiate a Deedee GUI object.
+            DeedeeGUI dgui = new DeedeeGUI();
 
-        // While we are still running...
+            // Put it in the interface frame.
+            f.getContentPane().add("Center", dgui);
 
-        while (runFlop) {
+            dgui.init();
+            dgui.start();
 
-            // Has the message expiration time been reached?
-            if (System.currentTimeMillis() < expires) {
-                dgui.showGivingUp();    // Emote the GUI
-                runFlop = false;    // Our exit condition
-                continue;        // To top of loop
-            }
+            f.pack();
+            f.setSize(new Dimension(192, 192));
+            //    f.show ();  // 30-jan-2009 deprecated, replaced by f.setVisible()
+            f.setVisible(true);
 
-            dgui.showLookup();    // Emote the GUI
+            // While we are still running...
 
-            // Lookup the next Bailiff service object.
-            ServiceItem svcItem;
-            svcItem = SDM.lookup(bailiffTemplate, null);
+            while (runFlop) {
 
-            // If none is  found...
-            if (svcItem == null) {
-                dgui.showWaiting();    // Emote the GUI
-                snooze(60000);        // Sleep a while
-                continue;        // Try again
-            }
+                // Has the message expiration time been reached?
+                if (expires <= System.currentTimeMillis()) {
+                    dgui.showGivingUp();    // Emote the GUI
+                    runFlop = false;    // Our exit condition
+                    continue;        // To top of loop
+                }
 
+                dgui.showLookup();    // Emote the GUI
 
-            boolean isArrived = false;
-            dgui.showDeliberation();    // Emote the GUI
-            Entry[] atts = svcItem.attributeSets; // Get service attributes
+                // Lookup the Bailiff services of our user. The cache answers
+                // at once.
+                ServiceItem[] svcItems = (context != null)
+                        ? context.lookupBailiffs(bailiffTemplate,
+                        BailiffSelector.DEFAULT_SAMPLE, BailiffLoad.NOT_FULL)
+                        : cache.lookup(null, BailiffSelector.DEFAULT_SAMPLE);
 
-            for (int i = 0; i < atts.length; i++) { // For each attribute
-                if (atts[i] instanceof Location) { // If it is Location ..
-                    Location loc = (Location) atts[i];
-                    isArrived = loc.floor.equalsIgnoreCase(host); // This host?
+                // If none is  found...
+                if (svcItems == null || svcItems.length == 0) {
+                    dgui.showWaiting();    // Emote the GUI
+                    awaitNews(expires);    // Until one appears or we expire
+                    continue;        // Try again
+                }
+
+
+                boolean isArrived = false;
+                dgui.showDeliberation();    // Emote the GUI
+
+                for (ServiceItem svcItem : svcItems) {
+                    Entry[] atts = svcItem.attributeSets; // Get service attributes
+
+                    for (int i = 0; i < atts.length; i++) { // For each attribute
+                        if (atts[i] instanceof Location) { // If it is Location ..
+                            Location loc = (Location) atts[i];
+                            isArrived = loc.floor.equalsIgnoreCase(host); // This host?
+                            if (isArrived == true) {
+                                break;
+                            }
+                        }
+                    }
                     if (isArrived == true) {
                         break;
                     }
                 }
-            }
 
-            // At this point, if isArrived is true, we have found a bailiff
-            // registered to our current host.
-
-            if (isArrived == false) {
-                if (svcItem.service instanceof BailiffInterface) {
-                    BailiffInterface bfi = (BailiffInterface) svcItem.service;
-                    dgui.showPrepareJump();
-                    try {
-                        bfi.migrate(this, "topLevel", new Object[]{});
-                        dgui.showGone();
-                        runFlop = false;
-                    } catch (java.lang.NoSuchMethodException e) {
-                        dgui.showPain();
-                    } catch (java.rmi.RemoteException e) {
+                // At this point, if isArrived is true, we have found a bailiff
+                // registered to our current host.
+
+                if (isArrived == false) {
+                    // Ping them all at once and jump to the one that answers
+                    // first.
+                    ArrayList<BailiffProbe.Response> answered =
+                            BailiffProbe.probe(svcItems, BailiffProbe.DEFAULT_DEADLINE);
+                    if (answered.isEmpty()) {
                         dgui.showPain();
+                        awaitNews(Math.min(expires,
+                                System.currentTimeMillis() + RETRY_INTERVAL));
+                    } else {
+                        BailiffInterface bfi = answered.get(0).getBailiff();
+                        dgui.showPrepareJump();
+                        try {
+                            bfi.migrate(this, "topLevel", new Object[]{});
+                            dgui.showGone();
+                            runFlop = false;
+                        } catch (java.lang.NoSuchMethodException
+                                | java.rmi.RemoteException e) {
+                            dgui.showPain();
+                            awaitNews(Math.min(expires,
+                                    System.currentTimeMillis() + RETRY_INTERVAL));
+                        }
                     }
+                } else {
+                    dgui.showMessage(message);
+                    runFlop = false;
                 }
-            } else {
-                dgui.showMessage(message);
-                runFlop = false;
-            }
 
-        }// while runFlop is true
+            }// while runFlop is true
 
-        dgui.stop();
-        SDM.terminate();
-        f.setVisible(false);
+            dgui.stop();
+            f.setVisible(false);
+        } finally {
+            // Also when the frame can not be shown, so that no listener
+            // is left in our Bailiff's cache.
+            closeDiscovery();
+        }
     } // topLevel
 
     /**
@@ -216,11 +430,10 @@ public class Deedee implements Serializable, TagPlayer {
      */
     public static void main(String[] argv)
             throws
-            java.io.IOException,
-            java.lang.ClassNotFoundException {
+            java.io.IOException {
         Deedee de = new Deedee("ralph",
                 "This is a message for Ralph!",
-                300000);
+                System.currentTimeMillis() + 300000);
         de.topLevel();
         System.exit(0);
     }
@@ -234,4 +447,26 @@ public class Deedee implements Serializable, TagPlayer {
     public boolean itAgent() {
         return false; // TODO : just for testing
     }
+
+    @Override
+    public boolean passIt() {
+        return false;
+    }
+
+    @Override
+    public boolean isMigrating() {
+        return false;
+    }
+
+    @Override
+    public int getHops() {
+        return hops;
+    }
+
+    // In ContextAware:
+
+    @Override
+    public void setAgentContext(AgentContext context) {
+        this.context = context;
+    }
 }
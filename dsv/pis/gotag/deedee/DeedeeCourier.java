@@ -0,0 +1,605 @@
+// DeedeeCourier.java
+// A Deedee that carries many messages for many users along one route.
+
+package dsv.pis.gotag.deedee;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.swing.JOptionPane;
+
+import dsv.pis.gotag.bailiff.AgentContext;
+import dsv.pis.gotag.bailiff.BailiffInterface;
+import dsv.pis.gotag.bailiff.BailiffLoad;
+import dsv.pis.gotag.bailiff.ContextAware;
+import dsv.pis.gotag.bailiff.MailMessage;
+import dsv.pis.gotag.player.AgentWire;
+import dsv.pis.gotag.player.BailiffProbe;
+import dsv.pis.gotag.player.BailiffSelector;
+import dsv.pis.gotag.player.TagPlayer;
+import net.jini.core.entry.Entry;
+import net.jini.core.lookup.ServiceItem;
+import net.jini.core.lookup.ServiceTemplate;
+import net.jini.lookup.LookupCache;
+import net.jini.lookup.ServiceDiscoveryEvent;
+import net.jini.lookup.ServiceDiscoveryListener;
+import net.jini.lookup.ServiceDiscoveryManager;
+import net.jini.lookup.ServiceItemFilter;
+import net.jini.lookup.entry.Location;
+
+/**
+ * The DeedeeCourier carries a batch of messages, each for a user and with
+ * its own expiry time, where a Deedee carries one. Broadcasting to many
+ * users then takes one agent and one discovery session instead of one
+ * per user.
+ * <p>
+ * In every Bailiff, the courier first delivers all the messages for the
+ * user of that Bailiff in one go, into its mailbox. It then plans the
+ * rest of its route: one stop per remaining user, at the Bailiff of the
+ * user closest to where it is, visited host by host and room by room.
+ * It moves to the first stop on the route that answers. Messages are
+ * dropped as they expire. When no Bailiff of the remaining users is in
+ * sight, the courier leaves their messages in the mailbox of its Bailiff,
+ * which forwards them, and ends.
+ */
+public class DeedeeCourier implements Externalizable, TagPlayer, ContextAware {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The version of the wire form written by writeExternal.
+     */
+    private static final int WIRE_VERSION = 2;
+
+    /**
+     * How long the courier waits before trying again when the stops it
+     * knows of do not answer, unless a Bailiff appears sooner.
+     */
+    protected static final long RETRY_INTERVAL = 5000;
+
+    /**
+     * One message the courier carries.
+     */
+    private static final class Letter {
+        final String toUser;
+        final String message;
+        final long expires;
+
+        Letter(String toUser, String message, long expires) {
+            this.toUser = toUser.toLowerCase();
+            this.message = message;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * The identity of the courier, kept across migrations.
+     */
+    private UUID id = UUID.randomUUID();
+
+    /**
+     * The messages not yet delivered, in the order they were added.
+     */
+    private ArrayList<Letter> letters = new ArrayList<Letter>();
+
+    /**
+     * The users that have messages left. It is read by the discovery
+     * cache's thread, through the filter.
+     */
+    protected transient Set<String> recipients = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The number of migrations the courier has made.
+     */
+    protected int hops = 0;
+
+    /**
+     * As long as the runFlop is true the main loop keeps running.
+     */
+    protected volatile boolean runFlop = true;
+
+    /**
+     * True while the courier is handing itself over to the next Bailiff,
+     * and after it has, so that the Bailiff it leaves counts a migration.
+     */
+    protected transient volatile boolean migrating = false;
+
+    protected transient ServiceDiscoveryManager SDM;
+    protected transient LookupCache cache;
+    protected transient AgentContext context;
+    private transient ServiceDiscoveryListener watcher;
+    private transient Object signal;
+    private transient boolean newsPending;
+
+    /**
+     * The template of all Bailiffs; the recipients are matched by the
+     * filter, since a template can not match one of many users.
+     */
+    private static final ServiceTemplate ANY_BAILIFF =
+            new ServiceTemplate(null, new Class[]{BailiffInterface.class}, null);
+
+    /**
+     * Passes the Bailiffs of the recipients that are not full.
+     */
+    private transient ServiceItemFilter toRecipients;
+
+    /**
+     * Creates an empty courier. Messages are added with add. It is also
+     * used when the courier arrives in a Bailiff, followed by readExternal.
+     */
+    public DeedeeCourier() {
+        toRecipients = createFilter();
+    }
+
+    /**
+     * Adds a message to carry.
+     *
+     * @param toUser  The recipient's (system-local) user name.
+     * @param message The message text.
+     * @param expires The Java system time when the message expires.
+     */
+    public void add(String toUser, String message, long expires) {
+        Letter l = new Letter(toUser, message, expires);
+        letters.add(l);
+        recipients.add(l.toUser);
+    }
+
+    /**
+     * Returns the number of messages not yet delivered.
+     */
+    public int size() {
+        return letters.size();
+    }
+
+    private ServiceItemFilter createFilter() {
+        return new ServiceItemFilter() {
+            public boolean check(ServiceItem item) {
+                Location loc = location(item);
+                return loc != null && loc.building != null
+                        && recipients.contains(loc.building.toLowerCase())
+                        && BailiffLoad.NOT_FULL.check(item);
+            }
+        };
+    }
+
+    /**
+     * Writes the courier's wire form: a version byte, the UUID, the
+     * number of messages, then the recipient, text and expiry time of
+     * each, and the hop count.
+     */
+    public void writeExternal(ObjectOutput out) throws IOException {
+        AgentWire.writeVersion(out, WIRE_VERSION);
+        AgentWire.writeUUID(out, id);
+        out.writeInt(letters.size());
+        for (Letter l : letters) {
+            AgentWire.writeString(out, l.toUser);
+            AgentWire.writeString(out, l.message);
+            out.writeLong(l.expires);
+        }
+        out.writeInt(hops);
+    }
+
+    public void readExternal(ObjectInput in) throws IOException {
+        int version = AgentWire.readVersion(in, DeedeeCourier.class, WIRE_VERSION);
+        id = (2 <= version) ? AgentWire.readUUID(in) : UUID.randomUUID();
+        int n = in.readInt();
+        if (n < 0) {
+            throw new StreamCorruptedException("negative message count " + n);
+        }
+        letters = new ArrayList<Letter>(Math.min(n, 1024));
+        recipients = ConcurrentHashMap.newKeySet();
+        for (int i = 0; i < n; i++) {
+            String toUser = AgentWire.readString(in);
+            String message = AgentWire.readString(in);
+            add(toUser, message, in.readLong());
+        }
+        // Every copy read from the wire has made one more hop.
+        hops = in.readInt() + 1;
+        toRecipients = createFilter();
+    }
+
+    /**
+     * Drops the messages that have expired.
+     *
+     * @param now The current Java system time.
+     */
+    private void dropExpired(long now) {
+        for (Iterator<Letter> it = letters.iterator(); it.hasNext(); ) {
+            if (it.next().expires <= now) {
+                it.remove();
+            }
+        }
+        updateRecipients();
+    }
+
+    private void updateRecipients() {
+        HashSet<String> left = new HashSet<String>();
+        for (Letter l : letters) {
+            left.add(l.toUser);
+        }
+        recipients.retainAll(left);
+        recipients.addAll(left);
+    }
+
+    /**
+     * Returns the Java system time when the first of the messages expires.
+     */
+    private long firstExpiry() {
+        long first = Long.MAX_VALUE;
+        for (Letter l : letters) {
+            first = Math.min(first, l.expires);
+        }
+        return first;
+    }
+
+    /**
+     * Returns the messages for a user as MailMessages. Messages that can
+     * not be mail, such as overlong ones, are left out.
+     *
+     * @param user The recipient, or null for all.
+     * @return The messages.
+     */
+    private ArrayList<MailMessage> mailFor(String user) {
+        ArrayList<MailMessage> mail = new ArrayList<MailMessage>();
+        for (Letter l : letters) {
+            if (user == null || l.toUser.equals(user)) {
+                try {
+                    mail.add(new MailMessage(l.toUser, null, l.message, l.expires));
+                } catch (IllegalArgumentException e) {
+                    // Not mail
+                }
+            }
+        }
+        return mail;
+    }
+
+    /**
+     * Removes the messages for a user from the batch.
+     *
+     * @param user The recipient, or null for all.
+     */
+    private void drop(String user) {
+        for (Iterator<Letter> it = letters.iterator(); it.hasNext(); ) {
+            Letter l = it.next();
+            if (user == null || l.toUser.equals(user)) {
+                it.remove();
+            }
+        }
+        updateRecipients();
+    }
+
+    /**
+     * Delivers all the messages for the user of the local Bailiff in one
+     * stop: into its mailbox, or if it keeps none in a dialogue, or in
+     * its log where there is no display.
+     *
+     * @param here The local Bailiff.
+     * @param user The user of the local Bailiff.
+     */
+    private void deliverHere(BailiffInterface here, String user) {
+        ArrayList<MailMessage> batch = mailFor(user);
+        drop(user);
+        try {
+            if (batch.isEmpty() || 0 < here.enqueueBatch(batch)) {
+                return;
+            }
+        } catch (java.rmi.RemoteException e) {
+            // Show them instead
+        }
+        if (java.awt.GraphicsEnvironment.isHeadless()) {
+            for (MailMessage msg : batch) {
+                context.log("<deedee to=\"" + user + "\" message=\""
+                        + msg.getText() + "\"/>");
+            }
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (MailMessage msg : batch) {
+            sb.append(msg.getText()).append('\n');
+        }
+        JOptionPane.showMessageDialog(null, sb.toString(),
+                "Deedee -> [" + user + "]", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    /**
+     * Plans the rest of the route: for each user with messages left, the
+     * Bailiff of the user closest to here, on the same host if there is
+     * one, else in the same room. The stops are ordered by that distance
+     * and then by room and host, so that the courier finishes a room
+     * before it moves on to the next.
+     *
+     * @param hereHost The host of the courier, or null if not known.
+     * @param hereRoom The room of the courier, or null if not known.
+     * @return The stops in the order to visit them.
+     */
+    private ServiceItem[] planRoute(final String hereHost, final String hereRoom) {
+        ServiceItem[] items = (context != null)
+                ? context.lookupBailiffs(ANY_BAILIFF, BailiffSelector.LOOKUP_LIMIT, toRecipients)
+                : cache.lookup(toRecipients, BailiffSelector.LOOKUP_LIMIT);
+        if (items == null) {
+            return new ServiceItem[0];
+        }
+
+        HashMap<String, ServiceItem> stops = new HashMap<String, ServiceItem>();
+        for (ServiceItem item : items) {
+            String user = location(item).building.toLowerCase();
+            ServiceItem known = stops.get(user);
+            if (known == null
+                    || distance(item, hereHost, hereRoom) < distance(known, hereHost, hereRoom)) {
+                stops.put(user, item);
+            }
+        }
+
+        ServiceItem[] route = stops.values().toArray(new ServiceItem[0]);
+        Arrays.sort(route, new Comparator<ServiceItem>() {
+            public int compare(ServiceItem a, ServiceItem b) {
+                int c = Integer.compare(distance(a, hereHost, hereRoom),
+                        distance(b, hereHost, hereRoom));
+                if (c == 0) {
+                    c = compareNullable(location(a).room, location(b).room);
+                }
+                if (c == 0) {
+                    c = compareNullable(location(a).floor, location(b).floor);
+                }
+                return c;
+            }
+        });
+        return route;
+    }
+
+    /**
+     * Returns 0 for a Bailiff on the host given, 1 for one in the room
+     * given and 2 for any other.
+     */
+    private static int distance(ServiceItem item, String host, String room) {
+        Location loc = location(item);
+        if (host != null && host.equalsIgnoreCase(loc.floor)) {
+            return 0;
+        }
+        if (room != null && room.equalsIgnoreCase(loc.room)) {
+            return 1;
+        }
+        return 2;
+    }
+
+    private static int compareNullable(String a, String b) {
+        if (a == null || b == null) {
+            return (a == null) ? ((b == null) ? 0 : 1) : -1;
+        }
+        return a.compareTo(b);
+    }
+
+    /**
+     * Returns the Location of a Bailiff, or null if it has none.
+     */
+    private static Location location(ServiceItem item) {
+        if (item.attributeSets != null) {
+            for (Entry e : item.attributeSets) {
+                if (e instanceof Location) {
+                    return (Location) e;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Tells the main loop that there is news.
+     */
+    private void wake() {
+        synchronized (signal) {
+            newsPending = true;
+            signal.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until there is news or a point in time has passed, and takes
+     * the news.
+     *
+     * @param until The Java system time to wait until.
+     */
+    private void awaitNews(long until) {
+        synchronized (signal) {
+            long left;
+            while (!newsPending && runFlop
+                    && 0 < (left = until - System.currentTimeMillis())) {
+                try {
+                    signal.wait(left);
+                } catch (java.lang.InterruptedException e) {
+                    break;
+                }
+            }
+            newsPending = false;
+        }
+    }
+
+    /**
+     * Stops listening for Bailiffs, and stops our own service discovery
+     * manager, if we have one.
+     */
+    private void closeDiscovery() {
+        if (context != null && watcher != null) {
+            context.removeBailiffListener(watcher);
+        }
+        watcher = null;
+        if (cache != null) {
+            cache.terminate();
+            cache = null;
+        }
+        if (SDM != null) {
+            SDM.terminate();
+            SDM = null;
+        }
+    }
+
+    /**
+     * The entry point and main program of the courier.
+     */
+    public void topLevel() throws java.io.IOException {
+
+        // Listen for the Bailiffs of our recipients, in the discovery
+        // cache of our Bailiff if it shares it with us.
+        signal = new Object();
+        newsPending = false;
+        watcher = new ServiceDiscoveryListener() {
+            public void serviceAdded(ServiceDiscoveryEvent e) {
+                wake();
+            }
+
+            public void serviceRemoved(ServiceDiscoveryEvent e) {
+            }
+
+            public void serviceChanged(ServiceDiscoveryEvent e) {
+                wake();
+            }
+        };
+        if (context != null) {
+            context.addBailiffListener(ANY_BAILIFF, toRecipients, watcher);
+        } else {
+            SDM = new ServiceDiscoveryManager(null, null);
+            cache = SDM.createLookupCache(ANY_BAILIFF, toRecipients, watcher);
+        }
+
+        try {
+            // Where are we?
+            String hereHost = null;
+            String hereRoom = null;
+            if (context != null) {
+                BailiffInterface here = context.getLocalBailiff();
+                hereHost = here.getProperty("hostname");
+                hereRoom = here.getProperty("room");
+                String hereUser = here.getProperty("user");
+                if (hereUser != null) {
+                    deliverHere(here, hereUser.toLowerCase());
+                }
+            }
+
+            while (runFlop) {
+
+                dropExpired(System.currentTimeMillis());
+                if (letters.isEmpty()) {
+                    break;        // All delivered or expired
+                }
+
+                ServiceItem[] route = planRoute(hereHost, hereRoom);
+
+                if (route.length == 0) {
+                    // Nobody in sight. Our Bailiff forwards the messages when
+                    // their Bailiffs appear; without one we wait for them.
+                    if (context != null
+                            && 0 < context.getLocalBailiff().enqueueBatch(mailFor(null))) {
+                        drop(null);
+                        break;
+                    }
+                    awaitNews(firstExpiry());
+                    continue;
+                }
+
+                // Ping the first stops at once and move to the first one on
+                // the route that answers.
+                ServiceItem[] next = Arrays.copyOf(route,
+                        Math.min(route.length, BailiffSelector.DEFAULT_SAMPLE));
+                ArrayList<BailiffProbe.Response> answered =
+                        BailiffProbe.probe(next, BailiffProbe.DEFAULT_DEADLINE);
+                BailiffInterface target = null;
+                for (ServiceItem stop : next) {
+                    for (BailiffProbe.Response response : answered) {
+                        if (response.getItem() == stop) {
+                            target = response.getBailiff();
+                            break;
+                        }
+                    }
+                    if (target != null) {
+                        break;
+                    }
+                }
+
+                if (target != null) {
+                    migrating = true;
+                    try {
+                        target.migrate(this, "topLevel", new Object[]{});
+                        runFlop = false;    // Our copy goes on there
+                        continue;
+                    } catch (java.lang.NoSuchMethodException
+                            | java.rmi.RemoteException e) {
+                        migrating = false;  // Try again below
+                    }
+                }
+                awaitNews(Math.min(firstExpiry(),
+                        System.currentTimeMillis() + RETRY_INTERVAL));
+            }
+        } finally {
+            // Also when our Bailiff's mailbox fails, so that no listener
+            // is left in its cache.
+            closeDiscovery();
+        }
+    } // topLevel
+
+    /**
+     * Main program for the DeedeeCourier. The arguments are pairs of a
+     * user and a message, which expire in five minutes.
+     */
+    public static void main(String[] argv) throws java.io.IOException {
+        if (argv.length < 2 || argv.length % 2 != 0) {
+            System.out.println("Usage: user message [user message ...]");
+            System.exit(1);
+        }
+        DeedeeCourier courier = new DeedeeCourier();
+        long expires = System.currentTimeMillis() + 300000;
+        for (int i = 0; i < argv.length; i += 2) {
+            courier.add(argv[i], argv[i + 1], expires);
+        }
+        courier.topLevel();
+        System.exit(0);
+    }
+
+    @Override
+    public boolean isIt() {
+        return false;
+    }
+
+    @Override
+    public boolean itAgent() {
+        return false;
+    }
+
+    @Override
+    public boolean passIt() {
+        return false;
+    }
+
+    @Override
+    public boolean isMigrating() {
+        return migrating;
+    }
+
+    /**
+     * Returns the UUID of the courier.
+     *
+     * @return The UUID of the courier.
+     */
+    public UUID getUUID() {
+        return id;
+    }
+
+    @Override
+    public int getHops() {
+        return hops;
+    }
+
+    // In ContextAware:
+
+    @Override
+    public void setAgentContext(AgentContext context) {
+        this.context = context;
+    }
+}
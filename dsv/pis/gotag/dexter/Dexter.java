@@ -20,20 +20,35 @@ import java.awt.event.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.*;
 
-import dsv.pis.gotag.exceptions.NoSuchAgentException;
+import dsv.pis.gotag.player.AgentWire;
+import dsv.pis.gotag.player.BailiffProbe;
+import dsv.pis.gotag.player.BailiffSelector;
 import dsv.pis.gotag.player.TagPlayer;
 import net.jini.core.lookup.*;
 import net.jini.lookup.*;
 
 import dsv.pis.gotag.util.*;
+import dsv.pis.gotag.bailiff.AgentContext;
+import dsv.pis.gotag.bailiff.AgentInfo;
 import dsv.pis.gotag.bailiff.BailiffInterface;
+import dsv.pis.gotag.bailiff.BailiffLoad;
+import dsv.pis.gotag.bailiff.ContextAware;
+import dsv.pis.gotag.bailiff.GuardedBailiff;
 
 /**
  * Dexter jumps around randomly among the Bailiffs. He is can be used
  * test that the system is operating, or as a template for more
  * evolved agents.
  */
-public class Dexter implements Serializable, TagPlayer {
+public class Dexter implements Externalizable, TagPlayer, ContextAware {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The version of the wire form written by writeExternal.
+     */
+    private static final int WIRE_VERSION = 2;
+
     //UUID = unique identifier of the agent
     protected UUID id;
 
@@ -42,11 +57,9 @@ public class Dexter implements Serializable, TagPlayer {
     AtomicBoolean isMigrating = new AtomicBoolean(false);
 
     /**
-     * The string name of the Bailiff service interface, used when
-     * querying the Jini lookup server.
+     * The number of migrations this agent has made.
      */
-    protected static final String bfi =
-            "dsv.pis.gotag.bailiff.BailiffInterface";
+    protected int hops = 0;
 
     /**
      * The debug flag controls the amount of diagnostic info we put out.
@@ -59,18 +72,25 @@ public class Dexter implements Serializable, TagPlayer {
     protected boolean noFace = false;
 
     /**
-     * Dexter uses a ServiceDiscoveryManager to find Bailiffs.
+     * Without a context from his Bailiff, Dexter uses a
+     * ServiceDiscoveryManager of his own to find Bailiffs.
      * The SDM is not serializable so it must recreated on each new Bailiff.
      * That is why it is marked as transient.
      */
     protected transient ServiceDiscoveryManager SDM;
 
+    /**
+     * The context of the Bailiff Dexter is in, if it lends him one.
+     */
+    protected transient AgentContext context;
+
     /**
      * This service template is created in Dexter's constructor and used
-     * in the topLevel method to find Bailiffs. The service
-     * template IS serializable so Dexter only needs to instantiate it once.
+     * in the topLevel method to find Bailiffs. It is the same for every
+     * Dexter, so it is not sent along when Dexter migrates but created
+     * anew on arrival.
      */
-    protected ServiceTemplate bailiffTemplate;
+    protected transient ServiceTemplate bailiffTemplate;
 
     /**
      * Outputs a diagnostic message on standard output. This will be on
@@ -102,30 +122,66 @@ public class Dexter implements Serializable, TagPlayer {
      * instantiate the service template.
      *
      * @param debug True if this instance is being debugged.
-     * @throws ClassNotFoundException Thrown if the class for the Bailiff
-     *                                service interface could not be found.
      */
-    public Dexter(boolean debug, boolean noFace)
-            throws
-            java.lang.ClassNotFoundException {
+    public Dexter(boolean debug, boolean noFace) {
+        this();
+
         if (this.debug == false) this.debug = debug;
 
         this.id = UUID.randomUUID();
         this.noFace = noFace;
+    }
 
+    /**
+     * This creates a Dexter without identity. It is used when Dexter
+     * arrives in a Bailiff, and is followed by readExternal.
+     */
+    public Dexter() {
         // This service template is used to query the Jini lookup server
-        // for services which implement the BailiffInterface. The string
-        // name of that interface is passed in the bfi argument. At this
+        // for services which implement the BailiffInterface. At this
         // point we only create and configure the service template, no
         // query has yet been issued.
 
         bailiffTemplate =
                 new ServiceTemplate
                         (null,
-                                new Class[]{java.lang.Class.forName(bfi)},
+                                new Class[]{BailiffInterface.class},
                                 null);
     }
 
+    /**
+     * Writes Dexter's compact wire form: a version byte, the UUID as two
+     * longs, the flags packed in one byte and the hop count.
+     */
+    public void writeExternal(ObjectOutput out) throws IOException {
+        AgentWire.writeVersion(out, WIRE_VERSION);
+        AgentWire.writeUUID(out, id);
+        out.writeByte(AgentWire.pack(isIt.get(), isMigrating.get(), debug, noFace));
+        out.writeInt(hops);
+    }
+
+    public void readExternal(ObjectInput in) throws IOException {
+        int version = AgentWire.readVersion(in, Dexter.class, WIRE_VERSION);
+        id = AgentWire.readUUID(in);
+        int flags = in.readUnsignedByte();
+        isIt.set(AgentWire.bit(flags, 0));
+        isMigrating.set(AgentWire.bit(flags, 1));
+        debug = AgentWire.bit(flags, 2);
+        noFace = AgentWire.bit(flags, 3);
+        // Every copy read from the wire has made one more hop.
+        hops = ((2 <= version) ? in.readInt() : 0) + 1;
+    }
+
+    /**
+     * Stops our own service discovery manager, if we have one.
+     */
+    private void closeDiscovery() {
+        if (SDM != null) {
+            SDM.terminate();
+            SDM = null;
+        }
+    }
+
     /**
      * Sleep snugly and safely not bothered by interrupts.
      *
@@ -153,14 +209,17 @@ public class Dexter implements Serializable, TagPlayer {
         // Set the it property
         this.isIt.set(isIt);
 
-        Random rnd = new Random();
+        BailiffSelector selector = new BailiffSelector(new Random());
 
         debugMsg("[" + this + "] START TOP LEVEL");
         debugMsg("[" + this + "] isIt = " + (isIt ? "YES" : "NO"));
 
-        // Create a Jini service discovery manager to help us interact with
-        // the Jini lookup service.
-        SDM = new ServiceDiscoveryManager(null, null);
+        // Unless our Bailiff shares its discovery cache with us, create a
+        // Jini service discovery manager to help us interact with the Jini
+        // lookup service.
+        if (context == null) {
+            SDM = new ServiceDiscoveryManager(null, null);
+        }
 
         DexterFace dexFace = null;
         JFrame f = null;
@@ -210,7 +269,11 @@ public class Dexter implements Serializable, TagPlayer {
                 // Put our query, expressed as a service template, to the Jini
                 // service discovery manager.
 
-                svcItems = SDM.lookup(bailiffTemplate, 8, null);
+                svcItems = (context != null)
+                        ? context.lookupBailiffs(bailiffTemplate,
+                        BailiffSelector.LOOKUP_LIMIT, BailiffLoad.NOT_FULL)
+                        : SDM.lookup(bailiffTemplate,
+                        BailiffSelector.LOOKUP_LIMIT, BailiffLoad.NOT_FULL);
                 retryInterval = 20 * 1000;
 
                 // If no lookup servers are found, go back up to the beginning
@@ -221,96 +284,84 @@ public class Dexter implements Serializable, TagPlayer {
 
             debugMsg("Found " + svcItems.length + " Bailiffs.");
 
-            // Now enter a loop in which we try to ping and migrate to them.
+            // Draw a few of them, weighted by the room they have left, and
+            // enter a loop in which we try to ping and migrate to them.
 
-            int nofItems = svcItems.length;
-
-            // While we still have at least one Bailiff service to try...
+            ServiceItem[] candidates = selector.sample(svcItems,
+                    BailiffSelector.DEFAULT_SAMPLE, new BailiffSelector.Weigher() {
+                        public double weight(ServiceItem item) {
+                            return BailiffSelector.byRoom
+                                    (BailiffLoad.find(item.attributeSets));
+                        }
+                    });
 
-            while (0 < nofItems) {
+            // Ping them all at once. Those that do not answer in time are
+            // weighed down the next time.
 
-                // Select one Bailiff randomly.
+            debugMsg(this + "Trying to ping...");
 
-                int idx = 0;
-                if (1 < nofItems) {
-                    idx = rnd.nextInt(nofItems);
+            ArrayList<BailiffProbe.Response> answered =
+                    BailiffProbe.probe(candidates, BailiffProbe.DEFAULT_DEADLINE);
+            for (ServiceItem item : candidates) {
+                if (!BailiffProbe.answered(answered, item)) {
+                    selector.failed(item);
                 }
+            }
 
-                boolean accepted = false;        // Assume it will fail
-                Object obj = svcItems[idx].service; // Get the service object
-                BailiffInterface bfi = null;
-
-                // Try to ping the selected Bailiff.
-
-                debugMsg(this + "Trying to ping...");
-
-                try {
-                    if (obj instanceof BailiffInterface) {
-                        bfi = (BailiffInterface) obj;
-                        String response = bfi.ping(); // Ping it
-                        debugMsg(response);
-                        accepted = true;    // Oh, it worked!
-                    }
-                } catch (java.rmi.RemoteException e) { // Ping failed
-                    if (debug) {
-                        e.printStackTrace();
-                    }
-                }
+            debugMsg(answered.size() + " of " + candidates.length + " accepted.");
 
-                debugMsg(accepted ? "Accepted." : "Not accepted.");
+            // Try those that answered, in the order they were drawn in.
+            // Their round trips weigh the next draws.
 
-                // If the ping failed, delete that Bailiff from the array and
-                // try another. The current (idx) entry in the list of service items
-                // is replaced by the last item in the list, and the list length
-                // is decremented by one.
+            for (BailiffProbe.Response response
+                    : BailiffProbe.inOrder(answered, candidates)) {
 
-                if (accepted == false) {
-                    svcItems[idx] = svcItems[nofItems - 1];
-                    nofItems -= 1;
-                    continue;        // Back to top of while-loop.
-                } else {
+                BailiffInterface bfi = response.getBailiff();
+                selector.answered(response.getItem(), response.getNanos());
+                debugMsg(response.getEcho());
 
-                    debugMsg(this + " trying to jump...");
+                debugMsg(this + " trying to jump...");
 
-                    // This is the spot where Dexter tries to migrate.
+                // This is the spot where Dexter tries to migrate.
 
-                    try {
-                        // TODO : Remove debugging
-                        ArrayList<UUID> agentsList = bfi.getAgentsNames();
+                try {
+                    // TODO : Remove debugging
+                    if (debug) {
+                        ArrayList<AgentInfo> agentsList = bfi.getAgentsInfo();
                         debugMsg("List of agents | Size = " + agentsList.size());
                         for (int i = 0; i < agentsList.size(); ++i) {
-                            try {
-                                debugMsg("Agent " + i + " : " + agentsList.get(i)
-                                        + " | isIt = " + (bfi.isIt(agentsList.get(i)) ? "YES" : "NO"));
-                            } catch (NoSuchAgentException noSuchAgentInCurrentBailiff) {
-                                debugMsg("Agent " + i + " : " + agentsList.get(i));
-                            }
+                            AgentInfo info = agentsList.get(i);
+                            debugMsg("Agent " + i + " : " + info.getUUID()
+                                    + " | isIt = " + (info.isIt() ? "YES" : "NO"));
                         }
+                    }
 
-                        debugMsg(this + " trying to migrate...");
+                    debugMsg(this + " trying to migrate...");
 
-                        this.isMigrating.set(true);
-                        bfi.migrate(this, "topLevel", new Object[]{isIt});
-                        this.isMigrating.compareAndSet(true, false);
+                    this.isMigrating.set(true);
+                    bfi.migrate(this, "topLevel", new Object[]{isIt});
+                    this.isMigrating.compareAndSet(true, false);
 
-                        debugMsg(this + " migrated...");
-                        SDM.terminate();    // SUCCESS
-                        if (!noFace) {
-                            dexFace.stopAnimation();
-                            f.setVisible(false);
-                        }
-                        return;        // SUCCESS
-                    } catch (java.rmi.RemoteException | java.lang.NoSuchMethodException e ) { // FAILURE
-                        if (debug) {
-                            e.printStackTrace();
-                        }
-                        this.isMigrating.compareAndSet(true, false);
+                    debugMsg(this + " migrated...");
+                    closeDiscovery();    // SUCCESS
+                    if (!noFace) {
+                        dexFace.stopAnimation();
+                        f.setVisible(false);
+                    }
+                    return;        // SUCCESS
+                } catch (java.rmi.RemoteException | java.lang.NoSuchMethodException e ) { // FAILURE
+                    if (debug) {
+                        e.printStackTrace();
+                    }
+                    this.isMigrating.compareAndSet(true, false);
+                    if (GuardedBailiff.isTransportFailure(e)) {
+                        selector.failed(response.getItem());
                     }
+                }
 
-                    debugMsg("Didn't make the jump...");
+                debugMsg("Didn't make the jump...");
 
-                }
-            }    // while there are candidates left
+            }    // for each candidate
 
             debugMsg("They were all bad.");
 
@@ -322,7 +373,6 @@ public class Dexter implements Serializable, TagPlayer {
      */
     public static void main(String[] argv)
             throws
-            java.lang.ClassNotFoundException,
             java.io.IOException {
         CmdlnOption helpOption = new CmdlnOption("-help");
         CmdlnOption debugOption = new CmdlnOption("-debug");
@@ -360,6 +410,23 @@ public class Dexter implements Serializable, TagPlayer {
         return isIt.get();
     }
 
+    @Override
+    public boolean isMigrating() {
+        return isMigrating.get();
+    }
+
+    @Override
+    public int getHops() {
+        return hops;
+    }
+
+    // In ContextAware:
+
+    @Override
+    public void setAgentContext(AgentContext context) {
+        this.context = context;
+    }
+
     @Override
     public boolean itAgent() {
         // If is migrating, cannot be it
@@ -369,4 +436,9 @@ public class Dexter implements Serializable, TagPlayer {
         // Otherwise, become the it agent
         return isIt.compareAndSet(false, true);
     }
+
+    @Override
+    public boolean passIt() {
+        return isIt.compareAndSet(true, false);
+    }
 }
@@ -0,0 +1,21 @@
+package dsv.pis.gotag.exceptions;
+
+/**
+ * Thrown instead of making a remote call to a Bailiff whose circuit
+ * breaker is open, because calls to it have failed repeatedly.
+ */
+
+public class CircuitOpenException extends java.rmi.RemoteException {
+
+    private static final long serialVersionUID = 4190378305627717394L;
+    private Object endpoint;
+
+    public CircuitOpenException(Object endpoint) {
+        super("Circuit open for Bailiff " + endpoint);
+        this.endpoint = endpoint;
+    }
+
+    public Object getEndpoint() {
+        return endpoint;
+    }
+}
@@ -0,0 +1,23 @@
+package dsv.pis.gotag.exceptions;
+
+/**
+ * Thrown when a migration is committed with a ticket that the Bailiff
+ * does not hold, because it has expired, was cancelled or was already used.
+ */
+
+import java.util.UUID;
+
+public class NoSuchReservationException extends Exception {
+
+    private static final long serialVersionUID = -2261835914452027413L;
+    private long serial;
+
+    public NoSuchReservationException(long serial, UUID agent) {
+        super("No such reservation in the Bailiff " + serial + " for " + agent);
+        this.serial = serial;
+    }
+
+    public long getSerial() {
+        return serial;
+    }
+}
@@ -0,0 +1,138 @@
+package dsv.pis.gotag.player;
+
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Helpers for the compact wire form of TagPlayer implementations.
+ * <p>
+ * Agents that implement {@link java.io.Externalizable} with these helpers
+ * write a version byte first, then their UUID as two longs and their
+ * boolean state packed as bits in one byte. Fields that can be derived
+ * on arrival, such as service templates and random generators, are not
+ * sent at all.
+ */
+public final class AgentWire {
+
+    private AgentWire() {
+    }
+
+    /**
+     * Writes the wire form version.
+     *
+     * @param out     The stream to write to.
+     * @param version The version of the writer.
+     * @throws IOException If the stream fails.
+     */
+    public static void writeVersion(ObjectOutput out, int version) throws IOException {
+        out.writeByte(version);
+    }
+
+    /**
+     * Reads the wire form version and checks that the reader knows it.
+     *
+     * @param in      The stream to read from.
+     * @param type    The class being read, for the error message.
+     * @param highest The highest version the reader understands.
+     * @return The version found in the stream.
+     * @throws IOException If the stream fails or the version is unknown.
+     */
+    public static int readVersion(ObjectInput in, Class<?> type, int highest) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version < 1 || highest < version) {
+            throw new InvalidClassException(type.getName(),
+                    "unknown wire form version " + version);
+        }
+        return version;
+    }
+
+    /**
+     * Writes a UUID as two longs.
+     *
+     * @param out The stream to write to.
+     * @param id  The UUID.
+     * @throws IOException If the stream fails.
+     */
+    public static void writeUUID(ObjectOutput out, UUID id) throws IOException {
+        out.writeLong(id.getMostSignificantBits());
+        out.writeLong(id.getLeastSignificantBits());
+    }
+
+    /**
+     * Reads a UUID written by writeUUID.
+     *
+     * @param in The stream to read from.
+     * @return The UUID.
+     * @throws IOException If the stream fails.
+     */
+    public static UUID readUUID(ObjectInput in) throws IOException {
+        long msb = in.readLong();
+        long lsb = in.readLong();
+        return new UUID(msb, lsb);
+    }
+
+    /**
+     * Packs up to eight booleans into one byte, the first in the lowest bit.
+     *
+     * @param flags The booleans.
+     * @return The packed byte.
+     */
+    public static int pack(boolean... flags) {
+        int bits = 0;
+        for (int i = 0; i < flags.length; i++) {
+            if (flags[i]) {
+                bits |= 1 << i;
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Returns one boolean from a packed byte.
+     *
+     * @param bits  The packed byte.
+     * @param index The position of the boolean given to pack.
+     * @return The boolean.
+     */
+    public static boolean bit(int bits, int index) {
+        return (bits & (1 << index)) != 0;
+    }
+
+    /**
+     * Writes a string that may be null or longer than writeUTF allows.
+     *
+     * @param out The stream to write to.
+     * @param s   The string, or null.
+     * @throws IOException If the stream fails.
+     */
+    public static void writeString(ObjectOutput out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(utf8.length);
+            out.write(utf8);
+        }
+    }
+
+    /**
+     * Reads a string written by writeString.
+     *
+     * @param in The stream to read from.
+     * @return The string, or null.
+     * @throws IOException If the stream fails.
+     */
+    public static String readString(ObjectInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] utf8 = new byte[length];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+}
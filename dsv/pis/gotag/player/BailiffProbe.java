@@ -0,0 +1,195 @@
+package dsv.pis.gotag.player;
+
+import dsv.pis.gotag.bailiff.BailiffInterface;
+import dsv.pis.gotag.bailiff.CircuitBreaker;
+import dsv.pis.gotag.bailiff.GuardedBailiff;
+import net.jini.core.lookup.ServiceItem;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pings a set of Bailiffs in parallel and reports those that answered
+ * within a deadline, fastest first.
+ * <p>
+ * Pinging one Bailiff after the other, a single hung Bailiff holds the
+ * agent for a full RMI timeout before the next one is tried. With the
+ * probe, dead Bailiffs cost one deadline altogether. Calls still running
+ * at the deadline are abandoned; their threads end with the RMI timeout.
+ * <p>
+ * Bailiffs whose circuit breaker is open are not pinged at all, and the
+ * Bailiffs of the responses are guarded by their breakers, so that the
+ * calls the agent makes next count towards them as well.
+ */
+public class BailiffProbe {
+
+    /**
+     * The default time a probe waits for answers, in milliseconds.
+     */
+    public static final long DEFAULT_DEADLINE = 2000;
+
+    /**
+     * A Bailiff that answered the probe.
+     */
+    public static final class Response {
+        private final ServiceItem item;
+        private final BailiffInterface bailiff;
+        private final long nanos;
+        private final String echo;
+
+        Response(ServiceItem item, BailiffInterface bailiff, long nanos, String echo) {
+            this.item = item;
+            this.bailiff = bailiff;
+            this.nanos = nanos;
+            this.echo = echo;
+        }
+
+        /**
+         * Returns the service item of the Bailiff.
+         */
+        public ServiceItem getItem() {
+            return item;
+        }
+
+        /**
+         * Returns the Bailiff, guarded by its circuit breaker.
+         */
+        public BailiffInterface getBailiff() {
+            return bailiff;
+        }
+
+        /**
+         * Returns the round trip time of the ping in nanoseconds.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * Returns the ping response of the Bailiff.
+         */
+        public String getEcho() {
+            return echo;
+        }
+    }
+
+    /**
+     * The threads that make the calls. They are shared by all agents of
+     * the same code in a JVM and go away when idle.
+     */
+    private static final ExecutorService CALLERS =
+            Executors.newCachedThreadPool(new java.util.concurrent.ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "bailiff-probe-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private BailiffProbe() {
+    }
+
+    /**
+     * Pings Bailiffs in parallel.
+     *
+     * @param items          The Bailiffs to ping. Items whose service is
+     *                       not a Bailiff are ignored.
+     * @param deadlineMillis The time to wait for answers.
+     * @return The Bailiffs that answered in time, fastest first.
+     */
+    public static ArrayList<Response> probe(ServiceItem[] items, long deadlineMillis) {
+        ArrayList<Response> answered = new ArrayList<Response>();
+        if (items == null || items.length == 0) {
+            return answered;
+        }
+
+        CompletionService<Response> pings = new ExecutorCompletionService<Response>(CALLERS);
+        ArrayList<Future<Response>> pending = new ArrayList<Future<Response>>(items.length);
+        for (final ServiceItem item : items) {
+            if (!(item.service instanceof BailiffInterface)) {
+                continue;
+            }
+            if (CircuitBreaker.isOpen(item.serviceID)) {
+                continue;     // Known to be down; do not wait for it
+            }
+            final BailiffInterface bfi =
+                    GuardedBailiff.guard((BailiffInterface) item.service, item.serviceID);
+            pending.add(pings.submit(() -> {
+                long t0 = System.nanoTime();
+                String echo = bfi.ping();
+                return new Response(item, bfi, System.nanoTime() - t0, echo);
+            }));
+        }
+
+        // Answers complete in the order of their latency.
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        try {
+            for (int i = 0; i < pending.size(); i++) {
+                long wait = deadline - System.nanoTime();
+                Future<Response> done = (0 < wait) ? pings.poll(wait, TimeUnit.NANOSECONDS) : null;
+                if (done == null) {
+                    break;        // Deadline
+                }
+                try {
+                    answered.add(done.get());
+                } catch (ExecutionException e) {
+                    // That Bailiff did not answer
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Future<Response> f : pending) {
+            f.cancel(true);
+        }
+        return answered;
+    }
+
+    /**
+     * Puts the responders of a probe back in the order the Bailiffs were
+     * given in, such as the order of a weighted draw.
+     *
+     * @param answered The responders of a probe, fastest first.
+     * @param items    The Bailiffs that were probed.
+     * @return The responders, in the order of the items.
+     */
+    public static ArrayList<Response> inOrder(ArrayList<Response> answered,
+                                              ServiceItem[] items) {
+        ArrayList<Response> ordered = new ArrayList<Response>(answered.size());
+        for (ServiceItem item : items) {
+            for (Response r : answered) {
+                if (r.getItem() == item) {
+                    ordered.add(r);
+                    break;
+                }
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Returns true if a Bailiff is among the responders.
+     *
+     * @param answered The responders of a probe.
+     * @param item     The Bailiff.
+     * @return True if it answered.
+     */
+    public static boolean answered(ArrayList<Response> answered, ServiceItem item) {
+        for (Response r : answered) {
+            if (r.getItem() == item) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,231 @@
+package dsv.pis.gotag.player;
+
+import dsv.pis.gotag.bailiff.BailiffLoad;
+import dsv.pis.gotag.bailiff.CircuitBreaker;
+import net.jini.core.lookup.ServiceItem;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Chooses the Bailiffs an agent tries to migrate to.
+ * <p>
+ * A lookup may return thousands of Bailiffs. Instead of taking the first
+ * few the registrar happens to return, the selector draws a small sample
+ * from all of them in one pass, by weighted reservoir sampling: every
+ * candidate gets the key u^(1/w) for a uniform random u and its weight w,
+ * and the k largest keys are kept in a heap. That is O(n log k) time and
+ * O(k) space, and the sample comes out in the order of a weighted draw
+ * without replacement, so the agent simply tries it front to back.
+ * <p>
+ * The weight of a candidate is given by a {@link Weigher}, typically from
+ * the BailiffLoad the candidate publishes. It is then multiplied by the
+ * weight of the candidate in the selector's {@link RouteTable}, which
+ * falls with the round trip to the candidate and halves for every time
+ * in a row it has failed. A weight of 0 excludes a candidate, as does an
+ * open circuit breaker.
+ */
+public class BailiffSelector {
+
+    /**
+     * The most Bailiffs taken from a lookup for one decision.
+     */
+    public static final int LOOKUP_LIMIT = 10000;
+
+    /**
+     * The default number of candidates tried per migration attempt.
+     */
+    public static final int DEFAULT_SAMPLE = 8;
+
+    /**
+     * Bailiffs without a capacity limit are weighted down by one half for
+     * every CROWD residents.
+     */
+    public static final int CROWD = 32;
+
+    /**
+     * Gives the weight of a candidate Bailiff.
+     */
+    public interface Weigher {
+        /**
+         * Returns the weight of a candidate.
+         *
+         * @param item The candidate.
+         * @return A non-negative weight, 0 to exclude the candidate.
+         */
+        public double weight(ServiceItem item);
+    }
+
+    /**
+     * A sampled candidate and its key.
+     */
+    private static final class Keyed {
+        final ServiceItem item;
+        final double key;
+
+        Keyed(ServiceItem item, double key) {
+            this.item = item;
+            this.key = key;
+        }
+    }
+
+    private static final Comparator<Keyed> BY_KEY = new Comparator<Keyed>() {
+        public int compare(Keyed a, Keyed b) {
+            return Double.compare(a.key, b.key);
+        }
+    };
+
+    private final Random rnd;
+    private final RouteTable routes;
+
+    /**
+     * Creates a new selector that learns from scratch.
+     *
+     * @param rnd The source of randomness.
+     */
+    public BailiffSelector(Random rnd) {
+        this(rnd, new RouteTable());
+    }
+
+    /**
+     * Creates a new selector that learns into a given route table, such
+     * as one the agent carries along.
+     *
+     * @param rnd    The source of randomness.
+     * @param routes The route table.
+     */
+    public BailiffSelector(Random rnd, RouteTable routes) {
+        this.rnd = rnd;
+        this.routes = routes;
+    }
+
+    /**
+     * Draws up to k candidates, weighted, without replacement.
+     *
+     * @param items   The candidates, as returned by a lookup.
+     * @param k       The sample size.
+     * @param weigher The weight of each candidate.
+     * @return The sample, the preferred candidate first.
+     */
+    public ServiceItem[] sample(ServiceItem[] items, int k, Weigher weigher) {
+        if (items == null || k < 1) {
+            return new ServiceItem[0];
+        }
+        PriorityQueue<Keyed> heap = new PriorityQueue<Keyed>(k + 1, BY_KEY);
+        for (ServiceItem item : items) {
+            double w = weigher.weight(item) * reachability(item);
+            if (!(0 < w)) {
+                continue;
+            }
+            // log(u^(1/w)) keeps the order of the keys without underflow.
+            double key = Math.log(1.0 - rnd.nextDouble()) / w;
+            if (heap.size() < k) {
+                heap.add(new Keyed(item, key));
+            } else if (heap.peek().key < key) {
+                heap.poll();
+                heap.add(new Keyed(item, key));
+            }
+        }
+        Keyed[] drawn = heap.toArray(new Keyed[0]);
+        Arrays.sort(drawn, BY_KEY.reversed());
+        ServiceItem[] sample = new ServiceItem[drawn.length];
+        for (int i = 0; i < drawn.length; i++) {
+            sample[i] = drawn[i].item;
+        }
+        return sample;
+    }
+
+    /**
+     * Records that a candidate could not be reached. Its weight is halved
+     * in later samples. A candidate that refused us is not recorded, since
+     * its published load already weighs how busy it is.
+     *
+     * @param item The candidate.
+     */
+    public void failed(ServiceItem item) {
+        routes.failed(item.serviceID);
+    }
+
+    /**
+     * Records that a candidate answered, which clears its failures.
+     *
+     * @param item The candidate.
+     */
+    public void succeeded(ServiceItem item) {
+        routes.succeeded(item.serviceID);
+    }
+
+    /**
+     * Records that a candidate answered after a round trip. This clears
+     * its failures and enters the time into its moving average.
+     *
+     * @param item  The candidate.
+     * @param nanos The round trip in nanoseconds.
+     */
+    public void answered(ServiceItem item, long nanos) {
+        routes.observe(item.serviceID, nanos);
+    }
+
+    private double reachability(ServiceItem item) {
+        if (CircuitBreaker.isOpen(item.serviceID)) {
+            return 0.0;
+        }
+        return routes.weight(item.serviceID);
+    }
+
+    /**
+     * Weighs a Bailiff by the room it has left. A full Bailiff weighs 0,
+     * one that publishes no load weighs 1.
+     *
+     * @param load The load the Bailiff publishes, or null.
+     * @return The weight.
+     */
+    public static double byRoom(BailiffLoad load) {
+        if (load == null) {
+            return 1.0;
+        }
+        if (load.isFull()) {
+            return 0.0;
+        }
+        if (load.load != null) {
+            return (100 - load.load) / 100.0;
+        }
+        if (load.residents != null) {
+            return 1.0 / (1.0 + (double) load.residents / CROWD);
+        }
+        return 1.0;
+    }
+
+    /**
+     * Weighs a Bailiff for the 'it' agent, by the number of agents it may
+     * tag there. An empty or full Bailiff weighs 0.
+     *
+     * @param load The load the Bailiff publishes, or null.
+     * @return The weight.
+     */
+    public static double forHunting(BailiffLoad load) {
+        if (load == null) {
+            return 1.0;
+        }
+        if (load.isFull() || load.isEmpty()) {
+            return 0.0;
+        }
+        return (load.residents != null) ? load.residents : 1.0;
+    }
+
+    /**
+     * Weighs a Bailiff for an agent fleeing the 'it' agent: by room, and
+     * 0 if the 'it' agent is there.
+     *
+     * @param load The load the Bailiff publishes, or null.
+     * @return The weight.
+     */
+    public static double forFleeing(BailiffLoad load) {
+        if (load != null && load.hasIt()) {
+            return 0.0;
+        }
+        return byRoom(load);
+    }
+}
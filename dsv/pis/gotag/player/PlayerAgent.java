@@ -1,21 +1,48 @@
 package dsv.pis.gotag.player;
 
+import dsv.pis.gotag.bailiff.AgentContext;
+import dsv.pis.gotag.bailiff.AgentInfo;
 import dsv.pis.gotag.bailiff.BailiffInterface;
+import dsv.pis.gotag.bailiff.BailiffLoad;
+import dsv.pis.gotag.bailiff.ContextAware;
+import dsv.pis.gotag.bailiff.GuardedBailiff;
+import dsv.pis.gotag.bailiff.MigrationParcel;
+import dsv.pis.gotag.bailiff.MigrationTicket;
+import dsv.pis.gotag.bailiff.Relocatable;
+import dsv.pis.gotag.bailiff.RosterListener;
+import dsv.pis.gotag.bailiff.SteppedAgent;
 import dsv.pis.gotag.exceptions.NoSuchAgentException;
+import dsv.pis.gotag.exceptions.NoSuchReservationException;
 import dsv.pis.gotag.util.CmdlnOption;
 import dsv.pis.gotag.util.Commandline;
 import net.jini.core.lookup.ServiceItem;
 import net.jini.core.lookup.ServiceTemplate;
 import net.jini.lookup.ServiceDiscoveryManager;
+import net.jini.lookup.ServiceItemFilter;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 
-public class PlayerAgent implements Serializable, TagPlayer {
+public class PlayerAgent
+        implements Externalizable, TagPlayer, RosterListener, SteppedAgent, Relocatable,
+        ContextAware {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The version of the wire form written by writeExternal.
+     */
+    private static final int WIRE_VERSION = 3;
 
     /**
      * Unique identifier of the agent
@@ -26,14 +53,30 @@ public class PlayerAgent implements Serializable, TagPlayer {
 
     AtomicBoolean isMigrating = new AtomicBoolean(false);
 
-    private Random rnd = new Random(System.currentTimeMillis());
+    /**
+     * The number of migrations this agent has made.
+     */
+    protected int hops = 0;
+
+    /**
+     * Draws the Bailiffs we try. It is created anew on every arrival,
+     * with a seed of its own, so that agents arriving at once do not
+     * draw alike.
+     */
+    private Random rnd = new Random();
+
+    /**
+     * The round trips and failures we have seen to other Bailiffs. It
+     * goes along when we migrate.
+     */
+    protected RouteTable routes = new RouteTable();
 
     /**
-     * The string name of the Bailiff service interface, used when
-     * querying the Jini lookup server.
+     * Chooses the Bailiffs we try to migrate to, weighing them by the
+     * load they publish and by our routes. It is created anew in each
+     * Bailiff.
      */
-    protected static final String bfi =
-            "dsv.pis.gotag.bailiff.BailiffInterface";
+    private transient BailiffSelector selector;
 
     /**
      * The debug flag controls the amount of diagnostic info we put out.
@@ -42,18 +85,83 @@ public class PlayerAgent implements Serializable, TagPlayer {
 
 
     /**
-     * Dexter uses a ServiceDiscoveryManager to find Bailiffs.
+     * Without a context from its Bailiff, the agent uses a
+     * ServiceDiscoveryManager of its own to find Bailiffs.
      * The SDM is not serializable so it must recreated on each new Bailiff.
      * That is why it is marked as transient.
      */
     protected transient ServiceDiscoveryManager SDM;
 
     /**
-     * This service template is created in Dexter's constructor and used
-     * in the topLevel method to find Bailiffs. The service
-     * template IS serializable so Dexter only needs to instantiate it once.
+     * The context of the Bailiff we are in, if it lends us one. It is
+     * given anew in each Bailiff, so it is not sent along.
+     */
+    protected transient AgentContext context;
+
+    /**
+     * The monitor on which the agent waits for roster events from its
+     * Bailiff. It is created anew in each Bailiff by topLevel.
+     */
+    protected transient Object rosterSignal;
+
+    /**
+     * Set when a roster event of interest has arrived. Guarded by
+     * rosterSignal.
+     */
+    protected transient boolean rosterChanged;
+
+    /**
+     * The phases of the agent's behaviour. The agent is a state machine
+     * which is stepped either by its own loop in topLevel or, in a Bailiff
+     * in tick mode, by the Bailiff's TickScheduler.
+     */
+    protected enum Phase {
+        REST,   // Restraint sleep before the next round
+        LOOKUP, // Find some Bailiffs
+        LOCATE, // Find the Bailiff we are in
+        ACT,    // Tag someone, or flee from the it agent
+        DONE    // We have left
+    }
+
+    /**
+     * The current phase.
+     */
+    protected transient volatile Phase phase;
+
+    /**
+     * The system time before which the current phase has nothing to do,
+     * unless a roster event arrives.
+     */
+    protected transient volatile long wakeAt;
+
+    /**
+     * Set when our Bailiff asks us to leave because it shuts down.
+     */
+    protected transient volatile boolean leaving;
+
+    /**
+     * Held while a step runs, so that the Bailiff can not relocate us in
+     * the middle of one.
+     */
+    protected transient ReentrantLock stepLock;
+
+    /**
+     * The Bailiffs found by the last lookup.
      */
-    protected ServiceTemplate bailiffTemplate;
+    protected transient ServiceItem[] svcItems;
+
+    /**
+     * The Bailiff we are in, once found.
+     */
+    protected transient BailiffInterface localBailiff;
+
+    /**
+     * This service template is created in the constructor and used
+     * in the topLevel method to find Bailiffs. It is the same for every
+     * agent, so it is not sent along when the agent migrates but created
+     * anew on arrival.
+     */
+    protected transient ServiceTemplate bailiffTemplate;
 
     /**
      * Outputs a diagnostic message on standard output. This will be on
@@ -76,26 +184,60 @@ public class PlayerAgent implements Serializable, TagPlayer {
     }
 
 
-    public PlayerAgent(boolean debug)
-            throws ClassNotFoundException {
-        if (this.debug == false) this.debug = debug;
-
-        // Generate a random UUID for the agent instance
-        this.id = UUID.randomUUID();
-
+    /**
+     * Creates an agent without identity. This constructor is used when an
+     * agent arrives, and is followed by readExternal.
+     */
+    public PlayerAgent() {
         // This service template is used to query the Jini lookup server
-        // for services which implement the BailiffInterface. The string
-        // name of that interface is passed in the bfi argument. At this
+        // for services which implement the BailiffInterface. At this
         // point we only create and configure the service template, no
         // query has yet been issued.
 
         bailiffTemplate =
                 new ServiceTemplate
                         (null,
-                                new Class[]{java.lang.Class.forName(bfi)},
+                                new Class[]{BailiffInterface.class},
                                 null);
     }
 
+    public PlayerAgent(boolean debug) {
+        this();
+
+        if (this.debug == false) this.debug = debug;
+
+        // Generate a random UUID for the agent instance
+        this.id = UUID.randomUUID();
+    }
+
+    /**
+     * Writes the compact wire form of the agent: a version byte, the
+     * UUID as two longs, the flags packed in one byte and, since version
+     * 2, the hop count and, since version 3, the route table. The service
+     * template and the random generator are recreated on arrival.
+     */
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        AgentWire.writeVersion(out, WIRE_VERSION);
+        AgentWire.writeUUID(out, id);
+        out.writeByte(AgentWire.pack(isIt.get(), isMigrating.get(), debug));
+        out.writeInt(hops);
+        routes.writeTo(out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        int version = AgentWire.readVersion(in, PlayerAgent.class, WIRE_VERSION);
+        id = AgentWire.readUUID(in);
+        int flags = in.readUnsignedByte();
+        isIt.set(AgentWire.bit(flags, 0));
+        isMigrating.set(AgentWire.bit(flags, 1));
+        debug = AgentWire.bit(flags, 2);
+        // Every copy read from the wire has made one more hop.
+        hops = ((2 <= version) ? in.readInt() : 0) + 1;
+        routes = (3 <= version) ? RouteTable.readFrom(in) : new RouteTable();
+    }
+
     /**
      * Getter for the UUID of the agent
      *
@@ -118,10 +260,101 @@ public class PlayerAgent implements Serializable, TagPlayer {
         }
     }
 
+    /**
+     * Sleep like snooze, but wake up early if the Bailiff tells us about
+     * a roster event of interest. The event is left pending for
+     * takeRosterEvent.
+     *
+     * @param ms The maximum number of milliseconds to sleep.
+     */
+    protected void awaitRosterEvent(long ms) {
+        if (ms <= 0) {
+            return;
+        }
+        Object signal = rosterSignal;
+        if (signal == null) {
+            snooze(ms);
+            return;
+        }
+        synchronized (signal) {
+            long deadline = System.currentTimeMillis() + ms;
+            long remaining = ms;
+            while (!rosterChanged && 0 < remaining) {
+                try {
+                    signal.wait(remaining);
+                } catch (java.lang.InterruptedException e) {
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Consumes a pending roster event.
+     *
+     * @return True if a roster event of interest was pending.
+     */
+    protected boolean takeRosterEvent() {
+        Object signal = rosterSignal;
+        if (signal == null) {
+            return false;
+        }
+        synchronized (signal) {
+            boolean pending = rosterChanged;
+            rosterChanged = false;
+            return pending;
+        }
+    }
+
+    /**
+     * Wakes the agent up from awaitRosterEvent.
+     */
+    protected void signalRoster() {
+        Object signal = rosterSignal;
+        if (signal != null) {
+            synchronized (signal) {
+                rosterChanged = true;
+                signal.notifyAll();
+            }
+        }
+    }
+
 
+    /**
+     * The entry point of the agent in a Bailiff that lends it a thread.
+     * The agent steps through its phases and sleeps in between, until it
+     * has migrated.
+     *
+     * @param isIt True if the agent arrives as the 'it' agent.
+     */
     public void topLevel(Boolean isIt)
             throws
             java.io.IOException {
+        begin(isIt);
+        while (runPhase()) {
+            awaitRosterEvent(wakeAt - System.currentTimeMillis());
+        }
+    }
+
+    // In SteppedAgent:
+
+    /**
+     * The entry point of the agent in a Bailiff in tick mode. The arguments
+     * are those of topLevel.
+     *
+     * @param args The 'it' flag, as a Boolean.
+     */
+    @Override
+    public void arrive(Object[] args) throws java.io.IOException {
+        begin((Boolean) args[0]);
+    }
+
+    /**
+     * Sets the agent up in a new Bailiff.
+     *
+     * @param isIt True if the agent arrives as the 'it' agent.
+     */
+    protected void begin(boolean isIt) throws java.io.IOException {
 
         this.isMigrating.compareAndSet(true, false);
 
@@ -129,79 +362,257 @@ public class PlayerAgent implements Serializable, TagPlayer {
         this.isIt.set(isIt);
 
         // Local Bailiff
-        BailiffInterface localBailiff = null;
+        localBailiff = null;
+
+        leaving = false;
+        stepLock = new ReentrantLock();
+        selector = new BailiffSelector(rnd, routes);
+
+        rosterSignal = new Object();
 
         debugMsg("\n[Start Toplevel] isIt = " + (this.isIt.get() ? "YES" : "NO"));
         if (debug)
             System.out.println();
 
-        // Create a Jini service discovery manager to help us interact with
-        // the Jini lookup service.
-        SDM = new ServiceDiscoveryManager(null, null);
+        // Unless our Bailiff shares its discovery cache with us, create a
+        // Jini service discovery manager to help us interact with the Jini
+        // lookup service.
+        if (context == null) {
+            SDM = new ServiceDiscoveryManager(null, null);
+        }
+
+        rest();
+    }
+
+    /**
+     * Enters the restraint sleep. It is just there so we don't get
+     * hyperactive and confuse the slow human beings.
+     */
+    private void rest() {
+        debugMsg("Entering restraint sleep");
+        sleepThen(Phase.LOOKUP, 5000);
+    }
+
+    /**
+     * Moves to another phase after a sleep.
+     *
+     * @param next The phase to enter.
+     * @param ms   The time to sleep before, unless a roster event arrives.
+     */
+    private void sleepThen(Phase next, long ms) {
+        phase = next;
+        wakeAt = System.currentTimeMillis() + ms;
+    }
 
-        for (; ; ) {
+    /**
+     * Ends the current phase after a migration attempt.
+     *
+     * @param success True if the migration succeeded.
+     * @return False if we have left, true if we are still here.
+     */
+    private boolean migrated(boolean success) {
+        if (success) {
+            phase = Phase.DONE;
+            return false; // Migrate = SUCCESS
+        }
+        rest();
+        return true;
+    }
 
-            ServiceItem[] svcItems;
+    // In SteppedAgent:
 
-            long retryInterval = 0;
+    /**
+     * Performs the current phase of the agent, if it is due, on the
+     * Bailiff's tick worker. A phase does not sleep, but it may wait for
+     * remote calls, for at most their timeout; the Bailiff records such
+     * a step as an overrun.
+     *
+     * @param deadlineNanos Not used; a phase is one round of calls.
+     * @return False once the agent has migrated.
+     */
+    @Override
+    public boolean step(long deadlineNanos) {
+        if (phase == Phase.DONE) {
+            return false;
+        }
+        if (!isDue()) {
+            return true;
+        }
+        return runPhase();
+    }
 
-            // The restraint sleep is just there so we don't get hyperactive
-            // and confuse the slow human beings.
+    /**
+     * Returns true if the current phase has something to do, without
+     * taking the roster event that may have made it so.
+     */
+    private boolean isDue() {
+        if (leaving || wakeAt <= System.currentTimeMillis()) {
+            return true;
+        }
+        Object signal = rosterSignal;
+        if (signal == null) {
+            return false;
+        }
+        synchronized (signal) {
+            return rosterChanged;
+        }
+    }
 
-            debugMsg("Entering restraint sleep");
+    /**
+     * Performs the current phase of the agent, if it is due.
+     *
+     * @return False once the agent has migrated.
+     */
+    private boolean runPhase() {
+        ReentrantLock lock = stepLock;
+        lock.lock();
+        try {
+            return stepPhase();
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            snooze(5000);
+    private boolean stepPhase() {
 
-            debugMsg("Leaving restraint sleep");
+        if (phase == Phase.DONE) {
+            return false;
+        }
 
-            // Enter a loop in which Dexter tries to find some Bailiffs.
+        boolean woken = takeRosterEvent();
+        if (System.currentTimeMillis() < wakeAt && !woken) {
+            return true; // Not yet
+        }
 
-            do {
+        // If our Bailiff shuts down, leave as soon as we know of others.
+        if (leaving && svcItems != null && phase != Phase.LOOKUP) {
+            debugMsg("[Leaving] Our Bailiff is shutting down");
+            return migrated(migrate(svcItems, localBailiff, false));
+        }
 
-                if (0 < retryInterval) {
-                    //debugMsg("[No bailiff detected] Sleeping");
-                    snooze(retryInterval);
-                    //debugMsg("[No Bailiff detected] Waking up");
+        switch (phase) {
+            case REST:
+                // Woken by the roster of our Bailiff, we look at it now;
+                // only the periodic round goes through the restraint sleep.
+                if (woken && localBailiff != null) {
+                    phase = Phase.ACT;
+                    return act();
                 }
+                rest();
+                return true;
+
+            case LOOKUP:
+                debugMsg("Leaving restraint sleep");
 
                 // Put our query, expressed as a service template, to the Jini
                 // service discovery manager.
 
-                svcItems = SDM.lookup(bailiffTemplate, 8, null);
-                retryInterval = 20 * 1000;
+                svcItems = lookupBailiffs(BailiffSelector.LOOKUP_LIMIT, null);
 
-                // If no lookup servers are found, go back up to the beginning
-                // of the loop, sleep a bit and then try again.
-            } while (svcItems.length == 0);
+                // If no lookup servers are found, sleep a bit and then try
+                // again.
+                if (svcItems.length == 0) {
+                    //debugMsg("[No bailiff detected] Sleeping");
+                    sleepThen(Phase.LOOKUP, 20 * 1000);
+                    return true;
+                }
+
+                // We have the Bailiffs.
 
-            // We have the Bailiffs.
+                debugMsg("Found " + svcItems.length + " Bailiffs.");
+                phase = Phase.LOCATE;
+                return true;
+
+            case LOCATE:
+                // Our Bailiff tells us where we are, if it lends us a
+                // context. Otherwise we ask the Bailiffs one by one.
+                if (context != null) {
+                    localBailiff = context.getLocalBailiff();
+                } else {
+                    locate();
+                }
 
-            debugMsg("Found " + svcItems.length + " Bailiffs.");
+                // If not in a bailiff => migrate in one chosen randomly
+                if (localBailiff == null) {
+                    debugMsg("Not in a bailiff");
+                    return migrated(migrate(svcItems, null, false));
+                }
+                phase = Phase.ACT;
+                return true;
+
+            case ACT:
+                return act();
+
+            default:
+                return false;
+        }
+    }
 
-            // Now enter a loop in which we try to ping and migrate to them.
+    /**
+     * Finds our local bailiff among the Bailiffs of the last lookup. Each
+     * one has to be asked, so no more than a sample's worth are; this
+     * is only needed without a context.
+     */
+    private void locate() {
+        ServiceItem[] asked = Arrays.copyOf(svcItems,
+                Math.min(svcItems.length, BailiffSelector.DEFAULT_SAMPLE));
+        try {
+            // Ping them all at once, then ask those that answered.
+            for (BailiffProbe.Response response
+                    : BailiffProbe.probe(asked, BailiffProbe.DEFAULT_DEADLINE)) {
+                BailiffInterface bfi = response.getBailiff();
+                selector.answered(response.getItem(), response.getNanos());
+                ArrayList<UUID> agentsList = bfi.getAgentsNames();
+                if (agentsList.contains(id)) {
+                    localBailiff = bfi;
+                    break;
+                }
+            }
+        } catch (java.rmi.RemoteException e) { // FAILURE
+            if (debug) {
+                e.printStackTrace();
+            }
+            localBailiff = null;
+        }
+    }
 
-            int nofItems = svcItems.length;
+    /**
+     * Plays the game in the local bailiff.
+     *
+     * @return False if we have migrated, true if we are still here.
+     */
+    private boolean act() {
 
-            // 1) Find our local bailiff
+        // If it => try to it a player agent in the local bailiff
+        if (this.isIt.get()) {
             try {
-                int idx = 0;
-                while (localBailiff == null && idx < nofItems) {
-                    Object obj = svcItems[idx].service; // Get the service object
-                    idx++;
-
-                    // Try to ping the bailiff
-                    BailiffInterface bfi = pingBailiff(obj);
-                    if (bfi == null) {
-                        // Ping failed
-                        continue;
-                    }
+                debugMsg("\n[IT Agent] In action");
 
-                    // Ping successful
-                    ArrayList<UUID> agentsList = bfi.getAgentsNames();
-                    if (agentsList.contains(id)) {
-                        localBailiff = bfi;
+                // Try to it one agent in the local bailiff. The Bailiff
+                // picks an agent that is not migrating, tags it for us and
+                // takes our own 'it' state away in the same step.
+                try {
+                    UUID agent = localBailiff.tagAnyone(id);
+                    if (agent != null) {
+                        // It successfull
+                        debugMsg("[IT SUCCEEDED] Agent succeeded to it agent " + agent + " !");
+                        if (debug)
+                            System.out.println();
+                    } else {
+                        debugMsg("[IT FAILED] Nobody available to it");
                     }
+                } catch (NoSuchAgentException e) {
+                    // We are not registered in this Bailiff after all
+                    localBailiff = null;
+                    rest();
+                    return true;
                 }
+
+                // If still it agent => migrate in another bailiff, one
+                // with agents in, as the hunting weigher draws them
+
+                return migrated(migrate(svcItems, localBailiff, true));
+
             } catch (java.rmi.RemoteException e) { // FAILURE
                 if (debug) {
                     e.printStackTrace();
@@ -209,101 +620,45 @@ public class PlayerAgent implements Serializable, TagPlayer {
                 localBailiff = null;
             }
 
-            // 2) If not in a bailiff => migrate in one chosen randomly
-            if (localBailiff == null) {
-                debugMsg("Not in a bailiff");
-                if (migrate(svcItems,  null, false))
-                    return; // Migrate = SUCCESS
-                else
-                    continue;
-            }
-
-
-            // If it => try to it a player agent in the local bailiff
-            if (this.isIt.get()) {
-                try {
-                    debugMsg("\n[IT Agent] In action");
-
-                    // 3) Try to it one agent in the local bailiff
-                    ArrayList<UUID> agentsList = localBailiff.getAgentsNames();
-                    debugMsg("Nb agent in local bailiff = " + agentsList.size());
-
-                    int nbAgents = agentsList.size();
-                    int nbAttempts = 0;
-                    while (this.isIt.get() && (nbAttempts < nbAgents - 1)) { // -1 => do not count the it agent
-                        nbAttempts++;
-
-                        UUID agent = agentsList.get(rnd.nextInt(nbAgents));
-
-                        // Avoid to it ourselves
-                        if (agent.equals(id))
-                            continue;
-
-                        // Try to it the agent
-                        try {
-                            if (localBailiff.itAgent(agent)) {
-                                // It successfull
-                                this.isIt.compareAndSet(true, false);
-                                debugMsg("[IT SUCCEEDED] Agent succeeded to it agent " + agent + " !");
-                                if (debug)
-                                    System.out.println();
-                                continue;
-                            }
-                        } catch (NoSuchAgentException e) {
-                        }
-                    }
-
-                    // If still it agent => migrate in another bailiff
-                    // TODO : improve by looking for a bailiff with some agents in
+        } else {
+            // Not the it agent
+            debugMsg("\n[Simple Agent] In action ");
 
-                    if (migrate(svcItems, localBailiff, true))
-                        return; // Migrate = SUCCESS
-                    else
-                        continue;
-
-                } catch (java.rmi.RemoteException e) { // FAILURE
-                    if (debug) {
-                        e.printStackTrace();
+            // Are we in the same bailiff than the it agent ?
+            try {
+                ArrayList<AgentInfo> roster = localBailiff.getAgentsInfo();
+                debugMsg("Nb agent in local bailiff = " + roster.size());
+
+                boolean itIsHere = false;
+                for (AgentInfo info : roster) {
+                    if (info.isIt() && !info.is(id)) {
+                        itIsHere = true;
+                        break;
                     }
-                    localBailiff = null;
                 }
 
-            } else {
-                // Not the it agent
-                debugMsg("\n[Simple Agent] In action ");
+                if (itIsHere) {
+                    // If yes -> need to migrate now
+                    debugMsg("[Alert] The it agent is really closed...");
+                    return migrated(migrate(svcItems, localBailiff, false));
+                }
 
-                // 3) Are we in the same bailiff than the it agent ?
-                try {
-                    ArrayList<UUID> agentsList = localBailiff.getAgentsNames();
-                    debugMsg("Nb agent in local bailiff = " + agentsList.size());
-
-                    for (UUID agent : agentsList) {
-                        try {
-                            if (localBailiff.isIt(agent)) {
-                                // If yes -> need to migrate now
-                                debugMsg("[Alert] The it agent is really closed...");
-
-                                if (migrate(svcItems, localBailiff, false))
-                                    return; // Migrate = SUCCESS
-                                else
-                                    continue;
-                            }
-
-                            // If no -> no need to move for the moment...
-                            snooze(2000); // We put a snooze to avoid agent to always migrating and therefore to never be 'itable'
-
-                        } catch (NoSuchAgentException e) {
-                            // The agent has migrated => no worry
-                        }
-                    }
-                } catch (java.rmi.RemoteException e) { // FAILURE
-                    if (debug) {
-                        e.printStackTrace();
-                    }
-                    localBailiff = null;
+                // If no -> no need to move for the moment. We stay put so
+                // that we can be 'itable', until the Bailiff tells us that
+                // the it agent has arrived or someone here was tagged.
+                sleepThen(Phase.REST, 2000 * roster.size());
+                return true;
+            } catch (java.rmi.RemoteException e) { // FAILURE
+                if (debug) {
+                    e.printStackTrace();
                 }
+                localBailiff = null;
             }
-        } // for ever // go back up and try to find more Bailiffs
+        }
+
+        // Go back up and try to find more Bailiffs
+        rest();
+        return true;
     }
 
     /**
@@ -315,129 +670,174 @@ public class PlayerAgent implements Serializable, TagPlayer {
      *
      * Return true if the migration suceeds, false otherwise.
      *
-     * @param svcItems An array containing the Jini services (Bailiff).
+     * @param svcItems An array containing the Jini services (Bailiff), from
+     *                 which a weighted sample of candidates is drawn.
      * @param bfiToAvoid A bailiff to avoid, for example, if a agent is currently with an 'it' agent in a Bailiff, he
      *                   will avoid to migrate in the same Bailiff.
      * @param itAgent True if the migrating agent is an 'it' agent. False otherwise. We need a distinction because
      *                their migrating stategies are different.
      * @return
      */
-    private boolean migrate(ServiceItem[] svcItems, BailiffInterface bfiToAvoid, boolean itAgent) {
-        // While we still have at least one Bailiff service to try...
-        int nofItems = svcItems.length;
-
-        while (0 < nofItems) {
-
-            // Select one Bailiff randomly.
-            int idx = 0;
-            if (1 < nofItems) {
-                idx = rnd.nextInt(nofItems);
+    private boolean migrate(ServiceItem[] svcItems, final BailiffInterface bfiToAvoid,
+                            final boolean itAgent) {
+        // Draw the candidates from all the Bailiffs found. The load they
+        // publish weighs them without calling any of them: we flee
+        // Bailiffs with the it agent, and the it agent hunts where there
+        // are many agents. Our own Bailiff is left out when we know it.
+        ServiceItem[] candidates = selector.sample(svcItems, BailiffSelector.DEFAULT_SAMPLE,
+                new BailiffSelector.Weigher() {
+                    public double weight(ServiceItem item) {
+                        if (bfiToAvoid != null && isLocal(item)) {
+                            return 0.0;
+                        }
+                        BailiffLoad load = BailiffLoad.find(item.attributeSets);
+                        return itAgent ? BailiffSelector.forHunting(load)
+                                : BailiffSelector.forFleeing(load);
+                    }
+                });
+
+        // Ping them all at once. Those that do not answer in time are
+        // weighed down the next time.
+        ArrayList<BailiffProbe.Response> answered =
+                BailiffProbe.probe(candidates, BailiffProbe.DEFAULT_DEADLINE);
+        for (ServiceItem item : candidates) {
+            if (!BailiffProbe.answered(answered, item)) {
+                selector.failed(item);
             }
+        }
 
-            Object obj = svcItems[idx].service; // Get the service object
-
-            // Try to ping the selected Bailiff.
-            BailiffInterface bfi = pingBailiff(obj);
+        debugMsg("[Ping Result] " + answered.size() + " of " + candidates.length
+                + " accepted.");
 
-            debugMsg("[Ping Result] " + (bfi != null ? "Accepted." : "Not accepted."));
+        // Try those that answered in the order they were drawn in. Their
+        // round trips are learned here and weigh the next draws, so a
+        // fast Bailiff is preferred without overriding the draw.
+        for (BailiffProbe.Response response : BailiffProbe.inOrder(answered, candidates)) {
 
-            // If the ping failed, delete that Bailiff from the array and
-            // try another. The current (idx) entry in the list of service items
-            // is replaced by the last item in the list, and the list length
-            // is decremented by one.
-            if (bfi == null) {
-                svcItems[idx] = svcItems[nofItems - 1];
-                nofItems -= 1;
-                continue;        // Back to top of while-loop.
-            } else {
+            ServiceItem item = response.getItem();
+            BailiffInterface bfi = response.getBailiff();
+            BailiffLoad load = BailiffLoad.find(item.attributeSets);
+            selector.answered(item, response.getNanos());
+            debugMsg(response.getEcho());
 
-                // If we want to migrate for avoiding the it agent
-                if (!itAgent && (bfi == bfiToAvoid))
-                    continue;
+            // Do not migrate to the Bailiff we are leaving. The probe
+            // hands out proxies, so compare the Bailiffs, not the objects.
+            if (bfi.equals(bfiToAvoid)) {
+                continue;
+            }
 
-                // This is the spot where PlayerAgent tries to migrate
-                try {
-                    ArrayList<UUID> agentsList = bfi.getAgentsNames();
+            // This is the spot where PlayerAgent tries to migrate
+            try {
+                // Only ask for the roster if the Bailiff does not
+                // publish its load, or to show it.
+                if (debug || (itAgent && load == null)) {
+                    ArrayList<AgentInfo> agentsList = bfi.getAgentsInfo();
 
                     if (debug) {
                         debugMsg("List of agents | Size = " + agentsList.size());
                         for (int i = 0; i < agentsList.size(); ++i) {
-                            try {
-                                debugMsg("Agent " + i + " : " + agentsList.get(i)
-                                        + " | isIt = " + (bfi.isIt(agentsList.get(i)) ? "YES" : "NO"));
-                            } catch (NoSuchAgentException noSuchAgentInCurrentBailiff) {
-                                debugMsg("Agent " + i + " : " + agentsList.get(i));
-                            }
+                            AgentInfo info = agentsList.get(i);
+                            debugMsg("Agent " + i + " : " + info.getUUID()
+                                    + " | isIt = " + (info.isIt() ? "YES" : "NO"));
                         }
                     }
 
                     // If it agent, do not want a bailiff with no player in
-                    if (itAgent && (agentsList.size() == 0 || bfi == bfiToAvoid)) {
-                        svcItems[idx] = svcItems[nofItems - 1];
-                        nofItems -= 1;
+                    if (itAgent && agentsList.size() == 0) {
                         continue;
                     }
+                }
 
-                    debugMsg("[Trying to migrate] isIT = " + (this.isIt.get() ? "YES" : "NO"));
-
-                    this.isMigrating.set(true);
-                    bfi.migrate(this, "topLevel", new Object[]{isIt.get()});
+                debugMsg("[Trying to migrate] isIT = " + (this.isIt.get() ? "YES" : "NO"));
+
+                // Ask for a place first. Only the UUID goes over the wire,
+                // so a Bailiff that will not have us costs little. Its
+                // round trip is learned before we leave, so it goes along.
+                long t0 = System.nanoTime();
+                MigrationTicket ticket = bfi.reserve(id, isIt.get());
+                selector.answered(item, System.nanoTime() - t0);
+                if (ticket == null) {
+                    // Full. Its published load weighs that, not our routes.
+                    debugMsg("[Reservation refused]");
+                    continue;
+                }
 
-                    debugMsg("[Migrating Succeeded]");
-                    SDM.terminate();    // SUCCESS
-                    return true;        // SUCCESS
-                } catch (java.rmi.RemoteException | java.lang.NoSuchMethodException e) { // FAILURE
-                    if (debug) {
-                        e.printStackTrace();
-                    }
+                // From now on we can not be tagged. If we were tagged
+                // since the reservation, the plan no longer holds.
+                this.isMigrating.set(true);
+                if (ticket.isIt() != isIt.get()) {
+                    debugMsg("[Tagged while reserving]");
+                    bfi.cancel(ticket);
+                    this.isMigrating.set(false);
+                    return false;
                 }
 
+                bfi.commit(ticket, this, "topLevel", new Object[]{isIt.get()});
 
-                debugMsg("[Migrating failed]");
+                debugMsg("[Migrating Succeeded]");
+                closeDiscovery();    // SUCCESS
+                return true;        // SUCCESS
+            } catch (java.rmi.RemoteException | java.lang.NoSuchMethodException
+                    | NoSuchReservationException e) { // FAILURE
+                if (debug) {
+                    e.printStackTrace();
+                }
+                // Only a call that did not get through weighs the route down.
+                if (GuardedBailiff.isTransportFailure(e)) {
+                    selector.failed(item);
+                }
             }
-        }    // while there are candidates left
+
+            // We are still here and can be tagged again.
+            this.isMigrating.set(false);
+
+            debugMsg("[Migrating failed]");
+        }    // for each candidate
 
         return false;
     }
 
     /**
-     * Try to ping the bailiff corresponding to the object passed as parameter.
-     * If the ping is successful, it returns the reference on the instance of the Bailiff.
-     * Otherwise, if it fails, it returns null.
+     * Looks up Bailiffs, in the context of our Bailiff if we have one.
      *
-     * @param objToPing
-     * @return
+     * @param maxMatches The maximum number of Bailiffs to return.
+     * @param filter     A filter on the Bailiffs, or null.
+     * @return The Bailiffs found, possibly none.
      */
-    private BailiffInterface pingBailiff(Object objToPing) {
-        boolean accepted = false;        // Assume it will fail
+    private ServiceItem[] lookupBailiffs(int maxMatches, ServiceItemFilter filter) {
+        if (context != null) {
+            return context.lookupBailiffs(bailiffTemplate, maxMatches, filter);
+        }
+        return SDM.lookup(bailiffTemplate, maxMatches, filter);
+    }
 
-        BailiffInterface bfi = null;
+    /**
+     * Returns true if a service item is the Bailiff we are in, as far as
+     * our context tells.
+     *
+     * @param item A Bailiff found by a lookup.
+     * @return True if it is known to be our Bailiff.
+     */
+    private boolean isLocal(ServiceItem item) {
+        return context != null && item.serviceID != null
+                && item.serviceID.equals(context.getServiceID());
+    }
 
-        // Try to ping the selected Bailiff.
-        debugMsg("[Trying to ping]");
-        try {
-            if (objToPing instanceof BailiffInterface) {
-                bfi = (BailiffInterface) objToPing;
-                String response = bfi.ping(); // Ping it
-                debugMsg(response);
-                accepted = true;    // Oh, it worked!
-            }
-        } catch (java.rmi.RemoteException e) { // Ping failed
-            if (debug) {
-                e.printStackTrace();
-            }
-        } finally {
-            return (accepted ? bfi : null);
+    /**
+     * Stops our own service discovery manager, if we have one.
+     */
+    private void closeDiscovery() {
+        if (SDM != null) {
+            SDM.terminate();
+            SDM = null;
         }
     }
 
-
     /**
      * The main program of Player Agent. It is only used when a tag player agent is launched.
      */
     public static void main(String[] argv)
             throws
-            java.lang.ClassNotFoundException,
             java.io.IOException {
         CmdlnOption helpOption = new CmdlnOption("-help");
         CmdlnOption debugOption = new CmdlnOption("-debug");
@@ -475,6 +875,82 @@ public class PlayerAgent implements Serializable, TagPlayer {
         return isIt.get();
     }
 
+    @Override
+    public boolean isMigrating() {
+        return isMigrating.get();
+    }
+
+    @Override
+    public int getHops() {
+        return hops;
+    }
+
+    // In ContextAware:
+
+    @Override
+    public void setAgentContext(AgentContext context) {
+        this.context = context;
+    }
+
+    // In RosterListener:
+
+    @Override
+    public void agentArrived(UUID agent, boolean agentIsIt) {
+        // The it agent wants to know about prey, the others about the it agent.
+        if (agentIsIt != isIt.get()) {
+            signalRoster();
+        }
+    }
+
+    @Override
+    public void agentDeparted(UUID agent) {
+    }
+
+    @Override
+    public void agentTagged(UUID agent, UUID by) {
+        // Either we have been tagged, or there is a new it agent among us.
+        signalRoster();
+    }
+
+    @Override
+    public void bailiffDraining(long deadline) {
+        leaving = true;
+        signalRoster();
+    }
+
+    // In Relocatable:
+
+    /**
+     * Stops the agent between two steps and hands it to the Bailiff, which
+     * restarts it in a peer Bailiff with its current 'it' state.
+     */
+    @Override
+    public MigrationParcel relocate() {
+        ReentrantLock lock = stepLock;
+        if (lock == null) {
+            return null;    // Not started yet
+        }
+        try {
+            if (!lock.tryLock(1, TimeUnit.SECONDS)) {
+                return null;    // Busy, probably migrating by ourselves
+            }
+        } catch (InterruptedException e) {
+            return null;
+        }
+        try {
+            if (phase == Phase.DONE) {
+                return null;    // Already gone
+            }
+            isMigrating.set(true);
+            phase = Phase.DONE;
+            closeDiscovery();
+            signalRoster();    // Our own loop sees DONE and ends
+            return new MigrationParcel(this, "topLevel", new Object[]{isIt.get()});
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public boolean itAgent() {
         debugMsg("\n[TRY TO IT] Someone try to it me...!");
@@ -491,4 +967,9 @@ public class PlayerAgent implements Serializable, TagPlayer {
         debugMsg("[IT SUCCESS] I have been it :( !");
         return isIt.compareAndSet(false, true);
     }
+
+    @Override
+    public boolean passIt() {
+        return isIt.compareAndSet(true, false);
+    }
 }
@@ -0,0 +1,209 @@
+package dsv.pis.gotag.player;
+
+import net.jini.core.lookup.ServiceID;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.StreamCorruptedException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * What an agent has learned about the Bailiffs it has called: a moving
+ * average of the round trip time to each, and how many times in a row
+ * it has failed. The table goes along when the agent migrates, so what
+ * was learned in one Bailiff is not lost in the next.
+ * <p>
+ * The round trips are measured from wherever the agent was at the time.
+ * In a room of Bailiffs that is a fair guess at the cost from the next
+ * one too, and new samples replace old ones quickly.
+ * <p>
+ * The table holds at most MAX_ROUTES Bailiffs; the one updated least
+ * recently is dropped first. It is used by the agent's own thread only
+ * and is not thread safe.
+ */
+public final class RouteTable {
+
+    /**
+     * The largest number of Bailiffs the table remembers.
+     */
+    public static final int MAX_ROUTES = 32;
+
+    /**
+     * The round trip, in nanoseconds, at which a Bailiff weighs one half.
+     */
+    public static final long REFERENCE_RTT = 10000000L;
+
+    /**
+     * The highest failure count kept. The weight stops falling there.
+     */
+    static final int MAX_FAILURES = 8;
+
+    /**
+     * The weight of a new sample in the moving average.
+     */
+    private static final double ALPHA = 0.25;
+
+    /**
+     * What is known about one Bailiff.
+     */
+    private static final class Route {
+        long rtt = -1;     // Moving average in nanoseconds, -1 if unknown
+        int failures = 0;
+    }
+
+    private final LinkedHashMap<ServiceID, Route> routes =
+            new LinkedHashMap<ServiceID, Route>();
+
+    /**
+     * Records a round trip to a Bailiff, which also clears its failures.
+     *
+     * @param id    The ServiceID of the Bailiff.
+     * @param nanos The round trip time in nanoseconds.
+     */
+    public void observe(ServiceID id, long nanos) {
+        if (id == null || nanos < 0) {
+            return;
+        }
+        Route r = touch(id);
+        r.rtt = (r.rtt < 0) ? nanos : (long) (r.rtt + ALPHA * (nanos - r.rtt));
+        r.failures = 0;
+    }
+
+    /**
+     * Records that a call to a Bailiff failed.
+     *
+     * @param id The ServiceID of the Bailiff.
+     */
+    public void failed(ServiceID id) {
+        if (id == null) {
+            return;
+        }
+        Route r = touch(id);
+        r.failures = Math.min(MAX_FAILURES, r.failures + 1);
+    }
+
+    /**
+     * Records that a Bailiff answered, without a timing. This clears its
+     * failures but leaves its round trip as it is.
+     *
+     * @param id The ServiceID of the Bailiff.
+     */
+    public void succeeded(ServiceID id) {
+        Route r = (id != null) ? routes.get(id) : null;
+        if (r != null) {
+            r.failures = 0;
+        }
+    }
+
+    /**
+     * Returns how much a Bailiff is preferred as a target, from 1 for an
+     * unknown or very close Bailiff down towards 0 for a slow one, halved
+     * for every failure in a row.
+     *
+     * @param id The ServiceID of the Bailiff.
+     * @return The weight, in (0, 1].
+     */
+    public double weight(ServiceID id) {
+        Route r = (id != null) ? routes.get(id) : null;
+        if (r == null) {
+            return 1.0;
+        }
+        double w = (r.rtt < 0) ? 1.0 : (double) REFERENCE_RTT / (REFERENCE_RTT + r.rtt);
+        return w * Math.pow(0.5, r.failures);
+    }
+
+    /**
+     * Returns the average round trip to a Bailiff.
+     *
+     * @param id The ServiceID of the Bailiff.
+     * @return The round trip in nanoseconds, or -1 if unknown.
+     */
+    public long getRtt(ServiceID id) {
+        Route r = (id != null) ? routes.get(id) : null;
+        return (r == null) ? -1 : r.rtt;
+    }
+
+    /**
+     * Returns the number of failures in a row of a Bailiff.
+     *
+     * @param id The ServiceID of the Bailiff.
+     * @return The failure count, 0 if unknown.
+     */
+    public int getFailures(ServiceID id) {
+        Route r = (id != null) ? routes.get(id) : null;
+        return (r == null) ? 0 : r.failures;
+    }
+
+    /**
+     * Returns the number of Bailiffs in the table.
+     */
+    public int size() {
+        return routes.size();
+    }
+
+    /**
+     * Returns the route of a Bailiff, created if needed, and moves it to
+     * the most recent end of the table.
+     */
+    private Route touch(ServiceID id) {
+        Route r = routes.remove(id);
+        if (r == null) {
+            r = new Route();
+            if (MAX_ROUTES <= routes.size()) {
+                Iterator<ServiceID> oldest = routes.keySet().iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        }
+        routes.put(id, r);
+        return r;
+    }
+
+    /**
+     * Writes the table: a count byte, then per Bailiff its ServiceID as
+     * two longs, its round trip in microseconds as an int, -1 if unknown,
+     * and its failure count as a byte. The oldest route comes first.
+     *
+     * @param out The stream to write to.
+     * @throws IOException If the stream fails.
+     */
+    public void writeTo(ObjectOutput out) throws IOException {
+        out.writeByte(routes.size());
+        for (java.util.Map.Entry<ServiceID, Route> e : routes.entrySet()) {
+            ServiceID id = e.getKey();
+            Route r = e.getValue();
+            out.writeLong(id.getMostSignificantBits());
+            out.writeLong(id.getLeastSignificantBits());
+            out.writeInt((r.rtt < 0) ? -1 : (int) Math.min(Integer.MAX_VALUE, r.rtt / 1000));
+            out.writeByte(r.failures);
+        }
+    }
+
+    /**
+     * Reads a table written by writeTo.
+     *
+     * @param in The stream to read from.
+     * @return The table.
+     * @throws IOException If the stream fails or holds too many routes.
+     */
+    public static RouteTable readFrom(ObjectInput in) throws IOException {
+        int n = in.readUnsignedByte();
+        if (MAX_ROUTES < n) {
+            throw new StreamCorruptedException("route table of " + n + " routes");
+        }
+        RouteTable table = new RouteTable();
+        for (int i = 0; i < n; i++) {
+            long msb = in.readLong();
+            long lsb = in.readLong();
+            int micros = in.readInt();
+            int failures = in.readUnsignedByte();
+            Route r = new Route();
+            r.rtt = (micros < 0) ? -1 : micros * 1000L;
+            r.failures = Math.min(MAX_FAILURES, failures);
+            table.routes.put(new ServiceID(msb, lsb), r);
+        }
+        return table;
+    }
+}
@@ -21,4 +21,27 @@ public interface TagPlayer {
      * @return True if the TagPlayer has been 'it', false otherwise.
      */
     public boolean itAgent();
+
+    /**
+     * Gives up the 'it' state. The Bailiff calls this on the 'it' agent in
+     * the same step as it tags another agent for it.
+     *
+     * @return true if the TagPlayer was 'it', false otherwise.
+     */
+    public boolean passIt();
+
+    /**
+     * Return true if the TagPlayer is migrating, false otherwise.
+     * A migrating TagPlayer can not be 'it'.
+     *
+     * @return true if the TagPlayer is migrating, false otherwise.
+     */
+    public boolean isMigrating();
+
+    /**
+     * Return the number of times the TagPlayer has migrated.
+     *
+     * @return the number of migrations made by the TagPlayer.
+     */
+    public int getHops();
 }
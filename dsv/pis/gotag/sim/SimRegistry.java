@@ -0,0 +1,331 @@
+// SimRegistry.java
+// In-memory lookup service for the Bailiffs of a simulation.
+
+package dsv.pis.gotag.sim;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import dsv.pis.gotag.bailiff.BailiffDirectory;
+import dsv.pis.gotag.bailiff.BailiffInterface;
+import dsv.pis.gotag.bailiff.TemplateMatcher;
+import net.jini.core.entry.Entry;
+import net.jini.core.lookup.ServiceID;
+import net.jini.core.lookup.ServiceItem;
+import net.jini.core.lookup.ServiceTemplate;
+import net.jini.lookup.LookupCache;
+import net.jini.lookup.ServiceDiscoveryEvent;
+import net.jini.lookup.ServiceDiscoveryListener;
+import net.jini.lookup.ServiceIDListener;
+import net.jini.lookup.ServiceItemFilter;
+
+/**
+ * The SimRegistry takes the place of the Jini lookup servers for the
+ * Bailiffs of a simulation. Each Bailiff is given a directory of its own
+ * by {@link #newDirectory}, and registers in it as it would with a
+ * JoinManager; the registry then publishes the Bailiff's proxy from the
+ * {@link SimTransport}, so that clients call it through the transport.
+ * <p>
+ * Lookups are matched with Jini semantics by the TemplateMatcher. The
+ * lookup caches tell their listeners about Bailiffs that are added,
+ * changed or removed, on one event thread, as a ServiceDiscoveryManager
+ * does. A registration is at once visible to all; there is no discovery
+ * delay.
+ */
+public class SimRegistry {
+
+    private final SimTransport transport;
+
+    /**
+     * The registered services by ServiceID. Guarded by this registry.
+     */
+    private final LinkedHashMap<ServiceID, ServiceItem> items =
+            new LinkedHashMap<ServiceID, ServiceItem>();
+
+    private final CopyOnWriteArrayList<Cache> caches = new CopyOnWriteArrayList<Cache>();
+
+    private final ExecutorService events = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "sim-registry-events");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private long nextID = 1;
+
+    /**
+     * Creates an empty registry.
+     *
+     * @param transport The transport through which clients call the
+     *                  registered Bailiffs.
+     */
+    public SimRegistry(SimTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Returns a new directory for one Bailiff.
+     */
+    public BailiffDirectory newDirectory() {
+        return new Directory();
+    }
+
+    /**
+     * Returns the registered services that match a template and pass a
+     * filter.
+     *
+     * @param tmpl       The template, or null for all.
+     * @param filter     The filter, or null.
+     * @param maxMatches The maximum number of services to return.
+     * @return The services, in the order they registered.
+     */
+    public synchronized ServiceItem[] lookup(ServiceTemplate tmpl, ServiceItemFilter filter,
+                                             int maxMatches) {
+        ArrayList<ServiceItem> found = new ArrayList<ServiceItem>();
+        for (ServiceItem item : items.values()) {
+            if (maxMatches <= found.size()) {
+                break;
+            }
+            if (TemplateMatcher.matches(tmpl, item) && (filter == null || filter.check(item))) {
+                found.add(item);
+            }
+        }
+        return found.toArray(new ServiceItem[0]);
+    }
+
+    /**
+     * Returns the number of registered services.
+     */
+    public synchronized int size() {
+        return items.size();
+    }
+
+    /**
+     * Stops delivering events.
+     */
+    public void shutdown() {
+        events.shutdownNow();
+    }
+
+    private synchronized ServiceItem add(Object service, Entry[] attributes) {
+        ServiceID id = new ServiceID(0x51D0000000000000L, nextID++);
+        if (service instanceof BailiffInterface) {
+            service = transport.wrap((BailiffInterface) service);
+        }
+        ServiceItem item = new ServiceItem(id, service, attributes.clone());
+        items.put(id, item);
+        notifyAll();
+        publish(null, item);
+        return item;
+    }
+
+    private synchronized void modify(ServiceID id, Entry[] templates, Entry[] attributes) {
+        ServiceItem old = items.get(id);
+        if (old == null) {
+            return;
+        }
+        Entry[] sets = old.attributeSets.clone();
+        for (int i = 0; i < templates.length; i++) {
+            for (int j = 0; j < sets.length; j++) {
+                if (TemplateMatcher.matches(templates[i], sets[j])) {
+                    sets[j] = attributes[i];
+                }
+            }
+        }
+        // Items are never changed in place: readers may hold the old one.
+        ServiceItem item = new ServiceItem(id, old.service, sets);
+        items.put(id, item);
+        notifyAll();
+        publish(old, item);
+    }
+
+    private synchronized void remove(ServiceID id) {
+        ServiceItem old = items.remove(id);
+        if (old != null) {
+            publish(old, null);
+        }
+    }
+
+    private synchronized ServiceItem[] await(ServiceTemplate tmpl, int minMatches, int maxMatches,
+                                             ServiceItemFilter filter, long waitMillis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        ServiceItem[] found = lookup(tmpl, filter, maxMatches);
+        long left;
+        while (found.length < minMatches
+                && 0 < (left = deadline - System.currentTimeMillis())) {
+            wait(left);
+            found = lookup(tmpl, filter, maxMatches);
+        }
+        return found;
+    }
+
+    /**
+     * Tells the caches about a change, on the event thread.
+     *
+     * @param pre  The item before, or null if it was added.
+     * @param post The item after, or null if it was removed.
+     */
+    private void publish(final ServiceItem pre, final ServiceItem post) {
+        for (final Cache cache : caches) {
+            try {
+                events.execute(() -> cache.changed(pre, post));
+            } catch (RejectedExecutionException e) {
+                return;        // Shut down
+            }
+        }
+    }
+
+    /**
+     * The directory of one Bailiff.
+     */
+    private final class Directory implements BailiffDirectory {
+        private volatile ServiceID id;
+        private final ArrayList<Cache> mine = new ArrayList<Cache>();
+
+        // In BailiffDirectory:
+
+        @Override
+        public void register(Object service, Entry[] attributes, ServiceIDListener listener) {
+            id = add(service, attributes).serviceID;
+            listener.serviceIDNotify(id);
+        }
+
+        // In BailiffDirectory:
+
+        @Override
+        public void modifyAttributes(Entry[] templates, Entry[] attributes) {
+            if (id != null) {
+                modify(id, templates, attributes);
+            }
+        }
+
+        // In BailiffDirectory:
+
+        @Override
+        public synchronized LookupCache createLookupCache(ServiceTemplate tmpl) {
+            Cache cache = new Cache(tmpl);
+            mine.add(cache);
+            caches.add(cache);
+            return cache;
+        }
+
+        // In BailiffDirectory:
+
+        @Override
+        public ServiceItem[] lookup(ServiceTemplate tmpl, int minMatches, int maxMatches,
+                                    ServiceItemFilter filter, long waitMillis)
+                throws InterruptedException {
+            return await(tmpl, minMatches, maxMatches, filter, waitMillis);
+        }
+
+        // In BailiffDirectory:
+
+        @Override
+        public synchronized void terminate() {
+            if (id != null) {
+                remove(id);
+            }
+            for (Cache cache : mine) {
+                cache.terminate();
+            }
+            mine.clear();
+        }
+    }
+
+    /**
+     * A lookup cache over the registry. It holds no copy: lookups read
+     * the registry itself.
+     */
+    private final class Cache implements LookupCache {
+        private final ServiceTemplate tmpl;
+        private final CopyOnWriteArrayList<ServiceDiscoveryListener> listeners =
+                new CopyOnWriteArrayList<ServiceDiscoveryListener>();
+
+        Cache(ServiceTemplate tmpl) {
+            this.tmpl = tmpl;
+        }
+
+        /**
+         * Passes a change on to the listeners, if it concerns the cache.
+         * Runs on the event thread.
+         */
+        void changed(ServiceItem pre, ServiceItem post) {
+            boolean before = pre != null && TemplateMatcher.matches(tmpl, pre);
+            boolean after = post != null && TemplateMatcher.matches(tmpl, post);
+            if (!before && !after) {
+                return;
+            }
+            ServiceDiscoveryEvent e = new ServiceDiscoveryEvent
+                    (this, before ? pre : null, after ? post : null);
+            for (ServiceDiscoveryListener l : listeners) {
+                if (before && after) {
+                    l.serviceChanged(e);
+                } else if (after) {
+                    l.serviceAdded(e);
+                } else {
+                    l.serviceRemoved(e);
+                }
+            }
+        }
+
+        // In LookupCache:
+
+        @Override
+        public ServiceItem lookup(ServiceItemFilter filter) {
+            ServiceItem[] found = lookup(filter, 1);
+            return (found.length == 0) ? null : found[0];
+        }
+
+        // In LookupCache:
+
+        @Override
+        public ServiceItem[] lookup(ServiceItemFilter filter, int maxMatches) {
+            return SimRegistry.this.lookup(tmpl, filter, maxMatches);
+        }
+
+        // In LookupCache:
+
+        @Override
+        public void addListener(final ServiceDiscoveryListener listener) {
+            if (listeners.addIfAbsent(listener)) {
+                // Tell the newcomer about the services there already.
+                final ServiceItem[] present = lookup(null, Integer.MAX_VALUE);
+                try {
+                    events.execute(() -> {
+                        for (ServiceItem item : present) {
+                            listener.serviceAdded(new ServiceDiscoveryEvent(this, null, item));
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // Shut down
+                }
+            }
+        }
+
+        // In LookupCache:
+
+        @Override
+        public void removeListener(ServiceDiscoveryListener listener) {
+            listeners.remove(listener);
+        }
+
+        // In LookupCache:
+
+        @Override
+        public void discard(Object service) {
+            // Nothing is cached, so there is nothing to discard.
+        }
+
+        // In LookupCache:
+
+        @Override
+        public void terminate() {
+            caches.remove(this);
+            listeners.clear();
+        }
+    }
+}
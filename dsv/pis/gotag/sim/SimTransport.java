@@ -0,0 +1,216 @@
+// SimTransport.java
+// In-process stand-in for the RMI calls between agents and Bailiffs.
+
+package dsv.pis.gotag.sim;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import dsv.pis.gotag.bailiff.BailiffInterface;
+
+/**
+ * The SimTransport stands in for RMI between the Bailiffs of a simulation
+ * and their clients, all in one JVM. A Bailiff is published as a proxy
+ * made by {@link #wrap}; a call on the proxy is a plain method call on the
+ * Bailiff, with what RMI would add to it simulated on the way:
+ * <ul>
+ * <li>serialization: the arguments and the result are copied through an
+ * object stream, so that a migrating agent arrives as a copy, as it does
+ * over the network;</li>
+ * <li>latency: the calling thread waits a round trip, drawn uniformly from
+ * latency - jitter to latency + jitter;</li>
+ * <li>failures: a call fails with a ConnectException at random, with a
+ * given probability, and always while its Bailiff is marked down.</li>
+ * </ul>
+ * Serialization should only be turned off for agents that do not touch
+ * themselves once they have migrated, since the agent object is then
+ * shared by the old thread and the new one.
+ */
+public class SimTransport {
+
+    private final boolean serialize;
+    private final long latencyNanos;
+    private final long jitterNanos;
+    private final double failureRate;
+    private final Random rnd;
+    private final Set<Object> down = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    /**
+     * Creates a transport.
+     *
+     * @param serialize     True to copy arguments and results.
+     * @param latencyMicros The mean round trip of a call, in microseconds.
+     * @param jitterMicros  The largest deviation from the mean.
+     * @param failureRate   The probability that a call fails, 0 to 1.
+     * @param seed          The seed of the random draws.
+     */
+    public SimTransport(boolean serialize, long latencyMicros, long jitterMicros,
+                        double failureRate, long seed) {
+        if (latencyMicros < 0 || jitterMicros < 0 || latencyMicros < jitterMicros) {
+            throw new IllegalArgumentException("need 0 <= jitter <= latency");
+        }
+        if (!(0 <= failureRate && failureRate <= 1)) {
+            throw new IllegalArgumentException("failure rate out of [0, 1]");
+        }
+        this.serialize = serialize;
+        this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+        this.jitterNanos = TimeUnit.MICROSECONDS.toNanos(jitterMicros);
+        this.failureRate = failureRate;
+        this.rnd = new Random(seed);
+    }
+
+    /**
+     * Creates a transport that only copies, without latency or failures.
+     */
+    public SimTransport() {
+        this(true, 0, 0, 0.0, 0);
+    }
+
+    /**
+     * Returns the proxy through which clients call a Bailiff.
+     *
+     * @param target The Bailiff.
+     * @return The proxy.
+     */
+    public BailiffInterface wrap(BailiffInterface target) {
+        return (BailiffInterface) Proxy.newProxyInstance
+                (BailiffInterface.class.getClassLoader(),
+                        new Class<?>[]{BailiffInterface.class},
+                        new Call(target));
+    }
+
+    /**
+     * Returns the Bailiff behind a proxy made by wrap, or the argument
+     * itself if it is not one.
+     *
+     * @param obj A Bailiff or proxy.
+     * @return The Bailiff.
+     */
+    public static Object unwrap(Object obj) {
+        if (obj != null && Proxy.isProxyClass(obj.getClass())) {
+            InvocationHandler h = Proxy.getInvocationHandler(obj);
+            if (h instanceof Call) {
+                return ((Call) h).target;
+            }
+        }
+        return obj;
+    }
+
+    /**
+     * Marks a Bailiff as down or up. Calls to a Bailiff that is down fail.
+     *
+     * @param target The Bailiff, or a proxy of it.
+     * @param isDown True to take it down, false to bring it up.
+     */
+    public void setDown(Object target, boolean isDown) {
+        if (isDown) {
+            down.add(unwrap(target));
+        } else {
+            down.remove(unwrap(target));
+        }
+    }
+
+    /**
+     * Returns the number of calls made through the transport.
+     */
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    /**
+     * Returns the number of calls that failed by injection.
+     */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * Returns the number of bytes serialized by the transport.
+     */
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * Copies an object graph through an object stream.
+     */
+    private Object copy(Object obj) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
+            out.writeObject(obj);
+        }
+        bytes.add(bos.size());
+        try (ObjectInputStream in = new ObjectInputStream
+                (new ByteArrayInputStream(bos.toByteArray()))) {
+            return in.readObject();
+        }
+    }
+
+    /**
+     * The handler of one proxy.
+     */
+    private final class Call implements InvocationHandler {
+        final BailiffInterface target;
+
+        Call(BailiffInterface target) {
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+            if (m.getDeclaringClass() == Object.class) {
+                switch (m.getName()) {
+                    case "equals":
+                        return target == unwrap(args[0]);
+                    case "hashCode":
+                        return target.hashCode();
+                    default:
+                        return "Sim" + target;
+                }
+            }
+
+            calls.increment();
+            if (0 < latencyNanos) {
+                long rtt = latencyNanos;
+                if (0 < jitterNanos) {
+                    rtt += (long) ((2 * rnd.nextDouble() - 1) * jitterNanos);
+                }
+                LockSupport.parkNanos(rtt);
+            }
+            if (down.contains(target)
+                    || (0 < failureRate && rnd.nextDouble() < failureRate)) {
+                failures.increment();
+                throw new java.rmi.ConnectException("simulated failure of " + m.getName());
+            }
+
+            try {
+                if (serialize && args != null) {
+                    args = (Object[]) copy(args);
+                }
+                Object result = m.invoke(target, args);
+                return (serialize && result != null) ? copy(result) : result;
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            } catch (IOException | ClassNotFoundException e) {
+                throw new java.rmi.MarshalException("simulated marshalling failed", e);
+            }
+        }
+    }
+}
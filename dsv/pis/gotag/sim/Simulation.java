@@ -0,0 +1,283 @@
+// Simulation.java
+// Runs many Bailiffs and PlayerAgents in one JVM and measures them.
+
+package dsv.pis.gotag.sim;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.server.UnicastRemoteObject;
+
+import dsv.pis.gotag.bailiff.AgentEngine;
+import dsv.pis.gotag.bailiff.Bailiff;
+import dsv.pis.gotag.bailiff.BailiffInterface;
+import dsv.pis.gotag.bailiff.BailiffMetricsMBean;
+import dsv.pis.gotag.player.PlayerAgent;
+import dsv.pis.gotag.util.CmdlnOption;
+import dsv.pis.gotag.util.Commandline;
+import dsv.pis.gotag.util.Logger;
+import net.jini.core.lookup.ServiceItem;
+
+/**
+ * The Simulation runs a game of tag on N Bailiffs with M PlayerAgents,
+ * all in one JVM and without a network: the Bailiffs register in a
+ * {@link SimRegistry} instead of the Jini lookup servers, and are called
+ * through a {@link SimTransport} instead of RMI. The Bailiffs and the
+ * agents themselves are the real ones.
+ * <p>
+ * Every interval the simulation prints the migrations and tags per
+ * second over all Bailiffs, the number of resident agents, and the calls,
+ * failures and bytes of the transport; at the end it prints the averages
+ * over the whole run. Runs with the same options and seed draw the same
+ * latencies and failures, but the threads of the agents still interleave
+ * as the scheduler lets them, so the figures of two runs agree only
+ * statistically.
+ */
+public class Simulation {
+
+    /**
+     * How many times an agent is offered to its Bailiff at the start
+     * before it is left out.
+     */
+    private static final int INJECT_ATTEMPTS = 10;
+
+    public static void main(String[] argv)
+            throws Exception {
+        CmdlnOption helpOption = new CmdlnOption("-help");
+        CmdlnOption bailiffsOption = new CmdlnOption("-bailiffs",
+                CmdlnOption.OPTIONAL |
+                        CmdlnOption.PAR_REQ);
+        CmdlnOption agentsOption = new CmdlnOption("-agents",
+                CmdlnOption.OPTIONAL |
+                        CmdlnOption.PAR_REQ);
+        CmdlnOption secondsOption = new CmdlnOption("-seconds",
+                CmdlnOption.OPTIONAL |
+                        CmdlnOption.PAR_REQ);
+        CmdlnOption intervalOption = new CmdlnOption("-interval",
+                CmdlnOption.OPTIONAL |
+                        CmdlnOption.PAR_REQ);
+        CmdlnOption latencyOption = new CmdlnOption("-latency",
+                CmdlnOption.OPTIONAL |
+                        CmdlnOption.PAR_REQ);
+        CmdlnOption jitterOption = new CmdlnOption("-jitter",
+                CmdlnOption.OPTIONAL |
+                        CmdlnOption.PAR_REQ);
+        CmdlnOption failureOption = new CmdlnOption("-failure",
+                CmdlnOption.OPTIONAL |
+                        CmdlnOption.PAR_REQ);
+        CmdlnOption seedOption = new CmdlnOption("-seed",
+                CmdlnOption.OPTIONAL |
+                        CmdlnOption.PAR_REQ);
+        CmdlnOption noSerializeOption = new CmdlnOption("-noserialize");
+        CmdlnOption engineOption = new CmdlnOption("-engine",
+                CmdlnOption.OPTIONAL |
+                        CmdlnOption.PAR_REQ);
+        CmdlnOption poolSizeOption = new CmdlnOption("-poolsize",
+                CmdlnOption.OPTIONAL |
+                        CmdlnOption.PAR_REQ);
+
+        CmdlnOption[] opts =
+                new CmdlnOption[]{helpOption,
+                        bailiffsOption,
+                        agentsOption,
+                        secondsOption,
+                        intervalOption,
+                        latencyOption,
+                        jitterOption,
+                        failureOption,
+                        seedOption,
+                        noSerializeOption,
+                        engineOption,
+                        poolSizeOption};
+
+        String[] restArgs = Commandline.parseArgs(System.out, argv, opts);
+
+        if (restArgs == null) {
+            System.exit(1);
+        }
+
+        if (helpOption.getIsSet() == true) {
+            System.out.println
+                    ("Usage: [-bailiffs n][-agents m][-seconds s][-interval ms]"
+                            + "[-latency us][-jitter us][-failure p][-seed n]"
+                            + "[-noserialize][-engine virtual|pool][-poolsize n]");
+            System.out.println("      -bailiffs and -agents set the size of the game (default = 4 and 8).");
+            System.out.println("      -seconds sets how long it runs (default = 30), -interval");
+            System.out.println("       how often it reports (default = 1000 ms).");
+            System.out.println("      -latency and -jitter set the round trip of a call and its");
+            System.out.println("       spread, in microseconds (default = 0 and 0).");
+            System.out.println("      -failure sets the probability that a call fails (default = 0).");
+            System.out.println("      -seed seeds the latencies and failures (default = 1).");
+            System.out.println("      -noserialize passes agents and results by reference.");
+            System.out.println("      -engine and -poolsize select how each Bailiff runs its agents.");
+            System.exit(0);
+        }
+
+        int nofBailiffs = 4;
+        int nofAgents = 8;
+        long seconds = 30;
+        long interval = 1000;
+        long latency = 0;
+        long jitter = 0;
+        double failure = 0.0;
+        long seed = 1;
+        String engineMode = AgentEngine.VIRTUAL;
+        int poolSize = AgentEngine.DEFAULT_POOL_SIZE;
+
+        try {
+            if (bailiffsOption.getIsSet() == true) {
+                nofBailiffs = Integer.parseInt(bailiffsOption.getValue());
+            }
+            if (agentsOption.getIsSet() == true) {
+                nofAgents = Integer.parseInt(agentsOption.getValue());
+            }
+            if (secondsOption.getIsSet() == true) {
+                seconds = Long.parseLong(secondsOption.getValue());
+            }
+            if (intervalOption.getIsSet() == true) {
+                interval = Long.parseLong(intervalOption.getValue());
+            }
+            if (latencyOption.getIsSet() == true) {
+                latency = Long.parseLong(latencyOption.getValue());
+            }
+            if (jitterOption.getIsSet() == true) {
+                jitter = Long.parseLong(jitterOption.getValue());
+            }
+            if (failureOption.getIsSet() == true) {
+                failure = Double.parseDouble(failureOption.getValue());
+            }
+            if (seedOption.getIsSet() == true) {
+                seed = Long.parseLong(seedOption.getValue());
+            }
+            if (poolSizeOption.getIsSet() == true) {
+                poolSize = Integer.parseInt(poolSizeOption.getValue());
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Bad number: " + e.getMessage());
+            System.exit(1);
+        }
+
+        if (engineOption.getIsSet() == true) {
+            engineMode = engineOption.getValue().toLowerCase();
+        }
+
+        if (nofBailiffs < 1 || nofAgents < 1 || interval < 1) {
+            System.out.println("-bailiffs, -agents and -interval must be positive.");
+            System.exit(1);
+        }
+
+        if (!(0.0 <= failure && failure < 1.0)) {
+            System.out.println("-failure must be at least 0 and less than 1.");
+            System.exit(1);
+        }
+
+        SimTransport transport = new SimTransport
+                (!noSerializeOption.getIsSet(), latency, jitter, failure, seed);
+        SimRegistry registry = new SimRegistry(transport);
+        Logger log = new Logger();
+
+        // Each Bailiff has a room of its own, which also keeps the names
+        // of their metrics apart.
+
+        Bailiff[] bailiffs = new Bailiff[nofBailiffs];
+        for (int i = 0; i < nofBailiffs; i++) {
+            AgentEngine engine = null;
+            try {
+                engine = AgentEngine.forMode(engineMode, poolSize);
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                System.exit(1);
+            }
+            bailiffs[i] = new Bailiff("room" + i, "sim", false, log, engine,
+                    null, registry.newDirectory());
+            // Nothing calls the Bailiffs over RMI.
+            try {
+                UnicastRemoteObject.unexportObject(bailiffs[i], true);
+            } catch (NoSuchObjectException e) {
+                // Not exported
+            }
+        }
+
+        // Inject the agents round robin, the first one as 'it', through
+        // the transport like any other migration. An agent that still
+        // fails after a few simulated failures is left out.
+
+        ServiceItem[] items = registry.lookup(null, null, nofBailiffs);
+        int injected = 0;
+        for (int j = 0; j < nofAgents; j++) {
+            BailiffInterface bfi = (BailiffInterface) items[j % items.length].service;
+            for (int attempt = 0; attempt < INJECT_ATTEMPTS; attempt++) {
+                PlayerAgent agent = new PlayerAgent(false);
+                try {
+                    bfi.migrate(agent, "topLevel", new Object[]{injected == 0});
+                    injected++;
+                    break;
+                } catch (java.rmi.RemoteException e) {
+                    // A simulated failure; try again.
+                }
+            }
+        }
+        if (injected < nofAgents) {
+            System.out.println((nofAgents - injected) + " of " + nofAgents
+                    + " agents could not be injected.");
+        }
+
+        System.out.println("bailiffs=" + nofBailiffs + " agents=" + nofAgents
+                + " latency=" + latency + "us jitter=" + jitter + "us failure=" + failure
+                + " serialize=" + !noSerializeOption.getIsSet() + " seed=" + seed);
+        System.out.println("time_s\tmigr/s\ttags/s\tresident\tcalls\tfailed\tbytes");
+
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        long[] first = sample(bailiffs, transport);
+        long[] last = first;
+        long lastTime = start;
+
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.max(1, Math.min(interval,
+                    (end - System.nanoTime()) / 1000000)));
+            long now = System.nanoTime();
+            long[] current = sample(bailiffs, transport);
+            double dt = (now - lastTime) / 1e9;
+            System.out.printf("%.1f\t%.1f\t%.1f\t%d\t%d\t%d\t%d%n",
+                    (now - start) / 1e9,
+                    (current[0] - last[0]) / dt,
+                    (current[1] - last[1]) / dt,
+                    current[2],
+                    current[3] - last[3],
+                    current[4] - last[4],
+                    current[5] - last[5]);
+            last = current;
+            lastTime = now;
+        }
+
+        double total = (lastTime - start) / 1e9;
+        System.out.printf("total\t%.1f\t%.1f\t%d\t%d\t%d\t%d%n",
+                (last[0] - first[0]) / total,
+                (last[1] - first[1]) / total,
+                last[2],
+                last[3] - first[3],
+                last[4] - first[4],
+                last[5] - first[5]);
+
+        registry.shutdown();
+        System.exit(0);
+    } // main
+
+    /**
+     * Reads the counters of the Bailiffs and the transport.
+     *
+     * @return Migrations in, tags, residents, calls, failures and bytes.
+     */
+    private static long[] sample(Bailiff[] bailiffs, SimTransport transport) {
+        long[] counts = new long[6];
+        for (Bailiff bf : bailiffs) {
+            BailiffMetricsMBean m = bf.getMetrics();
+            counts[0] += m.getMigrationsIn();
+            counts[1] += m.getTags();
+            counts[2] += m.getResidents();
+        }
+        counts[3] = transport.getCalls();
+        counts[4] = transport.getFailures();
+        counts[5] = transport.getBytes();
+        return counts;
+    }
+} // public class Simulation
@@ -0,0 +1,110 @@
+// WireSize.java
+// Reports the bytes each kind of agent costs per hop.
+
+package dsv.pis.gotag.sim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import dsv.pis.gotag.bailiff.BailiffInterface;
+import dsv.pis.gotag.deedee.Deedee;
+import dsv.pis.gotag.deedee.DeedeeCourier;
+import dsv.pis.gotag.dexter.Dexter;
+import dsv.pis.gotag.player.PlayerAgent;
+import net.jini.core.entry.Entry;
+import net.jini.core.lookup.ServiceTemplate;
+import net.jini.lookup.entry.Location;
+
+/**
+ * WireSize prints the number of bytes each kind of agent is serialized
+ * to, which is what it costs every time it migrates, not counting the
+ * framing of the RMI call.
+ * <p>
+ * The agents write a compact wire form of their own. For comparison the
+ * program also serializes, by default Java serialization, the fields the
+ * agents sent before they had one: the UUID, the AtomicBoolean flags, the
+ * Random and the service template. Those stand-ins have longer class
+ * names than the agents, which adds a few bytes to the old figures.
+ */
+public class WireSize {
+
+    /**
+     * The fields PlayerAgent used to send.
+     */
+    private static class DefaultPlayerAgent implements Serializable {
+        UUID id = UUID.randomUUID();
+        AtomicBoolean isIt = new AtomicBoolean(false);
+        AtomicBoolean isMigrating = new AtomicBoolean(false);
+        Random rnd = new Random();
+        boolean debug = false;
+        ServiceTemplate bailiffTemplate = new ServiceTemplate
+                (null, new Class[]{BailiffInterface.class}, null);
+    }
+
+    /**
+     * The fields Dexter used to send.
+     */
+    private static class DefaultDexter implements Serializable {
+        UUID id = UUID.randomUUID();
+        AtomicBoolean isIt = new AtomicBoolean(false);
+        AtomicBoolean isMigrating = new AtomicBoolean(false);
+        boolean debug = false;
+        boolean noFace = true;
+        ServiceTemplate bailiffTemplate = new ServiceTemplate
+                (null, new Class[]{BailiffInterface.class}, null);
+    }
+
+    /**
+     * The fields Deedee used to send.
+     */
+    private static class DefaultDeedee implements Serializable {
+        String toUser = USER;
+        String message = MESSAGE;
+        long expires = System.currentTimeMillis();
+        boolean runFlop = true;
+        String bfName = "dsv.pis.gotag.bailiff.BailiffInterface";
+        ServiceTemplate bailiffTemplate = new ServiceTemplate
+                (null, new Class[]{BailiffInterface.class},
+                        new Entry[]{new Location(null, null, USER)});
+    }
+
+    private static final String USER = "ralph";
+    private static final String MESSAGE = "This is a message for Ralph!";
+
+    public static void main(String[] argv) throws IOException {
+        long expires = System.currentTimeMillis() + 300000;
+
+        DeedeeCourier courier = new DeedeeCourier();
+        for (int i = 0; i < 100; i++) {
+            courier.add(USER + i, MESSAGE, expires);
+        }
+
+        System.out.println("agent\tbefore\tafter");
+        report("PlayerAgent", new DefaultPlayerAgent(), new PlayerAgent(false));
+        report("Dexter", new DefaultDexter(), new Dexter(false, true));
+        report("Deedee", new DefaultDeedee(), new Deedee(USER, MESSAGE, expires));
+        report("DeedeeCourier(100)", null, courier);
+    }
+
+    private static void report(String name, Object before, Object after) throws IOException {
+        System.out.println(name + "\t" + ((before != null) ? size(before) : "-")
+                + "\t" + size(after));
+    }
+
+    /**
+     * Returns the number of bytes an object is serialized to, as the
+     * only object in a fresh stream.
+     */
+    private static int size(Object obj) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(obj);
+        out.close();
+        return bytes.size();
+    }
+}